@@ -0,0 +1,197 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, thread safe, least recently used cache keyed by longs. <br><br>
+ *
+ * Lookups and inserts don't lock, each entry just remembers when it was last used.
+ * Once the cache grows past its max size the least recently used entries are removed
+ * (under a lock, so only one thread evicts at a time) and handed to the eviction listener,
+ * which can be used to close them. <br>
+ * Finding the entry to evict scans every entry, which is fine for the small sizes this is meant for.
+ *
+ * @param <V> the cached value
+ */
+public class ConcurrentLongLruCache<V>
+{
+	private final ConcurrentHashMap<Long, Entry<V>> entries = new ConcurrentHashMap<>();
+	private final Consumer<V> evictionListener;
+	private final Object evictionLock = new Object();
+	private volatile int maxSize;
+	
+	/** incremented on every access, used instead of the time since it's cheaper and never ties */
+	private final AtomicLong accessClock = new AtomicLong(0);
+	
+	private final AtomicLong hitCount = new AtomicLong(0);
+	private final AtomicLong missCount = new AtomicLong(0);
+	private final AtomicLong evictionCount = new AtomicLong(0);
+	
+	
+	
+	private static class Entry<V>
+	{
+		final V value;
+		volatile long lastAccess;
+		
+		Entry(V value, long lastAccess)
+		{
+			this.value = value;
+			this.lastAccess = lastAccess;
+		}
+		
+	}
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	/** @param evictionListener called with every value that is removed from the cache, including by {@link ConcurrentLongLruCache#clear()} */
+	public ConcurrentLongLruCache(int maxSize, Consumer<V> evictionListener)
+	{
+		this.maxSize = Math.max(1, maxSize);
+		this.evictionListener = evictionListener;
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/** @return null if the key isn't cached */
+	public V get(long key)
+	{
+		Entry<V> entry = this.entries.get(key);
+		if (entry == null)
+		{
+			this.missCount.incrementAndGet();
+			return null;
+		}
+		
+		entry.lastAccess = this.accessClock.incrementAndGet();
+		this.hitCount.incrementAndGet();
+		return entry.value;
+	}
+	
+	/**
+	 * Adds the value if the key isn't already cached.
+	 * @return the value that was already cached, or null if the given value was added
+	 */
+	public V putIfAbsent(long key, V value)
+	{
+		Entry<V> existingEntry = this.entries.putIfAbsent(key, new Entry<>(value, this.accessClock.incrementAndGet()));
+		if (existingEntry != null)
+		{
+			existingEntry.lastAccess = this.accessClock.incrementAndGet();
+			return existingEntry.value;
+		}
+		
+		this.trimToSize(this.maxSize);
+		return null;
+	}
+	
+	/** Evicts the least recently used entries until at most the given number of entries are left. */
+	public void trimToSize(int size)
+	{
+		if (this.entries.size() <= size)
+		{
+			return;
+		}
+		
+		synchronized (this.evictionLock)
+		{
+			while (this.entries.size() > size)
+			{
+				Map.Entry<Long, Entry<V>> oldest = null;
+				for (Map.Entry<Long, Entry<V>> mapEntry : this.entries.entrySet())
+				{
+					if (oldest == null || mapEntry.getValue().lastAccess < oldest.getValue().lastAccess)
+					{
+						oldest = mapEntry;
+					}
+				}
+				
+				if (oldest == null)
+				{
+					return;
+				}
+				
+				if (this.entries.remove(oldest.getKey(), oldest.getValue()))
+				{
+					this.evictionCount.incrementAndGet();
+					this.evictionListener.accept(oldest.getValue().value);
+				}
+			}
+		}
+	}
+	
+	/** Removes every entry, each value is passed to the eviction listener. */
+	public void clear()
+	{
+		synchronized (this.evictionLock)
+		{
+			for (Long key : this.entries.keySet())
+			{
+				Entry<V> entry = this.entries.remove(key);
+				if (entry != null)
+				{
+					this.evictionListener.accept(entry.value);
+				}
+			}
+		}
+	}
+	
+	
+	
+	//=====================//
+	// getters and setters //
+	//=====================//
+	
+	public int size() { return this.entries.size(); }
+	
+	public int getMaxSize() { return this.maxSize; }
+	public void setMaxSize(int maxSize)
+	{
+		this.maxSize = Math.max(1, maxSize);
+		this.trimToSize(this.maxSize);
+	}
+	
+	public long getHitCount() { return this.hitCount.get(); }
+	public long getMissCount() { return this.missCount.get(); }
+	public long getEvictionCount() { return this.evictionCount.get(); }
+	
+	@Override
+	public String toString()
+	{
+		long hits = this.hitCount.get();
+		long misses = this.missCount.get();
+		return "size: [" + this.entries.size() + "/" + this.maxSize + "], hits: [" + hits + "], misses: [" + misses + "], evictions: [" + this.evictionCount.get() + "]"
+				+ ((hits + misses > 0) ? ", hit rate: [" + (100 * hits / (hits + misses)) + "%]" : "");
+	}
+	
+}
\ No newline at end of file
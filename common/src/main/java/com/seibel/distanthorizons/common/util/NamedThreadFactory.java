@@ -0,0 +1,54 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a readable name,
+ * so they can be easily found in thread dumps and profilers.
+ */
+public class NamedThreadFactory implements ThreadFactory
+{
+	private final String threadName;
+	private final int priority;
+	private final AtomicInteger threadCount = new AtomicInteger(0);
+	
+	
+	
+	public NamedThreadFactory(String threadName, int priority)
+	{
+		this.threadName = threadName;
+		this.priority = priority;
+	}
+	
+	
+	
+	@Override
+	public Thread newThread(Runnable runnable)
+	{
+		Thread thread = new Thread(runnable, this.threadName + " Thread " + this.threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		thread.setPriority(this.priority);
+		return thread;
+	}
+	
+}
@@ -0,0 +1,157 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks shared by any number of long keys. <br><br>
+ *
+ * Keys that hash to different stripes can be locked at the same time,
+ * keys that hash to the same stripe share a lock. <br>
+ * Several keys can be locked at once with {@link StripedLocks#lockAll(long[])},
+ * which always locks their stripes in the same order so two threads can't deadlock.
+ */
+public class StripedLocks
+{
+	private final ReentrantLock[] locks;
+	private final int mask;
+	
+	/** how many {@link StripedLocks#lockAll(long[])} calls had to wait for another thread */
+	private final AtomicLong contendedCount = new AtomicLong(0);
+	private final AtomicLong lockCount = new AtomicLong(0);
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	/** @param stripeCount rounded up to the next power of two */
+	public StripedLocks(int stripeCount)
+	{
+		int size = (stripeCount <= 1) ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+		this.locks = new ReentrantLock[size];
+		for (int i = 0; i < size; i++)
+		{
+			this.locks[i] = new ReentrantLock();
+		}
+		this.mask = size - 1;
+	}
+	
+	
+	
+	//=========//
+	// locking //
+	//=========//
+	
+	public int getStripeIndex(long key)
+	{
+		// murmur3's finalizer, so nearby keys end up in different stripes
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key & this.mask;
+	}
+	
+	/**
+	 * Locks the stripe of every given key, waiting if another thread holds any of them.
+	 *
+	 * @return the locked stripes, which must be given to {@link StripedLocks#unlockAll(int[])}
+	 * @throws InterruptedException if interrupted while waiting, no stripes will be held
+	 */
+	public int[] lockAll(long[] keys) throws InterruptedException
+	{
+		int[] stripes = new int[keys.length];
+		for (int i = 0; i < keys.length; i++)
+		{
+			stripes[i] = this.getStripeIndex(keys[i]);
+		}
+		Arrays.sort(stripes);
+		
+		// remove duplicates, a stripe can only be locked once per call
+		int stripeCount = 0;
+		for (int i = 0; i < stripes.length; i++)
+		{
+			if (i == 0 || stripes[i] != stripes[i - 1])
+			{
+				stripes[stripeCount++] = stripes[i];
+			}
+		}
+		stripes = Arrays.copyOf(stripes, stripeCount);
+		
+		boolean contended = false;
+		int lockedCount = 0;
+		try
+		{
+			for (int stripe : stripes)
+			{
+				ReentrantLock lock = this.locks[stripe];
+				if (!lock.tryLock())
+				{
+					contended = true;
+					lock.lockInterruptibly();
+				}
+				lockedCount++;
+			}
+		}
+		finally
+		{
+			if (lockedCount != stripes.length)
+			{
+				for (int i = lockedCount - 1; i >= 0; i--)
+				{
+					this.locks[stripes[i]].unlock();
+				}
+			}
+		}
+		
+		this.lockCount.incrementAndGet();
+		if (contended)
+		{
+			this.contendedCount.incrementAndGet();
+		}
+		return stripes;
+	}
+	
+	public void unlockAll(int[] stripes)
+	{
+		for (int i = stripes.length - 1; i >= 0; i--)
+		{
+			this.locks[stripes[i]].unlock();
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	public int getStripeCount() { return this.locks.length; }
+	
+	@Override
+	public String toString() { return "stripes: [" + this.locks.length + "], locked: [" + this.lockCount.get() + "], had to wait: [" + this.contendedCount.get() + "]"; }
+	
+}
\ No newline at end of file
@@ -0,0 +1,356 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.chunk;
+
+import com.seibel.distanthorizons.common.wrappers.block.BlockStateWrapper;
+import com.seibel.distanthorizons.core.pos.DhBlockPos;
+import com.seibel.distanthorizons.core.pos.DhChunkPos;
+import com.seibel.distanthorizons.core.util.LodUtil;
+import com.seibel.distanthorizons.core.wrapperInterfaces.block.IBlockStateWrapper;
+import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
+import com.seibel.distanthorizons.core.wrapperInterfaces.world.IBiomeWrapper;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.ArrayList;
+
+/**
+ * A read-only chunk decoded straight from a region file's palettes and packed arrays,
+ * without building a {@link net.minecraft.world.level.chunk.LevelChunk}. <br><br>
+ *
+ * Block states and biomes are looked up directly in each section's packed data,
+ * the same way vanilla's {@link net.minecraft.world.level.chunk.PalettedContainer} does. <br>
+ * There is no vanilla lighting for these chunks, so they are always lit by DH's lighting engine.
+ *
+ * @see com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.FastChunkDecoder
+ */
+public class DecodedChunkWrapper implements IChunkWrapper
+{
+	private static final int BLOCKS_PER_SECTION_SIDE_BITS = 4;
+	private static final int BIOMES_PER_SECTION_SIDE_BITS = 2;
+	
+	private final DhChunkPos chunkPos;
+	private final int minBuildHeight;
+	private final int height;
+	/** indexed by section index, the lowest section is 0 */
+	private final Section[] sections;
+	/** the first available y position of each column, indexed by x + z * 16 */
+	private final int[] worldSurfaceHeights;
+	/** the first available y position of each column, indexed by x + z * 16 */
+	private final int[] motionBlockingHeights;
+	
+	private boolean isDhLightCorrect = false;
+	
+	private ChunkLightStorage blockLightStorage;
+	private ChunkLightStorage skyLightStorage;
+	
+	private ArrayList<DhBlockPos> blockLightPosList = null;
+	
+	
+	
+	/** One 16x16x16 section's block states and biomes, as they are stored on disk. */
+	public static class Section
+	{
+		final BlockState[] blockPalette;
+		final IBlockStateWrapper[] blockWrapperPalette;
+		/** null if the palette only has one entry */
+		final long[] blockData;
+		final int blockBits;
+		
+		final IBiomeWrapper[] biomePalette;
+		/** null if the palette only has one entry */
+		final long[] biomeData;
+		final int biomeBits;
+		
+		/**
+		 * @param blockWrapperPalette must be the same length as blockPalette
+		 * @param blockData null if blockBits is 0
+		 * @param biomeData null if biomeBits is 0
+		 */
+		public Section(
+				BlockState[] blockPalette, IBlockStateWrapper[] blockWrapperPalette, long[] blockData, int blockBits,
+				IBiomeWrapper[] biomePalette, long[] biomeData, int biomeBits)
+		{
+			this.blockPalette = blockPalette;
+			this.blockWrapperPalette = blockWrapperPalette;
+			this.blockData = blockData;
+			this.blockBits = blockBits;
+			
+			this.biomePalette = biomePalette;
+			this.biomeData = biomeData;
+			this.biomeBits = biomeBits;
+		}
+		
+		int getBlockPaletteIndex(int relX, int sectionRelY, int relZ)
+		{
+			int index = (((sectionRelY << BLOCKS_PER_SECTION_SIDE_BITS) | relZ) << BLOCKS_PER_SECTION_SIDE_BITS) | relX;
+			int paletteIndex = unpack(this.blockData, this.blockBits, index);
+			// corrupt data shouldn't crash the import
+			return (paletteIndex < this.blockPalette.length) ? paletteIndex : 0;
+		}
+		
+		IBiomeWrapper getBiome(int quartX, int sectionQuartY, int quartZ)
+		{
+			int index = (((sectionQuartY << BIOMES_PER_SECTION_SIDE_BITS) | quartZ) << BIOMES_PER_SECTION_SIDE_BITS) | quartX;
+			int paletteIndex = unpack(this.biomeData, this.biomeBits, index);
+			return this.biomePalette[(paletteIndex < this.biomePalette.length) ? paletteIndex : 0];
+		}
+		
+		public BlockState getBlockState(int relX, int sectionRelY, int relZ) { return this.blockPalette[this.getBlockPaletteIndex(relX, sectionRelY, relZ)]; }
+		
+		boolean hasOnlyAir()
+		{
+			for (BlockState blockState : this.blockPalette)
+			{
+				if (!blockState.isAir())
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		boolean hasLightSources()
+		{
+			for (BlockState blockState : this.blockPalette)
+			{
+				if (blockState.getLightEmission() > 0)
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+		
+	}
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	/**
+	 * @param sections indexed by section index, the lowest section is 0. Sections that aren't stored on disk should be all air.
+	 * @param worldSurfaceHeights the first available y position of each column, indexed by x + z * 16
+	 * @param motionBlockingHeights the first available y position of each column, indexed by x + z * 16
+	 */
+	public DecodedChunkWrapper(ChunkPos chunkPos, int minBuildHeight, int height, Section[] sections, int[] worldSurfaceHeights, int[] motionBlockingHeights)
+	{
+		this.chunkPos = new DhChunkPos(chunkPos.x, chunkPos.z);
+		this.minBuildHeight = minBuildHeight;
+		this.height = height;
+		this.sections = sections;
+		this.worldSurfaceHeights = worldSurfaceHeights;
+		this.motionBlockingHeights = motionBlockingHeights;
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	@Override
+	public int getHeight() { return this.height; }
+	
+	@Override
+	public int getMinBuildHeight() { return this.minBuildHeight; }
+	@Override
+	public int getMaxBuildHeight() { return this.minBuildHeight + this.height; }
+	
+	@Override
+	public int getMinFilledHeight()
+	{
+		for (int index = 0; index < this.sections.length; index++)
+		{
+			if (!this.sections[index].hasOnlyAir())
+			{
+				// convert from an index to a block coordinate
+				return this.minBuildHeight + index * LodUtil.CHUNK_WIDTH;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+	
+	
+	@Override
+	public int getSolidHeightMapValue(int xRel, int zRel) { return this.worldSurfaceHeights[xRel + zRel * LodUtil.CHUNK_WIDTH]; }
+	
+	@Override
+	public int getLightBlockingHeightMapValue(int xRel, int zRel) { return this.motionBlockingHeights[xRel + zRel * LodUtil.CHUNK_WIDTH]; }
+	
+	
+	
+	@Override
+	public IBiomeWrapper getBiome(int relX, int relY, int relZ)
+	{
+		// positions outside the chunk use the closest section's biomes
+		int clampedY = Math.max(this.minBuildHeight, Math.min(this.getMaxBuildHeight() - 1, relY));
+		int sectionIndex = (clampedY - this.minBuildHeight) >> BLOCKS_PER_SECTION_SIDE_BITS;
+		Section section = this.sections[sectionIndex];
+		int sectionRelY = clampedY - this.minBuildHeight - sectionIndex * LodUtil.CHUNK_WIDTH;
+		return section.getBiome(relX >> 2, sectionRelY >> 2, relZ >> 2);
+	}
+	
+	@Override
+	public DhChunkPos getChunkPos() { return this.chunkPos; }
+	
+	@Override
+	public int getMaxBlockX() { return this.getMinBlockX() + LodUtil.CHUNK_WIDTH - 1; }
+	@Override
+	public int getMaxBlockZ() { return this.getMinBlockZ() + LodUtil.CHUNK_WIDTH - 1; }
+	@Override
+	public int getMinBlockX() { return this.chunkPos.x * LodUtil.CHUNK_WIDTH; }
+	@Override
+	public int getMinBlockZ() { return this.chunkPos.z * LodUtil.CHUNK_WIDTH; }
+	
+	@Override
+	public long getLongChunkPos() { return ChunkPos.asLong(this.chunkPos.x, this.chunkPos.z); }
+	
+	@Override
+	public void setIsDhLightCorrect(boolean isDhLightCorrect) { this.isDhLightCorrect = isDhLightCorrect; }
+	
+	/** decoded chunks have no vanilla lighting, so DH's lighting is always used */
+	@Override
+	public void setUseDhLighting(boolean useDhLighting) { }
+	
+	@Override
+	public boolean isLightCorrect() { return this.isDhLightCorrect; }
+	
+	
+	@Override
+	public int getDhBlockLight(int relX, int y, int relZ) { return this.getBlockLightStorage().get(relX, y, relZ); }
+	@Override
+	public void setDhBlockLight(int relX, int y, int relZ, int lightValue) { this.getBlockLightStorage().set(relX, y, relZ, lightValue); }
+	
+	private ChunkLightStorage getBlockLightStorage()
+	{
+		if (this.blockLightStorage == null)
+		{
+			this.blockLightStorage = new ChunkLightStorage(this.getMinBuildHeight(), this.getMaxBuildHeight());
+		}
+		return this.blockLightStorage;
+	}
+	
+	
+	@Override
+	public int getDhSkyLight(int relX, int y, int relZ) { return this.getSkyLightStorage().get(relX, y, relZ); }
+	@Override
+	public void setDhSkyLight(int relX, int y, int relZ, int lightValue) { this.getSkyLightStorage().set(relX, y, relZ, lightValue); }
+	
+	private ChunkLightStorage getSkyLightStorage()
+	{
+		if (this.skyLightStorage == null)
+		{
+			this.skyLightStorage = new ChunkLightStorage(this.getMinBuildHeight(), this.getMaxBuildHeight());
+		}
+		return this.skyLightStorage;
+	}
+	
+	
+	@Override
+	public int getBlockLight(int relX, int y, int relZ) { return this.getDhBlockLight(relX, y, relZ); }
+	
+	@Override
+	public int getSkyLight(int relX, int y, int relZ) { return this.getDhSkyLight(relX, y, relZ); }
+	
+	@Override
+	public ArrayList<DhBlockPos> getBlockLightPosList()
+	{
+		// only populate the list once
+		if (this.blockLightPosList == null)
+		{
+			this.blockLightPosList = new ArrayList<>();
+			
+			for (int sectionIndex = 0; sectionIndex < this.sections.length; sectionIndex++)
+			{
+				Section section = this.sections[sectionIndex];
+				if (!section.hasLightSources())
+				{
+					continue;
+				}
+				
+				int sectionMinY = this.minBuildHeight + sectionIndex * LodUtil.CHUNK_WIDTH;
+				for (int y = 0; y < LodUtil.CHUNK_WIDTH; y++)
+				{
+					for (int z = 0; z < LodUtil.CHUNK_WIDTH; z++)
+					{
+						for (int x = 0; x < LodUtil.CHUNK_WIDTH; x++)
+						{
+							int paletteIndex = section.getBlockPaletteIndex(x, y, z);
+							if (section.blockPalette[paletteIndex].getLightEmission() > 0)
+							{
+								this.blockLightPosList.add(new DhBlockPos(this.getMinBlockX() + x, sectionMinY + y, this.getMinBlockZ() + z));
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		return this.blockLightPosList;
+	}
+	
+	/** decoded chunks are lit together with the chunks around them by whoever decoded them */
+	@Override
+	public boolean doNearbyChunksExist() { return true; }
+	
+	@Override
+	public String toString() { return this.getClass().getSimpleName() + "[" + this.chunkPos.x + ", " + this.chunkPos.z + "]"; }
+	
+	@Override
+	public IBlockStateWrapper getBlockState(int relX, int relY, int relZ)
+	{
+		if (relY < this.minBuildHeight || relY >= this.getMaxBuildHeight())
+		{
+			return BlockStateWrapper.AIR;
+		}
+		
+		int sectionIndex = (relY - this.minBuildHeight) >> BLOCKS_PER_SECTION_SIDE_BITS;
+		Section section = this.sections[sectionIndex];
+		int sectionRelY = relY - this.minBuildHeight - sectionIndex * LodUtil.CHUNK_WIDTH;
+		return section.blockWrapperPalette[section.getBlockPaletteIndex(relX, sectionRelY, relZ)];
+	}
+	
+	/** the chunk is a snapshot of what was on disk, so it never goes stale */
+	@Override
+	public boolean isStillValid() { return true; }
+	
+	
+	
+	//================//
+	// helper methods //
+	//================//
+	
+	/** reads one value out of vanilla's packed long array format, where values never span two longs */
+	public static int unpack(long[] data, int bits, int index)
+	{
+		if (bits == 0)
+		{
+			return 0;
+		}
+		
+		int valuesPerLong = Long.SIZE / bits;
+		long word = data[index / valuesPerLong];
+		return (int) ((word >>> ((index % valuesPerLong) * bits)) & ((1L << bits) - 1));
+	}
+	
+}
\ No newline at end of file
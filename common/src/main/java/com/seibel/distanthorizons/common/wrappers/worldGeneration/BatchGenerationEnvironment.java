@@ -26,7 +26,6 @@ import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGeneratio
 import com.seibel.distanthorizons.common.wrappers.world.ServerLevelWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.*;
 import com.seibel.distanthorizons.core.dataObjects.transformers.FullDataToRenderDataTransformer;
-import com.seibel.distanthorizons.core.generation.DhLightingEngine;
 import com.seibel.distanthorizons.core.level.IDhServerLevel;
 import com.seibel.distanthorizons.core.config.Config;
 import com.seibel.distanthorizons.core.logging.ConfigBasedLogger;
@@ -38,13 +37,17 @@ import com.seibel.distanthorizons.core.util.gridList.ArrayGridList;
 import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
 import com.seibel.distanthorizons.core.wrapperInterfaces.worldGeneration.AbstractBatchGenerationEnvironmentWrapper;
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.chunk.DecodedChunkWrapper;
+import com.seibel.distanthorizons.core.generation.DhLightingEngine;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
@@ -55,6 +58,7 @@ import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepNoise
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepStructureReference;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepStructureStart;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepSurface;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepSurfaceSketch;
 
 #if POST_MC_1_19_4
 import net.minecraft.core.registries.Registries;
@@ -73,10 +77,12 @@ import net.minecraft.world.level.chunk.UpgradeData;
 import net.minecraft.world.level.chunk.storage.RegionFileStorage;
 import net.minecraft.world.level.levelgen.DebugLevelSource;
 import net.minecraft.world.level.levelgen.FlatLevelSource;
-import net.minecraft.world.level.levelgen.Heightmap;
 import net.minecraft.world.level.levelgen.NoiseBasedChunkGenerator;
 import net.minecraft.nbt.CompoundTag;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 
 /*
 Total:                   3.135214124s
@@ -107,42 +113,113 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 	
 	public static class PerfCalculator
 	{
-		private static final String[] TIME_NAMES = {
-				"total",
-				"setup",
-				"structStart",
-				"structRef",
-				"biome",
-				"noise",
-				"surface",
-				"carver",
-				"feature",
-				"light",
-				"cleanup",
-				//"lodCreation" (No longer used)
-		};
+		/** every step recorded by the {@link EventTimer}s used for world gen, plus the total */
+		public enum ETimedStep
+		{
+			TOTAL("total"),
+			SETUP("setup"),
+			STRUCT_LOCK("structLock"),
+			STRUCT_START("structStart"),
+			STRUCT_REF("structRef"),
+			BIOME("biome"),
+			NOISE("noise"),
+			SURFACE("surface"),
+			CARVER("carver"),
+			FEATURE("feature"),
+			LIGHT("light"),
+			CLEANUP("cleanup"),
+			SKETCH("sketch"),
+			SPARSE("sparse");
+			//LOD_CREATION("lodCreation") (No longer used)
+			
+			public static final ETimedStep[] VALUES = values();
+			
+			public final String timerName;
+			
+			ETimedStep(String timerName) { this.timerName = timerName; }
+			
+			/** @return null if the name isn't a known step */
+			public static ETimedStep fromTimerName(String name)
+			{
+				switch (name)
+				{
+					case "total": return TOTAL;
+					case "setup": return SETUP;
+					case "structLock": return STRUCT_LOCK;
+					case "structStart": return STRUCT_START;
+					case "structRef": return STRUCT_REF;
+					case "biome": return BIOME;
+					case "noise": return NOISE;
+					case "surface": return SURFACE;
+					case "carver": return CARVER;
+					case "feature": return FEATURE;
+					case "light": return LIGHT;
+					case "cleanup": return CLEANUP;
+					case "sketch": return SKETCH;
+					case "sparse": return SPARSE;
+					default: return null;
+				}
+			}
+		}
+		
+		/** shared by every thread, so each generator's histograms cover every event it generated */
+		private static final ConcurrentHashMap<String, LatencyHistogram[]> HISTOGRAMS_BY_GENERATOR = new ConcurrentHashMap<>();
 		
 		public static final int SIZE = 50;
 		ArrayList<Rolling> times = new ArrayList<>();
+		/** indexed by {@link ETimedStep#ordinal()} */
+		final LatencyHistogram[] histograms = createHistograms();
 		
 		public PerfCalculator()
 		{
-			for (int i = 0; i < 11; i++)
+			for (int i = 0; i < ETimedStep.VALUES.length; i++)
 			{
 				times.add(new Rolling(SIZE));
 			}
 		}
 		
-		public void recordEvent(EventTimer event)
+		private static LatencyHistogram[] createHistograms()
 		{
+			LatencyHistogram[] histograms = new LatencyHistogram[ETimedStep.VALUES.length];
+			for (int i = 0; i < histograms.length; i++)
+			{
+				histograms[i] = new LatencyHistogram();
+			}
+			return histograms;
+		}
+		
+		/** @return the histograms for every event generated by the given generator, indexed by {@link ETimedStep#ordinal()} */
+		public static LatencyHistogram[] getHistogramsForGenerator(String generatorName) { return HISTOGRAMS_BY_GENERATOR.computeIfAbsent(generatorName, name -> createHistograms()); }
+		public static Set<String> getGeneratorNames() { return HISTOGRAMS_BY_GENERATOR.keySet(); }
+		
+		public void recordEvent(EventTimer event) { this.recordEvent(event, null); }
+		/** @param generatorName if not null the event will also be recorded in that generator's histograms */
+		public void recordEvent(EventTimer event, String generatorName)
+		{
+			LatencyHistogram[] generatorHistograms = (generatorName != null) ? getHistogramsForGenerator(generatorName) : null;
+			
 			for (EventTimer.Event e : event.events)
 			{
-				String name = e.name;
-				int index = Arrays.asList(TIME_NAMES).indexOf(name);
-				if (index == -1) continue;
-				times.get(index).add(e.timeNs);
+				ETimedStep step = ETimedStep.fromTimerName(e.name);
+				if (step == null) continue;
+				this.record(step, e.timeNs, generatorHistograms);
+			}
+			this.record(ETimedStep.TOTAL, event.getTotalTimeNs(), generatorHistograms);
+		}
+		
+		private void record(ETimedStep step, long timeNs, LatencyHistogram[] generatorHistograms)
+		{
+			int index = step.ordinal();
+			// the rolling averages are only used for logging
+			if (PREF_LOGGER.canMaybeLog())
+			{
+				this.times.get(index).add(timeNs);
+			}
+			this.histograms[index].record(timeNs);
+			if (generatorHistograms != null)
+			{
+				generatorHistograms[index].record(timeNs);
 			}
-			times.get(0).add(event.getTotalTimeNs());
 		}
 		
 		public String toString()
@@ -151,7 +228,8 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			for (int i = 0; i < times.size(); i++)
 			{
 				if (times.get(i).getAverage() == 0) continue;
-				sb.append(TIME_NAMES[i]).append(": ").append(times.get(i).getAverage()).append("\n");
+				sb.append(ETimedStep.VALUES[i].timerName).append(": ").append(times.get(i).getAverage())
+						.append(" (").append(this.histograms[i]).append(")\n");
 			}
 			return sb.toString();
 		}
@@ -162,7 +240,10 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 	
 	//=================Generation Step===================
 	
-	public final LinkedBlockingQueue<GenerationEvent> generationEventList = new LinkedBlockingQueue<>();
+	/** events are removed by their future's completion callback, see {@link BatchGenerationEnvironment#trackEvent} */
+	public final Set<GenerationEvent> generationEventList = ConcurrentHashMap.newKeySet();
+	/** used to find events that have been running for too long */
+	private final GenerationTimeoutWheel timeoutWheel = new GenerationTimeoutWheel();
 	public final GlobalParameters params;
 	public final StepStructureStart stepStructureStart = new StepStructureStart(this);
 	public final StepStructureReference stepStructureReference = new StepStructureReference(this);
@@ -170,15 +251,48 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 	public final StepNoise stepNoise = new StepNoise(this);
 	public final StepSurface stepSurface = new StepSurface(this);
 	public final StepFeatures stepFeatures = new StepFeatures(this);
+	public final StepSurfaceSketch stepSurfaceSketch = new StepSurfaceSketch(this);
 	public boolean unsafeThreadingRecorded = false;
 	public static final long EXCEPTION_TIMER_RESET_TIME = TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS);
 	public static final int EXCEPTION_COUNTER_TRIGGER = 20;
 	public static final int RANGE_TO_RANGE_EMPTY_EXTENSION = 1;
-	public int unknownExceptionCount = 0;
-	public long lastExceptionTriggerTime = 0;
+	public final AtomicInteger unknownExceptionCount = new AtomicInteger(0);
+	public volatile long lastExceptionTriggerTime = 0;
 	
 	private AtomicReference<RegionFileStorageExternalCache> regionFileStorageCacheRef = new AtomicReference<>();
 	
+	/** null if {@link BatchGenerationSettings.Pipeline#enabled} was false when this environment was created */
+	private final GenerationPipeline pipeline;
+	/** how often the pipeline's queue depths should be logged */
+	public static final long PIPELINE_LOG_INTERVAL_NS = TimeUnit.NANOSECONDS.convert(10, TimeUnit.SECONDS);
+	private long lastPipelineLogTime = 0;
+	
+	/** combines nearby requests so they can share border chunks */
+	private final GenerationEventPlanner eventPlanner = new GenerationEventPlanner(this);
+	/** decides which queued event should be generated next */
+	private final GenerationScheduler scheduler;
+	/** used to group the latency histograms by generator */
+	private final String generatorName;
+	private final LatencyHistogramExporter latencyExporter;
+	/** adjusts how many events the scheduler runs at once */
+	private final GenerationConcurrencyController concurrencyController;
+	/** only generates some chunks for the lowest detail levels */
+	private final SparseLatticeGenerator sparseGenerator = new SparseLatticeGenerator();
+	/** 
+	 * partially generated border chunks that can be reused by the next event that needs them, 
+	 * null if border chunks are never generated far enough to be worth caching, see {@link BorderChunkCache#isUseful} 
+	 */
+	@Nullable
+	private final BorderChunkCache borderChunkCache = BorderChunkCache.isUseful(BorderNeeded) ? new BorderChunkCache() : null;
+	/** lights each event's chunks, optionally in parallel */
+	private final ParallelLightingStage lightingStage = new ParallelLightingStage();
+	/** reads each event's chunks from disk before the event starts */
+	private final RegionFilePrefetcher prefetcher = new RegionFilePrefetcher();
+	/** turns stored full chunks straight into LOD ready chunks, without going through {@link ChunkLoader} */
+	private final FastChunkDecoder fastChunkDecoder;
+	/** how many events were emitted straight from stored chunks, without any generation */
+	private final AtomicInteger storedChunkEventCount = new AtomicInteger(0);
+	
 	public RegionFileStorageExternalCache getOrCreateRegionFileCache(RegionFileStorage storage)
 	{
 		RegionFileStorageExternalCache cache = regionFileStorageCacheRef.get();
@@ -284,8 +398,18 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		}
 		
 		this.params = new GlobalParameters(serverlevel);
+		this.pipeline = BatchGenerationSettings.Pipeline.enabled ? new GenerationPipeline(this) : null;
+		this.scheduler = new GenerationScheduler(this.params.level, this::startPrefetch);
+		this.concurrencyController = new GenerationConcurrencyController(this.scheduler, this.params.level.getServer());
+		this.generatorName = this.params.generator.getClass().getSimpleName();
+		this.latencyExporter = new LatencyHistogramExporter(this.params.level.getServer().getServerDirectory());
+		this.fastChunkDecoder = new FastChunkDecoder(this.params.level, serverlevel.getLevelWrapper());
 	}
 	
+	/** @return null if generation events should be run on a single thread */
+	public GenerationPipeline getPipeline() { return this.pipeline; }
+	public GenerationScheduler getScheduler() { return this.scheduler; }
+	
 	
 	
 	
@@ -294,70 +418,167 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		if (!unsafeThreadingRecorded && !future.isDone())
 		{
 			EVENT_LOGGER.error("Unsafe MultiThreading in Chunk Generator: ", new RuntimeException("Concurrent future"));
-			EVENT_LOGGER.error("To increase stability, it is recommended to set world generation threads count to 1.");
+			EVENT_LOGGER.error("To increase stability, world generation will only run one event at a time.");
 			unsafeThreadingRecorded = true;
 		}
 		
 		return future.join();
 	}
 	
+	/** 
+	 * Adds the given event to {@link BatchGenerationEnvironment#generationEventList}
+	 * until it completes and starts watching it for timeouts.
+	 */
+	public void trackEvent(GenerationEvent genEvent)
+	{
+		this.generationEventList.add(genEvent);
+		this.timeoutWheel.add(genEvent, System.nanoTime() + this.getTimeoutDurationNs());
+		
+		genEvent.future.whenComplete((result, throwable) ->
+		{
+			this.generationEventList.remove(genEvent);
+			// otherwise the wheel would keep the event (and any chunks it still references) until its deadline
+			this.timeoutWheel.remove(genEvent);
+			
+			// the event may have failed before using its prefetched chunks
+			RegionFilePrefetcher.PrefetchedChunks prefetchedChunks = genEvent.prefetchedChunks;
+			if (prefetchedChunks != null)
+			{
+				prefetchedChunks.cancel();
+				genEvent.prefetchedChunks = null;
+			}
+			
+			if (throwable == null)
+			{
+				this.concurrencyController.recordCompletedEvent(genEvent);
+			}
+			else if (!genEvent.future.isCancelled())
+			{
+				this.unknownExceptionCount.incrementAndGet();
+				this.lastExceptionTriggerTime = System.nanoTime();
+				EVENT_LOGGER.error("Batching World Generator event ["+genEvent+"] threw an exception: "+throwable.getMessage(), throwable);
+			}
+		});
+	}
+	
+	private long getTimeoutDurationNs() { return TimeUnit.SECONDS.toNanos(Config.Client.Advanced.WorldGenerator.worldGenerationTimeoutLengthInSeconds.get()); }
+	
+	/** called by {@link BatchGenerationEnvironment#timeoutWheel} once an event's last known deadline has passed */
+	private void checkEventTimeout(GenerationEvent event)
+	{
+		if (event.future.isDone())
+		{
+			return;
+		}
+		
+		long timeoutDurationNs = this.getTimeoutDurationNs();
+		long timeoutTime = event.timeoutTime;
+		if (timeoutTime == -1)
+		{
+			// the event is waiting in a queue, check again later
+			this.timeoutWheel.add(event, System.nanoTime() + timeoutDurationNs);
+			return;
+		}
+		else if (!event.hasTimeout(Config.Client.Advanced.WorldGenerator.worldGenerationTimeoutLengthInSeconds.get(), TimeUnit.SECONDS))
+		{
+			// the event has made progress since it was added to the wheel
+			this.timeoutWheel.add(event, timeoutTime + timeoutDurationNs);
+			return;
+		}
+		
+		
+		EVENT_LOGGER.error("Batching World Generator: " + event + " timed out and terminated!");
+		EVENT_LOGGER.info("Dump PrefEvent: " + event.timer);
+		try
+		{
+			if (!event.terminate())
+			{
+				EVENT_LOGGER.error("Failed to terminate the stuck generation event!");
+			}
+		}
+		finally
+		{
+			this.generationEventList.remove(event);
+		}
+	}
+	
 	public void updateAllFutures()
 	{
-		if (this.unknownExceptionCount > 0)
+		if (this.unknownExceptionCount.get() > 0)
 		{
 			if (System.nanoTime() - this.lastExceptionTriggerTime >= EXCEPTION_TIMER_RESET_TIME)
 			{
-				this.unknownExceptionCount = 0;
+				this.unknownExceptionCount.set(0);
 			}
 		}
 		
 		
-		// Update all current out standing jobs
-		Iterator<GenerationEvent> iter = this.generationEventList.iterator();
-		while (iter.hasNext())
+		this.scheduler.updatePlayerPositions();
+		
+		// completed events remove themselves, only events that may have timed out need to be looked at
+		this.timeoutWheel.advance(System.nanoTime(), this::checkEventTimeout);
+		
+		this.concurrencyController.update(this.unsafeThreadingRecorded);
+		this.latencyExporter.tryExport();
+		
+		if (PREF_LOGGER.canMaybeLog()
+			&& System.nanoTime() - this.lastPipelineLogTime >= PIPELINE_LOG_INTERVAL_NS)
 		{
-			GenerationEvent event = iter.next();
-			if (event.future.isDone())
+			this.lastPipelineLogTime = System.nanoTime();
+			if (this.pipeline != null)
 			{
-				if (event.future.isCompletedExceptionally() && !event.future.isCancelled())
-				{
-					try
-					{
-						event.future.get(); // Should throw exception
-						LodUtil.assertNotReach();
-					}
-					catch (Exception e)
-					{
-						this.unknownExceptionCount++;
-						this.lastExceptionTriggerTime = System.nanoTime();
-						EVENT_LOGGER.error("Batching World Generator event ["+event+"] threw an exception: "+e.getMessage(), e);
-					}
-				}
-				
-				iter.remove();
+				PREF_LOGGER.infoInc("{}", this.pipeline);
 			}
-			else if (event.hasTimeout(Config.Client.Advanced.WorldGenerator.worldGenerationTimeoutLengthInSeconds.get(), TimeUnit.SECONDS))
+			PREF_LOGGER.infoInc("{}", this.scheduler);
+			PREF_LOGGER.infoInc("{}", this.concurrencyController);
+			if (this.borderChunkCache != null)
 			{
-				EVENT_LOGGER.error("Batching World Generator: " + event + " timed out and terminated!");
-				EVENT_LOGGER.info("Dump PrefEvent: " + event.timer);
-				try
-				{
-					if (!event.terminate())
-					{
-						EVENT_LOGGER.error("Failed to terminate the stuck generation event!");
-					}
-				}
-				finally
-				{
-					iter.remove();
-				}
+				PREF_LOGGER.infoInc("{}", this.borderChunkCache);
+			}
+			if (BatchGenerationSettings.SurfaceSketch.enabled)
+			{
+				PREF_LOGGER.infoInc("{}", this.stepSurfaceSketch);
+			}
+			if (BatchGenerationSettings.Sparse.enabled)
+			{
+				PREF_LOGGER.infoInc("{}", this.sparseGenerator);
+			}
+			PREF_LOGGER.infoInc("Structure placement locks: {}", StepStructureStart.STRUCTURE_PLACEMENT_LOCKS);
+			PREF_LOGGER.infoInc("{}", this.lightingStage);
+			if (BatchGenerationSettings.Prefetch.enabled)
+			{
+				PREF_LOGGER.infoInc("{}", this.prefetcher);
+			}
+			RegionFileStorageExternalCache regionFileCache = this.regionFileStorageCacheRef.get();
+			if (regionFileCache != null)
+			{
+				PREF_LOGGER.infoInc("{}", regionFileCache);
+			}
+			if (BatchGenerationSettings.ProjectedNbt.enabled || BatchGenerationSettings.ProjectedNbt.compareModes)
+			{
+				PREF_LOGGER.infoInc("{}", ProjectedChunkNbtReader.INSTANCE);
+			}
+			if (BatchGenerationSettings.FastChunkDecode.enabled)
+			{
+				PREF_LOGGER.infoInc("{}, [{}] events emitted from stored chunks", this.fastChunkDecoder, this.storedChunkEventCount.get());
+			}
+			if (this.params.structureStartCache != null)
+			{
+				PREF_LOGGER.infoInc("{}", this.params.structureStartCache);
 			}
 		}
 		
-		if (this.unknownExceptionCount > EXCEPTION_COUNTER_TRIGGER)
+		if (this.unknownExceptionCount.get() > EXCEPTION_COUNTER_TRIGGER
+			&& this.concurrencyController.backOff("too many exceptions"))
+		{
+			// running fewer events at once may be enough to fix the problem
+			EVENT_LOGGER.warn("Too many exceptions in Batching World Generator! Reducing the number of concurrent events.");
+			this.unknownExceptionCount.set(0);
+		}
+		else if (this.unknownExceptionCount.get() > EXCEPTION_COUNTER_TRIGGER)
 		{
 			EVENT_LOGGER.error("Too many exceptions in Batching World Generator! Disabling the generator.");
-			this.unknownExceptionCount = 0;
+			this.unknownExceptionCount.set(0);
 			Config.Client.Advanced.WorldGenerator.enableDistantGeneration.set(false);
 		}
 	}
@@ -377,20 +598,88 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		
 	}
 	
-	public ChunkAccess loadOrMakeChunk(ChunkPos chunkPos)
+	/** Called by {@link GenerationScheduler} for the next few events it will run. */
+	private void startPrefetch(GenerationEvent genEvent)
+	{
+		if (genEvent.prefetchedChunks == null && !genEvent.future.isDone())
+		{
+			genEvent.prefetchedChunks = this.prefetchChunks(genEvent);
+			
+			// the event may have been canceled while the prefetch was started
+			RegionFilePrefetcher.PrefetchedChunks prefetchedChunks = genEvent.prefetchedChunks;
+			if (genEvent.future.isDone() && prefetchedChunks != null)
+			{
+				prefetchedChunks.cancel();
+			}
+		}
+	}
+	
+	/**
+	 * Starts reading the event's chunks (including its border) from disk,
+	 * so they're ready by the time the event runs.
+	 * 
+	 * @return null if prefetching is disabled or couldn't be started
+	 */
+	@Nullable
+	public RegionFilePrefetcher.PrefetchedChunks prefetchChunks(GenerationEvent genEvent)
+	{
+		if (!BatchGenerationSettings.Prefetch.enabled)
+		{
+			return null;
+		}
+		
+		try
+		{
+			RegionFileStorage storage = this.params.level.getChunkSource().chunkMap.worker.storage;
+			Path storageFolderPath = this.getOrCreateRegionFileCache(storage).getStorageFolderPath();
+			return this.prefetcher.prefetch(storageFolderPath,
+					genEvent.minPos.x - MaxBorderNeeded, genEvent.minPos.z - MaxBorderNeeded,
+					genEvent.size + MaxBorderNeeded * 2);
+		}
+		catch (Exception e)
+		{
+			LOAD_LOGGER.warn("DistantHorizons: Unable to prefetch chunks for event [" + genEvent + "]. Error: " + e.getMessage(), e);
+			return null;
+		}
+	}
+	
+	public ChunkAccess loadOrMakeChunk(ChunkPos chunkPos) { return this.loadOrMakeChunk(chunkPos, null, null); }
+	/** 
+	 * @param prefetchedChunks if not null chunks will be taken from here before they are read from disk 
+	 * @param chunkData the chunk's stored data if it has already been read, otherwise null
+	 */
+	public ChunkAccess loadOrMakeChunk(ChunkPos chunkPos, @Nullable RegionFilePrefetcher.PrefetchedChunks prefetchedChunks, @Nullable CompoundTag chunkData)
+	{
+		ChunkAccess chunk = this.loadStoredChunk(chunkPos, prefetchedChunks, chunkData);
+		return (chunk != null) ? chunk : EmptyChunk(this.params.level, chunkPos);
+	}
+	
+	/** 
+	 * Same as {@link BatchGenerationEnvironment#loadOrMakeChunk(ChunkPos, RegionFilePrefetcher.PrefetchedChunks, CompoundTag)}
+	 * @return null if the chunk isn't stored or couldn't be read
+	 */
+	@Nullable
+	private ChunkAccess loadStoredChunk(ChunkPos chunkPos, @Nullable RegionFilePrefetcher.PrefetchedChunks prefetchedChunks, @Nullable CompoundTag chunkData)
 	{
 		ServerLevel level = this.params.level;
 		
-		CompoundTag chunkData = null;
 		try
 		{
-			// Warning: if multiple threads attempt to access this method at the same time,
-			// it can throw EOFExceptions that are caught and logged by Minecraft
-			//chunkData = level.getChunkSource().chunkMap.readChunk(chunkPos);
+			if (chunkData == null && prefetchedChunks != null)
+			{
+				chunkData = prefetchedChunks.take(chunkPos);
+			}
 			
-			RegionFileStorage storage = this.params.level.getChunkSource().chunkMap.worker.storage;
-			RegionFileStorageExternalCache cache = this.getOrCreateRegionFileCache(storage);
-			chunkData = cache.read(chunkPos);
+			if (chunkData == null)
+			{
+				// Warning: if multiple threads attempt to access this method at the same time,
+				// it can throw EOFExceptions that are caught and logged by Minecraft
+				//chunkData = level.getChunkSource().chunkMap.readChunk(chunkPos);
+				
+				RegionFileStorage storage = this.params.level.getChunkSource().chunkMap.worker.storage;
+				RegionFileStorageExternalCache cache = this.getOrCreateRegionFileCache(storage);
+				chunkData = cache.read(chunkPos);
+			}
 		}
 		catch (Exception e)
 		{
@@ -399,7 +688,7 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		
 		if (chunkData == null)
 		{
-			return EmptyChunk(level, chunkPos);
+			return null;
 		}
 		else
 		{
@@ -411,7 +700,7 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			catch (Exception e)
 			{
 				LOAD_LOGGER.error("DistantHorizons: Couldn't load or make chunk " + chunkPos + ". Returning an empty chunk. Error: " + e.getMessage(), e);
-				return EmptyChunk(level, chunkPos);
+				return null;
 			}
 		}
 	}
@@ -430,75 +719,332 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 	{
 		EVENT_LOGGER.debug("Lod Generate Event: " + genEvent.minPos);
 		
-		ArrayGridList<ChunkWrapper> chunkWrapperList;
-		DhLitWorldGenRegion region;
-		DummyLightEngine lightEngine;
-		LightGetterAdaptor adaptor;
+		if (this.tryEmitStoredChunks(genEvent))
+		{
+			return;
+		}
+		
+		try
+		{
+			try
+			{
+				this.prepareGenerationRegion(genEvent);
+				
+				this.generateDirect(genEvent, genEvent.chunkWrapperList, MaxBorderNeeded, genEvent.targetGenerationStep, genEvent.region);
+				genEvent.timer.nextEvent("cleanup");
+			}
+			catch (StepStructureStart.StructStartCorruptedException f)
+			{
+				ThreadedParameters.getOrMake(this.params).markAsInvalid();
+				throw (RuntimeException) f.getCause();
+			}
+			
+			this.emitGeneratedChunks(genEvent);
+			this.cacheBorderChunks(genEvent);
+		}
+		finally
+		{
+			// the chunks are no longer needed
+			genEvent.region = null;
+			genEvent.chunkWrapperList = null;
+		}
+	}
+	
+	/**
+	 * Peeks at each chunk the given event needs from disk, which only reads each chunk's status. 
+	 * Chunks that were already prefetched aren't read again, their status is taken from the prefetched data. <br>
+	 * If the {@link FastChunkDecoder} is enabled and every chunk the event emits is already stored as a full chunk, 
+	 * they are decoded, lit and emitted directly, skipping {@link ChunkLoader} and generation entirely. <br>
+	 * Otherwise the stored chunks {@link ChunkLoader} would reject are recorded in
+	 * {@link GenerationEvent#unloadableStoredChunks}, so they aren't read in full just to be thrown away,
+	 * and any chunks that were already read are kept in {@link GenerationEvent#storedChunkData}.
+	 * 
+	 * @return true if the event's chunks were emitted and the event is done
+	 */
+	public boolean tryEmitStoredChunks(GenerationEvent genEvent) throws InterruptedException
+	{
+		if (!BatchGenerationSettings.StoredChunkPeek.enabled && !BatchGenerationSettings.FastChunkDecode.enabled)
+		{
+			return false;
+		}
 		
 		int borderSize = MaxBorderNeeded;
 		int refSize = genEvent.size + borderSize * 2;
 		int refPosX = genEvent.minPos.x - borderSize;
 		int refPosZ = genEvent.minPos.z - borderSize;
 		
-		try
+		RegionFileStorage storage = this.params.level.getChunkSource().chunkMap.worker.storage;
+		RegionFileStorageExternalCache cache = this.getOrCreateRegionFileCache(storage);
+		
+		// only the statuses are read here, the chunks are only read in full once we know generation can be skipped
+		RegionFilePrefetcher.PrefetchedChunks prefetchedChunks = genEvent.prefetchedChunks;
+		StoredChunkSummary[] summaries = new StoredChunkSummary[refSize * refSize];
+		CompoundTag[] chunkDataArray = new CompoundTag[refSize * refSize];
+		LongOpenHashSet unloadableChunks = new LongOpenHashSet();
+		boolean innerChunksFull = true;
+		for (int z = 0; z < refSize; z++)
 		{
-			ArrayGridList<ChunkAccess> totalChunks;
-			
-			adaptor = new LightGetterAdaptor(this.params.level);
-			lightEngine = new DummyLightEngine(adaptor);
-			
-			EmptyChunkGenerator generator = (int x, int z) ->
+			for (int x = 0; x < refSize; x++)
 			{
-				ChunkPos chunkPos = new ChunkPos(x, z);
-				ChunkAccess target = null;
+				ChunkPos chunkPos = new ChunkPos(x + refPosX, z + refPosZ);
+				boolean isBorderChunk = x < borderSize || x >= refSize - borderSize || z < borderSize || z >= refSize - borderSize;
+				
+				StoredChunkSummary summary;
 				try
 				{
-					target = this.loadOrMakeChunk(chunkPos);
+					CompoundTag chunkData = (prefetchedChunks != null) ? prefetchedChunks.take(chunkPos) : null;
+					if (chunkData != null)
+					{
+						chunkDataArray[x + z * refSize] = chunkData;
+						summary = ProjectedChunkNbtReader.summarize(chunkData);
+					}
+					else
+					{
+						summary = cache.peek(chunkPos);
+					}
 				}
-				catch (RuntimeException e2)
+				catch (Exception e)
 				{
-					// Continue...
+					// the chunk will be read in full later, which will report the problem
+					summary = null;
 				}
+				summaries[x + z * refSize] = summary;
 				
-				if (target == null)
+				if (summary != null && !summary.canBeLoaded())
 				{
-					target = new ProtoChunk(chunkPos, UpgradeData.EMPTY
-							#if POST_MC_1_17_1 , params.level #endif
-							#if POST_MC_1_18_2 , params.biomes, null #endif
-					);
+					unloadableChunks.add(chunkPos.toLong());
 				}
-				return target;
-			};
-			
-			totalChunks = new ArrayGridList<>(refSize, (x, z) -> generator.generate(x + refPosX, z + refPosZ));
-			
-			genEvent.refreshTimeout();
-			region = new DhLitWorldGenRegion(params.level, lightEngine, totalChunks,
-					ChunkStatus.STRUCTURE_STARTS, refSize / 2, generator);
-			adaptor.setRegion(region);
-			genEvent.threadedParam.makeStructFeat(region, params);
+				if (!isBorderChunk && (summary == null || !summary.isFull()))
+				{
+					innerChunksFull = false;
+				}
+			}
+		}
+		
+		if (!innerChunksFull || !BatchGenerationSettings.FastChunkDecode.enabled)
+		{
+			genEvent.unloadableStoredChunks = unloadableChunks.isEmpty() ? null : unloadableChunks;
+			keepStoredChunkData(genEvent, chunkDataArray, refPosX, refPosZ, refSize);
+			return false;
+		}
+		
+		
+		// border chunks are only decoded so they can be read as lighting neighbors
+		ArrayList<IChunkWrapper> decodedChunks = new ArrayList<>(refSize * refSize);
+		ArrayList<DecodedChunkWrapper> innerChunks = new ArrayList<>(genEvent.size * genEvent.size);
+		for (int z = 0; z < refSize; z++)
+		{
+			for (int x = 0; x < refSize; x++)
+			{
+				StoredChunkSummary summary = summaries[x + z * refSize];
+				if (summary == null || !summary.isFull())
+				{
+					continue;
+				}
+				
+				ChunkPos chunkPos = new ChunkPos(x + refPosX, z + refPosZ);
+				boolean isBorderChunk = x < borderSize || x >= refSize - borderSize || z < borderSize || z >= refSize - borderSize;
+				
+				DecodedChunkWrapper decodedChunk = null;
+				try
+				{
+					CompoundTag chunkData = chunkDataArray[x + z * refSize];
+					if (chunkData == null)
+					{
+						chunkData = cache.read(chunkPos);
+						chunkDataArray[x + z * refSize] = chunkData;
+					}
+					
+					if (chunkData != null && FastChunkDecoder.canDecode(chunkPos, chunkData))
+					{
+						decodedChunk = this.fastChunkDecoder.decode(chunkPos, chunkData);
+					}
+				}
+				catch (Exception e)
+				{
+					LOAD_LOGGER.warn("DistantHorizons: Couldn't decode stored chunk " + chunkPos + ". Error: " + e.getMessage(), e);
+				}
+				
+				if (decodedChunk == null)
+				{
+					if (!isBorderChunk)
+					{
+						// let the normal loader handle this event
+						keepStoredChunkData(genEvent, chunkDataArray, refPosX, refPosZ, refSize);
+						return false;
+					}
+					continue;
+				}
+				
+				decodedChunks.add(decodedChunk);
+				if (!isBorderChunk)
+				{
+					innerChunks.add(decodedChunk);
+				}
+			}
+		}
+		genEvent.refreshTimeout();
+		
+		
+		genEvent.timer.nextEvent("light");
+		int maxSkyLight = this.serverlevel.getServerLevelWrapper().hasSkyLight() ? 15 : 0;
+		for (DecodedChunkWrapper chunk : innerChunks)
+		{
+			throwIfThreadInterrupted();
+			DhLightingEngine.INSTANCE.lightChunk(chunk, decodedChunks, maxSkyLight);
+		}
+		genEvent.refreshTimeout();
+		
+		genEvent.timer.nextEvent("cleanup");
+		for (DecodedChunkWrapper chunk : innerChunks)
+		{
+			genEvent.resultConsumer.accept(chunk);
+		}
+		
+		// anything left wasn't needed
+		if (genEvent.prefetchedChunks != null)
+		{
+			genEvent.prefetchedChunks.cancel();
+			genEvent.prefetchedChunks = null;
+		}
+		
+		this.storedChunkEventCount.incrementAndGet();
+		genEvent.timer.complete();
+		genEvent.refreshTimeout();
+		ThreadedParameters.getOrMake(this.params).perf.recordEvent(genEvent.timer, this.generatorName);
+		if (PREF_LOGGER.canMaybeLog())
+		{
+			PREF_LOGGER.infoInc("{}", genEvent.timer);
+		}
+		return true;
+	}
+	
+	/** Keeps the chunks {@link BatchGenerationEnvironment#tryEmitStoredChunks} already read, so they aren't read again. */
+	private static void keepStoredChunkData(GenerationEvent genEvent, CompoundTag[] chunkDataArray, int refPosX, int refPosZ, int refSize)
+	{
+		LongOpenHashSet unloadableChunks = genEvent.unloadableStoredChunks;
+		Long2ObjectOpenHashMap<CompoundTag> storedChunkData = new Long2ObjectOpenHashMap<>();
+		for (int z = 0; z < refSize; z++)
+		{
+			for (int x = 0; x < refSize; x++)
+			{
+				CompoundTag chunkData = chunkDataArray[x + z * refSize];
+				long chunkPos = ChunkPos.asLong(x + refPosX, z + refPosZ);
+				if (chunkData != null && (unloadableChunks == null || !unloadableChunks.contains(chunkPos)))
+				{
+					storedChunkData.put(chunkPos, chunkData);
+				}
+			}
+		}
+		genEvent.storedChunkData = storedChunkData.isEmpty() ? null : storedChunkData;
+	}
+	
+	/**
+	 * Loads (or creates) every chunk needed by the given event, including the border,
+	 * and creates the {@link DhLitWorldGenRegion} they will be generated in. <br>
+	 * The results are stored in {@link GenerationEvent#chunkWrapperList} and {@link GenerationEvent#region}.
+	 */
+	public void prepareGenerationRegion(GenerationEvent genEvent)
+	{
+		DhLitWorldGenRegion region;
+		DummyLightEngine lightEngine;
+		LightGetterAdaptor adaptor;
+		
+		int borderSize = MaxBorderNeeded;
+		int refSize = genEvent.size + borderSize * 2;
+		int refPosX = genEvent.minPos.x - borderSize;
+		int refPosZ = genEvent.minPos.z - borderSize;
+		
+		ArrayGridList<ChunkAccess> totalChunks;
+		
+		adaptor = new LightGetterAdaptor(this.params.level);
+		lightEngine = new DummyLightEngine(adaptor);
+		
+		RegionFilePrefetcher.PrefetchedChunks prefetchedChunks = genEvent.prefetchedChunks;
+		LongOpenHashSet unloadableStoredChunks = genEvent.unloadableStoredChunks;
+		Long2ObjectOpenHashMap<CompoundTag> storedChunkData = genEvent.storedChunkData;
+		genEvent.storedChunkData = null;
+		EmptyChunkGenerator generator = (int x, int z) ->
+		{
+			ChunkPos chunkPos = new ChunkPos(x, z);
 			
+			// a previous event may have already generated this chunk as part of its border
+			ChunkAccess target = (this.borderChunkCache != null) ? this.borderChunkCache.take(x, z) : null;
+			if (target != null)
+			{
+				return target;
+			}
 			
-			chunkWrapperList = new ArrayGridList<>(totalChunks.gridSize);
-			totalChunks.forEachPos((x, z) ->
+			// the stored chunk is a proto chunk that would be thrown away, so don't bother reading it
+			if (unloadableStoredChunks == null || !unloadableStoredChunks.contains(chunkPos.toLong()))
 			{
-				ChunkAccess chunk = totalChunks.get(x, z);
-				if (chunk != null)
+				try
 				{
-					chunkWrapperList.set(x, z, new ChunkWrapper(chunk, region, serverlevel.getLevelWrapper()));
+					CompoundTag chunkData = null;
+					if (storedChunkData != null)
+					{
+						// the region may ask for missing chunks from more than one thread
+						synchronized (storedChunkData)
+						{
+							chunkData = storedChunkData.remove(chunkPos.toLong());
+						}
+					}
+					target = this.loadStoredChunk(chunkPos, prefetchedChunks, chunkData);
+					if (target != null)
+					{
+						// the stored chunk may be at any status and may change on disk, so it must never be cached
+						genEvent.storedChunkPositions.add(chunkPos.toLong());
+					}
 				}
-			});
+				catch (RuntimeException e2)
+				{
+					// Continue...
+				}
+			}
 			
-			this.generateDirect(genEvent, chunkWrapperList, borderSize, genEvent.targetGenerationStep, region);
-			genEvent.timer.nextEvent("cleanup");
-		}
-		catch (StepStructureStart.StructStartCorruptedException f)
+			if (target == null)
+			{
+				target = new ProtoChunk(chunkPos, UpgradeData.EMPTY
+						#if POST_MC_1_17_1 , params.level #endif
+						#if POST_MC_1_18_2 , params.biomes, null #endif
+				);
+			}
+			return target;
+		};
+		
+		totalChunks = new ArrayGridList<>(refSize, (x, z) -> generator.generate(x + refPosX, z + refPosZ));
+		
+		genEvent.refreshTimeout();
+		region = new DhLitWorldGenRegion(params.level, lightEngine, totalChunks,
+				ChunkStatus.STRUCTURE_STARTS, refSize / 2, generator);
+		adaptor.setRegion(region);
+		
+		
+		ArrayGridList<ChunkWrapper> chunkWrapperList = new ArrayGridList<>(totalChunks.gridSize);
+		totalChunks.forEachPos((x, z) ->
 		{
-			genEvent.threadedParam.markAsInvalid();
-			throw (RuntimeException) f.getCause();
-		}
+			ChunkAccess chunk = totalChunks.get(x, z);
+			if (chunk != null)
+			{
+				chunkWrapperList.set(x, z, new ChunkWrapper(chunk, region, serverlevel.getLevelWrapper()));
+			}
+		});
 		
-		ArrayGridList<ChunkWrapper> finalGenChunks = GetCutoutFrom(chunkWrapperList, borderSize);
+		genEvent.region = region;
+		genEvent.chunkWrapperList = chunkWrapperList;
+		
+		// anything left wasn't needed
+		if (prefetchedChunks != null)
+		{
+			prefetchedChunks.cancel();
+			genEvent.prefetchedChunks = null;
+		}
+	}
+	
+	/** Sends every chunk inside the event's border to the event's result consumer. */
+	public void emitGeneratedChunks(GenerationEvent genEvent)
+	{
+		ArrayGridList<ChunkWrapper> finalGenChunks = GetCutoutFrom(genEvent.chunkWrapperList, MaxBorderNeeded);
 		for (int offsetY = 0; offsetY < finalGenChunks.gridSize; offsetY++)
 		{
 			for (int offsetX = 0; offsetX < finalGenChunks.gridSize; offsetX++)
@@ -548,127 +1094,225 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		
 		genEvent.timer.complete();
 		genEvent.refreshTimeout();
+		// the histograms don't allocate, so they are always recorded for exporting,
+		// the rolling averages are only updated when they'll be logged
+		ThreadedParameters.getOrMake(this.params).perf.recordEvent(genEvent.timer, this.generatorName);
 		if (PREF_LOGGER.canMaybeLog())
 		{
-			genEvent.threadedParam.perf.recordEvent(genEvent.timer);
 			PREF_LOGGER.infoInc("{}", genEvent.timer);
 		}
 	}
 	
-	public void generateDirect(
-			GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunksToGenerate, int border,
-			EDhApiWorldGenerationStep step, DhLitWorldGenRegion region) throws InterruptedException
+	/** 
+	 * Hands the event's border chunks to {@link BatchGenerationEnvironment#borderChunkCache}. <br>
+	 * Should only be called once the event is done with its chunks. <br>
+	 * Nothing is cached if the event decorated any of its chunks,
+	 * since the features may have spilled over into the border chunks.
+	 * Chunks that were loaded from disk are never cached.
+	 */
+	public void cacheBorderChunks(GenerationEvent genEvent)
 	{
-		if (Thread.interrupted())
+		if (this.borderChunkCache == null)
 		{
 			return;
 		}
 		
-		try
+		ArrayGridList<ChunkWrapper> chunkWrapperList = genEvent.chunkWrapperList;
+		int innerMin = MaxBorderNeeded;
+		int innerMax = chunkWrapperList.gridSize - MaxBorderNeeded;
+		for (int z = innerMin; z < innerMax; z++)
 		{
-			chunksToGenerate.forEach((chunkWrapper) ->
+			for (int x = innerMin; x < innerMax; x++)
 			{
-				ChunkAccess chunk = chunkWrapper.getChunk();
-				if (chunk instanceof ProtoChunk)
+				ChunkWrapper wrappedChunk = chunkWrapperList.get(x, z);
+				if (wrappedChunk != null && BorderChunkCache.writesIntoNeighbours(wrappedChunk.getChunk()))
 				{
-					ProtoChunk protoChunk = ((ProtoChunk) chunk);
-					
-					protoChunk.setLightEngine(region.getLightEngine());
+					return;
 				}
-			});
-			
-			if (step == EDhApiWorldGenerationStep.EMPTY)
-			{
-				return;
-			}
-			
-			genEvent.timer.nextEvent("structStart");
-			throwIfThreadInterrupted();
-			this.stepStructureStart.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.STRUCTURE_START));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.STRUCTURE_START)
-			{
-				return;
-			}
-			
-			genEvent.timer.nextEvent("structRef");
-			throwIfThreadInterrupted();
-			this.stepStructureReference.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.STRUCTURE_REFERENCE));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.STRUCTURE_REFERENCE)
-			{
-				return;
-			}
-			
-			genEvent.timer.nextEvent("biome");
-			throwIfThreadInterrupted();
-			this.stepBiomes.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.BIOMES));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.BIOMES)
-			{
-				return;
-			}
-			
-			genEvent.timer.nextEvent("noise");
-			throwIfThreadInterrupted();
-			this.stepNoise.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.NOISE));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.NOISE)
-			{
-				return;
 			}
-			
-			genEvent.timer.nextEvent("surface");
-			throwIfThreadInterrupted();
-			this.stepSurface.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.SURFACE));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.SURFACE)
+		}
+		
+		chunkWrapperList.forEachPos((x, z) ->
+		{
+			boolean isBorderChunk = x < innerMin || x >= innerMax || z < innerMin || z >= innerMax;
+			ChunkWrapper wrappedChunk = chunkWrapperList.get(x, z);
+			if (isBorderChunk && wrappedChunk != null
+				&& !genEvent.storedChunkPositions.contains(wrappedChunk.getChunk().getPos().toLong()))
 			{
-				return;
+				ChunkAccess chunk = wrappedChunk.getChunk();
+				if (chunk instanceof ProtoChunk)
+				{
+					// the light engine references the event's whole region, which would otherwise be kept alive by the cache
+					((ProtoChunk) chunk).setLightEngine(null);
+				}
+				this.borderChunkCache.put(chunk);
 			}
-			
-			genEvent.timer.nextEvent("carver");
-			throwIfThreadInterrupted();
-			// caves can generally be ignored since they aren't generally visible from far away
-			if (step == EDhApiWorldGenerationStep.CARVERS)
+		});
+	}
+	
+	public void generateDirect(
+			GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunksToGenerate, int border,
+			EDhApiWorldGenerationStep step, DhLitWorldGenRegion region) throws InterruptedException
+	{
+		if (Thread.interrupted())
+		{
+			return;
+		}
+		
+		try
+		{
+			if (!this.generateStepsUpToNoise(genEvent, chunksToGenerate, step, region))
 			{
-				return;
+				this.generateStepsAfterNoise(genEvent, chunksToGenerate, step, region);
 			}
 			
-			genEvent.timer.nextEvent("feature");
-			throwIfThreadInterrupted();
-			this.stepFeatures.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.FEATURES));
-			genEvent.refreshTimeout();
+			this.fillSparseChunks(genEvent, chunksToGenerate);
 		}
 		finally
 		{
-			genEvent.timer.nextEvent("light");
-			
-			// generate lighting using DH's lighting engine
-				
-			int maxSkyLight = this.serverlevel.getServerLevelWrapper().hasSkyLight() ? 15 : 0;
-			
-			ArrayList<IChunkWrapper> iChunkWrapperList = new ArrayList<>(chunksToGenerate);
-			for (int i = 0; i < iChunkWrapperList.size(); i++)
+			this.lightChunks(genEvent, chunksToGenerate);
+		}
+	}
+	
+	/**
+	 * Each thread has its own {@link ThreadedParameters}, since the structure check they hold isn't thread safe. <br>
+	 * Should be called on the thread running the steps, pipeline stages run an event's steps on different threads.
+	 */
+	private ThreadedParameters getThreadedParams(DhLitWorldGenRegion region)
+	{
+		ThreadedParameters tParams = ThreadedParameters.getOrMake(this.params);
+		tParams.makeStructFeatIfNeeded(region, this.params);
+		return tParams;
+	}
+	
+	/**
+	 * Runs the structure, biome, and noise steps.
+	 * 
+	 * @return true if the target step has been reached and no further steps should be run
+	 */
+	public boolean generateStepsUpToNoise(
+			GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunksToGenerate,
+			EDhApiWorldGenerationStep step, DhLitWorldGenRegion region) throws InterruptedException
+	{
+		ThreadedParameters tParams = this.getThreadedParams(region);
+		chunksToGenerate.forEach((chunkWrapper) ->
+		{
+			ChunkAccess chunk = chunkWrapper.getChunk();
+			if (chunk instanceof ProtoChunk)
 			{
-				IChunkWrapper centerChunk = iChunkWrapperList.get(i);
-				if (centerChunk == null)
-				{
-					continue;
-				}
+				ProtoChunk protoChunk = ((ProtoChunk) chunk);
 				
-				throwIfThreadInterrupted();
-				
-				// make sure the height maps are all properly generated
-				// if this isn't done everything else afterward may fail
-				Heightmap.primeHeightmaps(((ChunkWrapper)centerChunk).getChunk(), ChunkStatus.FEATURES.heightmapsAfter());
-				
-				// populate the lighting
-				DhLightingEngine.INSTANCE.lightChunk(centerChunk, iChunkWrapperList, maxSkyLight);
+				protoChunk.setLightEngine(region.getLightEngine());
 			}
-			
+		});
+		
+		if (step == EDhApiWorldGenerationStep.EMPTY)
+		{
+			return true;
+		}
+		
+		throwIfThreadInterrupted();
+		// starts the "structLock" and "structStart" timer events itself
+		this.stepStructureStart.generateGroup(tParams, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.STRUCTURE_START), genEvent.timer);
+		genEvent.refreshTimeout();
+		if (step == EDhApiWorldGenerationStep.STRUCTURE_START)
+		{
+			return true;
+		}
+		
+		genEvent.timer.nextEvent("structRef");
+		throwIfThreadInterrupted();
+		this.stepStructureReference.generateGroup(tParams, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.STRUCTURE_REFERENCE));
+		genEvent.refreshTimeout();
+		if (step == EDhApiWorldGenerationStep.STRUCTURE_REFERENCE)
+		{
+			return true;
+		}
+		
+		genEvent.timer.nextEvent("biome");
+		throwIfThreadInterrupted();
+		this.stepBiomes.generateGroup(tParams, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.BIOMES));
+		genEvent.refreshTimeout();
+		if (step == EDhApiWorldGenerationStep.BIOMES)
+		{
+			return true;
+		}
+		
+		if (StepSurfaceSketch.shouldSketch(genEvent))
+		{
+			// far away LODs only need the surface, so the noise, surface, and feature steps can be skipped
+			genEvent.timer.nextEvent("sketch");
+			throwIfThreadInterrupted();
+			this.stepSurfaceSketch.generateGroup(tParams, region, GetCutoutFrom(chunksToGenerate, MaxBorderNeeded));
 			genEvent.refreshTimeout();
+			return true;
+		}
+		
+		if (SparseLatticeGenerator.shouldUseSparse(genEvent))
+		{
+			// only the lattice's sample chunks will be generated, the rest are filled in afterwards
+			this.sparseGenerator.markSkippedChunks(genEvent, GetCutoutFrom(chunksToGenerate, MaxBorderNeeded));
+		}
+		
+		genEvent.timer.nextEvent("noise");
+		throwIfThreadInterrupted();
+		this.stepNoise.generateGroup(tParams, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.NOISE));
+		genEvent.refreshTimeout();
+		return (step == EDhApiWorldGenerationStep.NOISE);
+	}
+	
+	/** Runs the surface, carver, and feature steps. */
+	public void generateStepsAfterNoise(
+			GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunksToGenerate,
+			EDhApiWorldGenerationStep step, DhLitWorldGenRegion region) throws InterruptedException
+	{
+		ThreadedParameters tParams = this.getThreadedParams(region);
+		genEvent.timer.nextEvent("surface");
+		throwIfThreadInterrupted();
+		this.stepSurface.generateGroup(tParams, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.SURFACE));
+		genEvent.refreshTimeout();
+		if (step == EDhApiWorldGenerationStep.SURFACE)
+		{
+			return;
+		}
+		
+		genEvent.timer.nextEvent("carver");
+		throwIfThreadInterrupted();
+		// caves can generally be ignored since they aren't generally visible from far away
+		if (step == EDhApiWorldGenerationStep.CARVERS)
+		{
+			return;
+		}
+		
+		genEvent.timer.nextEvent("feature");
+		throwIfThreadInterrupted();
+		this.stepFeatures.generateGroup(tParams, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.FEATURES));
+		genEvent.refreshTimeout();
+	}
+	
+	/** Fills in any chunks skipped by {@link SparseLatticeGenerator}, should be run after every other step. */
+	public void fillSparseChunks(GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunksToGenerate) throws InterruptedException
+	{
+		if (genEvent.sparseSkippedChunks == null)
+		{
+			return;
 		}
+		
+		genEvent.timer.nextEvent("sparse");
+		throwIfThreadInterrupted();
+		this.sparseGenerator.fillSkippedChunks(genEvent, GetCutoutFrom(chunksToGenerate, MaxBorderNeeded), this.params.generator.getSeaLevel());
+		genEvent.refreshTimeout();
+	}
+	
+	/** generate lighting using DH's lighting engine, only the chunks that will be emitted are lit */
+	public void lightChunks(GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunksToGenerate) throws InterruptedException
+	{
+		genEvent.timer.nextEvent("light");
+		
+		int maxSkyLight = this.serverlevel.getServerLevelWrapper().hasSkyLight() ? 15 : 0;
+		this.lightingStage.lightChunks(chunksToGenerate, genEvent.region, MaxBorderNeeded, maxSkyLight);
+		
+		genEvent.refreshTimeout();
 	}
 	
 	public interface EmptyChunkGenerator
@@ -678,7 +1322,7 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 	}
 	
 	@Override
-	public int getEventCount() { return this.generationEventList.size(); }
+	public int getEventCount() { return this.generationEventList.size() + this.eventPlanner.getPendingCount(); }
 	
 	@Override
 	public void stop()
@@ -686,6 +1330,14 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		EVENT_LOGGER.info(BatchGenerationEnvironment.class.getSimpleName() + " shutting down...");
 		
 		EVENT_LOGGER.info("Canceling in progress generation event futures...");
+		this.eventPlanner.shutdown();
+		this.prefetcher.shutdown();
+		this.scheduler.close();
+		if (this.borderChunkCache != null)
+		{
+			this.borderChunkCache.clear();
+		}
+		this.timeoutWheel.clear();
 		Iterator<GenerationEvent> iter = this.generationEventList.iterator();
 		while (iter.hasNext())
 		{
@@ -694,6 +1346,11 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			iter.remove();
 		}
 		
+		if (this.pipeline != null)
+		{
+			this.pipeline.shutdown();
+		}
+		
 		// clear the chunk cache
 		RegionFileStorageExternalCache regionStorage = this.regionFileStorageCacheRef.get();
 		if (regionStorage != null)
@@ -708,6 +1365,11 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			}
 		}
 		
+		if (this.params.structureStartCache != null)
+		{
+			this.params.structureStartCache.save();
+		}
+		
 		EVENT_LOGGER.info(BatchGenerationEnvironment.class.getSimpleName() + " shutdown complete.");
 	}
 	
@@ -718,10 +1380,8 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 	{
 		//System.out.println("GenerationEvent: "+genSize+"@"+minX+","+minZ+" "+targetStep);
 		
-		// TODO: Check event overlap via e.tooClose()
-		GenerationEvent genEvent = GenerationEvent.startEvent(new DhChunkPos(minX, minZ), genSize, this, targetStep, resultConsumer, worldGeneratorThreadPool);
-		this.generationEventList.add(genEvent);
-		return genEvent.future;
+		// nearby requests are merged by the planner before being started
+		return this.eventPlanner.queueRequest(minX, minZ, genSize, targetStep, worldGeneratorThreadPool, resultConsumer);
 	}
 	
 	/**
@@ -0,0 +1,480 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.ChunkLoader;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.FastChunkDecoder;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.MappedRegionFileReader;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.ProjectedChunkNbtReader;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionFileStorageExternalCache;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionPresenceCache;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.SharedStructureStartCache;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.StoredChunkSummary;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepStructureStart;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepSurfaceSketch;
+import net.minecraft.nbt.NbtIo;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Every world generation setting that isn't part of DH's config. <br>
+ * Each setting is read from a system property (IE "-Ddistanthorizons.worldGen.pipeline=true")
+ * once when this class is loaded, changing them requires a restart.
+ */
+public final class BatchGenerationSettings
+{
+	private BatchGenerationSettings() { }
+	
+	
+	
+	//=========//
+	// threads //
+	//=========//
+	
+	/** 
+	 * Every thread count below is clamped to {@link Threads#maxThreadCount},
+	 * and {@link GenerationScheduler} won't run more events at once than the
+	 * thread pool DH's core hands to the generator has threads.
+	 */
+	public static final class Threads
+	{
+		/** the most threads any single world gen thread pool can have */
+		public static final int maxThreadCount = Math.max(1, Integer.getInteger("distanthorizons.worldGen.maxThreads", Runtime.getRuntime().availableProcessors() / 2));
+		
+		/** 
+		 * DH's thread count setting isn't visible to this module,
+		 * so the pool DH's core passes to the generator is checked instead. <br>
+		 * Returns {@link Threads#maxThreadCount} if the pool's size can't be determined.
+		 */
+		public static int getCoreThreadCount(ExecutorService pool)
+		{
+			if (pool instanceof ThreadPoolExecutor)
+			{
+				ThreadPoolExecutor threadPool = (ThreadPoolExecutor) pool;
+				int threadCount = threadPool.getCorePoolSize();
+				return Math.max(1, threadCount != 0 ? threadCount : threadPool.getMaximumPoolSize());
+			}
+			else if (pool instanceof ForkJoinPool)
+			{
+				return ((ForkJoinPool) pool).getParallelism();
+			}
+			
+			return maxThreadCount;
+		}
+		
+		public static int clamp(int threadCount) { return Math.max(1, Math.min(threadCount, maxThreadCount)); }
+		
+		private Threads() { }
+	}
+	
+	
+	
+	//===========//
+	// scheduler //
+	//===========//
+	
+	/** used by {@link GenerationScheduler} */
+	public static final class Scheduler
+	{
+		/** the max number of events that can be run at the same time, {@link GenerationConcurrencyController} may lower the actual limit */
+		public static final int maxRunnerCount = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.scheduler.maxRunners", Threads.maxThreadCount));
+		/** how far (in chunks) a player has to move before the queued events are re-prioritized */
+		public static final int reprioritizeDistanceInChunks = Integer.getInteger("distanthorizons.worldGen.scheduler.reprioritizeDistance", 8);
+		/** If true queued events further than {@link Scheduler#dropDistanceInChunks} from every player will be canceled. */
+		public static final boolean dropStaleEvents = Boolean.getBoolean("distanthorizons.worldGen.scheduler.dropStaleEvents");
+		public static final int dropDistanceInChunks = Integer.getInteger("distanthorizons.worldGen.scheduler.dropDistance", 4096);
+		
+		private Scheduler() { }
+	}
+	
+	
+	
+	//==================//
+	// adaptive threads //
+	//==================//
+	
+	/** used by {@link GenerationConcurrencyController} */
+	public static final class AdaptiveThreads
+	{
+		/** 
+		 * If false the scheduler's runner limit will stay at {@link Scheduler#maxRunnerCount}
+		 * (or the size of DH's world gen thread pool if that is smaller). <br>
+		 * Off by default since DH's thread settings already limit world gen,
+		 * this is for servers that want generation to adjust itself to the server's load.
+		 */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.adaptiveThreads");
+		/** how long throughput is measured before the limit is changed */
+		public static final long windowDurationInMs = Long.getLong("distanthorizons.worldGen.adaptiveWindowInMs", 5_000L);
+		/** the limit will be lowered if the server's average tick takes longer than this */
+		public static final int maxServerTickTimeInMs = Integer.getInteger("distanthorizons.worldGen.adaptiveMaxTickTimeInMs", 45);
+		
+		private AdaptiveThreads() { }
+	}
+	
+	
+	
+	//==========//
+	// pipeline //
+	//==========//
+	
+	/** used by {@link GenerationPipeline} */
+	public static final class Pipeline
+	{
+		/** If true generation events will be run through a {@link GenerationPipeline} instead of on a single thread. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.pipeline");
+		/** How many events can be waiting in front of each stage (other than setup) */
+		public static final int stageQueueCapacity = Integer.getInteger("distanthorizons.worldGen.pipeline.queueCapacity", 2);
+		public static final int setupThreadCount = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.pipeline.setupThreads", 1));
+		/** the noise step takes about half of the total generation time, so it gets the most threads */
+		public static final int noiseThreadCount = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.pipeline.noiseThreads", Threads.maxThreadCount / 2));
+		public static final int decorateThreadCount = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.pipeline.decorateThreads", Threads.maxThreadCount / 4));
+		public static final int lightThreadCount = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.pipeline.lightThreads", 1));
+		
+		private Pipeline() { }
+	}
+	
+	
+	
+	//===============//
+	// event merging //
+	//===============//
+	
+	/** used by {@link GenerationEventPlanner} */
+	public static final class EventMerging
+	{
+		/** If false every request will be turned into its own {@link GenerationEvent}. */
+		public static final boolean enabled = !Boolean.getBoolean("distanthorizons.worldGen.disableEventMerging");
+		/** How long requests are held so they can be merged with requests that arrive shortly after them. */
+		public static final int mergeWindowInMs = Integer.getInteger("distanthorizons.worldGen.eventMergeWindowInMs", 5);
+		/** merged events larger than this (in chunks) won't be created */
+		public static final int maxMergedSize = Integer.getInteger("distanthorizons.worldGen.maxMergedEventSize", 15);
+		/** at least this percent of a merged event must have been requested, otherwise the merge would generate too many unneeded chunks */
+		public static final int minMergedFillPercent = Integer.getInteger("distanthorizons.worldGen.minMergedFillPercent", 75);
+		
+		private EventMerging() { }
+	}
+	
+	
+	
+	//==========//
+	// prefetch //
+	//==========//
+	
+	/** used by {@link RegionFilePrefetcher} */
+	public static final class Prefetch
+	{
+		/** If false chunks will be read one at a time when the event is set up. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.prefetch");
+		public static final int threadCount = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.prefetchThreads", 2));
+		/** gaps between needed chunks up to this many sectors are read through instead of starting a new read */
+		public static final int maxGapSectors = Integer.getInteger("distanthorizons.worldGen.prefetchMaxGapSectors", 8);
+		public static final int maxReadBytes = Integer.getInteger("distanthorizons.worldGen.prefetchMaxReadBytes", 1024 * 1024);
+		/** how long an event will wait for a region that is still being read before reading the chunk itself */
+		public static final long maxWaitInMs = Long.getLong("distanthorizons.worldGen.prefetchMaxWaitInMs", 50L);
+		/** how many of the next events {@link GenerationScheduler} will run are prefetched at once */
+		public static final int lookaheadEventCount = Integer.getInteger("distanthorizons.worldGen.prefetchLookahead", 4);
+		/** 
+		 * The most chunk data (measured by its size on disk) that can be held by prefetched events that haven't used it yet,
+		 * chunks read past this are left for the event to read itself.
+		 */
+		public static final long maxBytesInFlight = Long.getLong("distanthorizons.worldGen.prefetchMaxBytes", 64L * 1024 * 1024);
+		
+		private Prefetch() { }
+	}
+	
+	
+	
+	//==============//
+	// border cache //
+	//==============//
+	
+	/** used by {@link BorderChunkCache} */
+	public static final class BorderCache
+	{
+		/** set to 0 to disable the cache */
+		public static final long maxHeapBudgetInBytes = Long.getLong("distanthorizons.worldGen.borderCacheBytes", Math.min(Runtime.getRuntime().maxMemory() / 16, 256L * 1024 * 1024));
+		/** chunks older than this are dropped, so changes to the real world don't stay hidden for long */
+		public static final int maxEntryAgeInSeconds = Integer.getInteger("distanthorizons.worldGen.borderCacheMaxAgeInSeconds", 60);
+		
+		private BorderCache() { }
+	}
+	
+	
+	
+	//================//
+	// parallel steps //
+	//================//
+	
+	/** used by {@link ParallelStepExecutor} */
+	public static final class ParallelSteps
+	{
+		/** If false every step will run its chunks one at a time on the calling thread. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.parallelSteps");
+		public static final int parallelism = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.parallelStepThreads", Threads.maxThreadCount));
+		/** steps with fewer chunks than this aren't worth splitting up */
+		public static final int minChunkCount = Integer.getInteger("distanthorizons.worldGen.parallelStepMinChunks", 4);
+		/** comma separated class names of generators (other than vanilla's) that are safe to run in parallel */
+		public static final String extraGeneratorClassNames = System.getProperty("distanthorizons.worldGen.parallelStepGenerators", "");
+		
+		private ParallelSteps() { }
+	}
+	
+	
+	
+	//===================//
+	// parallel lighting //
+	//===================//
+	
+	/** used by {@link ParallelLightingStage} */
+	public static final class ParallelLighting
+	{
+		/** If false every chunk will be lit one at a time on the calling thread. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.parallelLighting");
+		/** grids narrower than this don't have enough chunks per wave to be worth splitting up */
+		public static final int minGridSize = Integer.getInteger("distanthorizons.worldGen.parallelLightingMinGridSize", 6);
+		
+		private ParallelLighting() { }
+	}
+	
+	
+	
+	//================//
+	// surface sketch //
+	//================//
+	
+	/** used by {@link StepSurfaceSketch} */
+	public static final class SurfaceSketch
+	{
+		/** If true events at least {@link SurfaceSketch#minPlayerDistanceInChunks} from every player will be sketched instead of fully generated. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.surfaceSketch");
+		/** 
+		 * how far (in chunks) an event's center must be from the nearest player to be sketched,
+		 * see {@link GenerationEvent#nearestPlayerDistanceInChunks}. <br>
+		 * Core doesn't pass the requested detail level to the generator, so distance is used instead,
+		 * the default is half of the default LOD render distance.
+		 */
+		public static final int minPlayerDistanceInChunks = Integer.getInteger("distanthorizons.worldGen.surfaceSketchMinDistance", 128);
+		/** how many columns (in each direction) share a height sample, must be a power of 2 no larger than 16 */
+		public static final int columnStride = Integer.getInteger("distanthorizons.worldGen.surfaceSketchColumnStride", 4);
+		/** how many blocks below the surface are filled, anything below that is left empty */
+		public static final int fillDepth = Integer.getInteger("distanthorizons.worldGen.surfaceSketchFillDepth", 8);
+		
+		private SurfaceSketch() { }
+	}
+	
+	
+	
+	//========//
+	// sparse //
+	//========//
+	
+	/** used by {@link SparseLatticeGenerator} */
+	public static final class Sparse
+	{
+		/** If true events at least {@link Sparse#minPlayerDistanceInChunks} from every player will only generate the lattice's sample chunks. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.sparse");
+		/** 
+		 * how far (in chunks) an event's center must be from the nearest player to be generated sparsely,
+		 * see {@link GenerationEvent#nearestPlayerDistanceInChunks}. <br>
+		 * If surface sketching is also enabled it takes precedence for events past its own distance.
+		 */
+		public static final int minPlayerDistanceInChunks = Integer.getInteger("distanthorizons.worldGen.sparseMinDistance", 192);
+		/** the distance (in chunks) between sample chunks */
+		public static final int latticeSpacing = Integer.getInteger("distanthorizons.worldGen.sparseLatticeSpacing", 2);
+		/** how many blocks from the top of the nearest sample are copied into each skipped column */
+		public static final int copyDepth = Integer.getInteger("distanthorizons.worldGen.sparseCopyDepth", 8);
+		
+		private Sparse() { }
+	}
+	
+	
+	
+	//=================//
+	// structure locks //
+	//=================//
+	
+	/** used by {@link StepStructureStart} */
+	public static final class StructureLocks
+	{
+		/** how many chunks wide (as a power of 2) the areas that share a structure placement lock are */
+		public static final int placementRegionShift = Integer.getInteger("distanthorizons.worldGen.structureLockRegionShift", 5);
+		/** If true every chunk in a dimension shares the same lock, like before the locks were striped. */
+		public static final boolean lockPerDimension = Boolean.getBoolean("distanthorizons.worldGen.structureLockPerDimension");
+		/** how many locks the placement regions are spread across */
+		public static final int lockStripeCount = Integer.getInteger("distanthorizons.worldGen.structureLockStripes", 64);
+		
+		private StructureLocks() { }
+	}
+	
+	
+	
+	//========================//
+	// shared structure cache //
+	//========================//
+	
+	/** used by {@link SharedStructureStartCache} */
+	public static final class SharedStructureCache
+	{
+		/** If false every world gen thread will check structure starts separately. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.sharedStructureCache");
+		/** how many chunks can be remembered at once, rounded up to a power of 2 */
+		public static final int maxChunkCount = Integer.getInteger("distanthorizons.worldGen.sharedStructureCacheChunks", 65536);
+		
+		private SharedStructureCache() { }
+	}
+	
+	
+	
+	//=============//
+	// bulk import //
+	//=============//
+	
+	/** used by {@link BulkLodImporter} */
+	public static final class BulkImport
+	{
+		/** If true every level's existing chunks will be imported when the level is loaded. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.bulkImport");
+		public static final int threadCount = Threads.clamp(Integer.getInteger("distanthorizons.worldGen.bulkImportThreads", Threads.maxThreadCount));
+		/** how many chunks wide each tile is, larger tiles need more memory but re-read fewer border chunks */
+		public static final int tileSize = Integer.getInteger("distanthorizons.worldGen.bulkImportTileSize", 8);
+		/** how many chunks every importer combined can hand to DH each second, 0 or less for no limit */
+		public static final int maxChunksPerSecond = Integer.getInteger("distanthorizons.worldGen.bulkImportChunksPerSecond", 500);
+		
+		private BulkImport() { }
+	}
+	
+	
+	
+	//================//
+	// latency export //
+	//================//
+	
+	/** used by {@link LatencyHistogramExporter} */
+	public static final class LatencyExport
+	{
+		/** "jsonl", "csv", or null to disable exporting */
+		public static final String exportFormat = System.getProperty("distanthorizons.worldGen.latencyExport");
+		public static final int exportIntervalInSeconds = Integer.getInteger("distanthorizons.worldGen.latencyExportIntervalInSeconds", 60);
+		
+		private LatencyExport() { }
+	}
+	
+	
+	
+	//===================//
+	// region file cache //
+	//===================//
+	
+	/** used by {@link RegionFileStorageExternalCache} */
+	public static final class RegionFileCache
+	{
+		/** how many region files DH keeps open on top of vanilla's own cache */
+		public static final int maxCacheSize = Integer.getInteger("distanthorizons.worldGen.regionFileCacheSize", 64);
+		/** 
+		 * The most region files that can be open at once between DH's cache and vanilla's, 
+		 * DH's least recently used files are closed before going over this.
+		 */
+		public static final int maxOpenRegionFiles = Integer.getInteger("distanthorizons.worldGen.maxOpenRegionFiles", 128);
+		
+		private RegionFileCache() { }
+	}
+	
+	
+	
+	//======================//
+	// mapped region reader //
+	//======================//
+	
+	/** used by {@link MappedRegionFileReader} */
+	public static final class MappedRegionReader
+	{
+		/** If false {@link RegionFileStorageExternalCache} will only use vanilla's region files. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.mappedRegionReader");
+		/** mappings are cheap but not free, past this many files some mappings are dropped */
+		public static final int maxMappedFileCount = Integer.getInteger("distanthorizons.worldGen.mappedRegionReaderMaxFiles", 256);
+		
+		private MappedRegionReader() { }
+	}
+	
+	
+	
+	//=================//
+	// region presence //
+	//=================//
+	
+	/** used by {@link RegionPresenceCache} */
+	public static final class RegionPresence
+	{
+		/** If false every chunk read will go to disk, even if the chunk was missing last time. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.regionPresenceCache");
+		
+		private RegionPresence() { }
+	}
+	
+	
+	
+	//===================//
+	// fast chunk decode //
+	//===================//
+	
+	/** used by {@link FastChunkDecoder} */
+	public static final class FastChunkDecode
+	{
+		/** If false chunks will always be loaded with {@link ChunkLoader}. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.fastChunkDecode");
+		
+		private FastChunkDecode() { }
+	}
+	
+	
+	
+	//===============//
+	// projected NBT //
+	//===============//
+	
+	/** used by {@link ProjectedChunkNbtReader} */
+	public static final class ProjectedNbt
+	{
+		/** If false every chunk will be read in full with {@link NbtIo}. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.projectedNbt");
+		/** If true every other chunk will be read in full, so both readers can be compared. */
+		public static final boolean compareModes = Boolean.getBoolean("distanthorizons.worldGen.projectedNbtCompare");
+		
+		private ProjectedNbt() { }
+	}
+	
+	
+	
+	//===================//
+	// stored chunk peek //
+	//===================//
+	
+	/** used by {@link StoredChunkSummary} */
+	public static final class StoredChunkPeek
+	{
+		/** If true each event's stored chunks are peeked at first, so chunks {@link ChunkLoader} would reject aren't read in full. */
+		public static final boolean enabled = Boolean.getBoolean("distanthorizons.worldGen.peekStoredChunks");
+		
+		private StoredChunkPeek() { }
+	}
+	
+}
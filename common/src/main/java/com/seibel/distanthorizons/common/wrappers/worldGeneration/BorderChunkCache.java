@@ -0,0 +1,265 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.ImposterProtoChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.ProtoChunk;
+
+/**
+ * Holds on to the partially generated border chunks of finished {@link GenerationEvent}s
+ * so the next event that needs the same chunks can continue from where they were left
+ * instead of loading or generating them again. <br><br>
+ *
+ * Entries are removed when they are taken, so a chunk is only ever used by one event at a time. <br>
+ * Only chunks that nothing has written into from a neighbour can be reused,
+ * otherwise the next event would apply those writes a second time. <br>
+ * The cache is bounded by an estimated heap size, the least recently added chunks are evicted first. <br>
+ * Chunks loaded from disk are never cached and the cache is only created when {@link BorderChunkCache#isUseful} is true.
+ */
+public class BorderChunkCache
+{
+	/** rough size of a {@link ProtoChunk} without any block data (heightmaps, biomes, structure data, etc.) */
+	private static final long BASE_CHUNK_SIZE_IN_BYTES = 16 * 1024;
+	/** rough size of a non-empty {@link LevelChunkSection}, assuming a small palette */
+	private static final long SECTION_SIZE_IN_BYTES = 12 * 1024;
+	
+	/** insertion ordered, so the eldest entry is always first */
+	private final LinkedHashMap<Long, CacheEntry> entryByPos = new LinkedHashMap<>();
+	private long estimatedSizeInBytes = 0;
+	
+	private final AtomicLong hitCount = new AtomicLong(0);
+	private final AtomicLong missCount = new AtomicLong(0);
+	private final AtomicLong evictionCount = new AtomicLong(0);
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/** 
+	 * Border chunks are only generated past {@link ChunkStatus#EMPTY} if a later step needs a border,
+	 * which vanilla generators never do. Without that nothing the cache accepts would ever be put into it.
+	 * 
+	 * @param borderNeeded see {@link BatchGenerationEnvironment#BorderNeeded}
+	 * @return true if the cache is enabled and border chunks can reach a status worth caching
+	 */
+	public static boolean isUseful(Map<EDhApiWorldGenerationStep, Integer> borderNeeded)
+	{
+		if (BatchGenerationSettings.BorderCache.maxHeapBudgetInBytes <= 0)
+		{
+			return false;
+		}
+		
+		for (Map.Entry<EDhApiWorldGenerationStep, Integer> entry : borderNeeded.entrySet())
+		{
+			if (entry.getKey() != EDhApiWorldGenerationStep.EMPTY && entry.getValue() > 0)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/** 
+	 * @return true if the given chunk was partially generated and can be safely reused,
+	 * as long as no neighbour has written into it, see {@link BorderChunkCache#writesIntoNeighbours}
+	 */
+	public static boolean canCache(ChunkAccess chunk)
+	{
+		// full and imposter chunks are the real world's chunks, those should always be loaded fresh,
+		// decorated chunks would have their features placed again by the next event
+		return chunk instanceof ProtoChunk
+				&& !(chunk instanceof ImposterProtoChunk)
+				&& chunk.getStatus() != ChunkStatus.EMPTY
+				&& !chunk.getStatus().isOrAfter(ChunkStatus.FEATURES);
+	}
+	
+	/** 
+	 * @return true if the given chunk may have been decorated by its event,
+	 * features and structure pieces placed in it can spill over into its neighbours
+	 */
+	public static boolean writesIntoNeighbours(ChunkAccess chunk)
+	{
+		return chunk instanceof ProtoChunk
+				&& !(chunk instanceof ImposterProtoChunk)
+				&& chunk.getStatus().isOrAfter(ChunkStatus.FEATURES);
+	}
+	
+	/** Adds the given chunk, replacing any chunk already cached at the same position. */
+	public void put(ChunkAccess chunk)
+	{
+		if (BatchGenerationSettings.BorderCache.maxHeapBudgetInBytes <= 0 || !canCache(chunk))
+		{
+			return;
+		}
+		
+		ChunkPos pos = chunk.getPos();
+		CacheEntry newEntry = new CacheEntry(chunk, chunk.getStatus(), estimateSizeInBytes(chunk), System.nanoTime());
+		synchronized (this.entryByPos)
+		{
+			CacheEntry oldEntry = this.entryByPos.put(pos.toLong(), newEntry);
+			if (oldEntry != null)
+			{
+				this.estimatedSizeInBytes -= oldEntry.estimatedSizeInBytes;
+			}
+			this.estimatedSizeInBytes += newEntry.estimatedSizeInBytes;
+			
+			this.evictIfNeeded();
+		}
+	}
+	
+	/**
+	 * Removes the chunk at the given position from the cache.
+	 * @return null if no chunk was cached for the given position
+	 */
+	public ChunkAccess take(int chunkX, int chunkZ)
+	{
+		if (BatchGenerationSettings.BorderCache.maxHeapBudgetInBytes <= 0)
+		{
+			return null;
+		}
+		
+		CacheEntry entry;
+		synchronized (this.entryByPos)
+		{
+			entry = this.entryByPos.remove(ChunkPos.asLong(chunkX, chunkZ));
+			if (entry != null)
+			{
+				this.estimatedSizeInBytes -= entry.estimatedSizeInBytes;
+			}
+		}
+		
+		// a changed status means something kept generating the chunk after it was cached
+		if (entry == null || entry.isExpired(System.nanoTime()) || entry.chunk.getStatus() != entry.status)
+		{
+			this.missCount.incrementAndGet();
+			return null;
+		}
+		
+		this.hitCount.incrementAndGet();
+		return entry.chunk;
+	}
+	
+	/** Removes the eldest entries until the cache is back inside its budget. */
+	private void evictIfNeeded()
+	{
+		long now = System.nanoTime();
+		Iterator<CacheEntry> iter = this.entryByPos.values().iterator();
+		while (iter.hasNext())
+		{
+			CacheEntry entry = iter.next();
+			if (this.estimatedSizeInBytes <= BatchGenerationSettings.BorderCache.maxHeapBudgetInBytes && !entry.isExpired(now))
+			{
+				break;
+			}
+			
+			iter.remove();
+			this.estimatedSizeInBytes -= entry.estimatedSizeInBytes;
+			this.evictionCount.incrementAndGet();
+		}
+	}
+	
+	private static long estimateSizeInBytes(ChunkAccess chunk)
+	{
+		long size = BASE_CHUNK_SIZE_IN_BYTES;
+		for (LevelChunkSection section : chunk.getSections())
+		{
+			#if PRE_MC_1_18_2
+			if (section != null && !section.isEmpty())
+			#else
+			if (section != null && !section.hasOnlyAir())
+			#endif
+			{
+				size += SECTION_SIZE_IN_BYTES;
+			}
+		}
+		return size;
+	}
+	
+	public void clear()
+	{
+		synchronized (this.entryByPos)
+		{
+			this.entryByPos.clear();
+			this.estimatedSizeInBytes = 0;
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		int entryCount;
+		long sizeInBytes;
+		synchronized (this.entryByPos)
+		{
+			entryCount = this.entryByPos.size();
+			sizeInBytes = this.estimatedSizeInBytes;
+		}
+		
+		return "Border chunk cache: [" + entryCount + "] chunks, ~[" + (sizeInBytes / 1024 / 1024) + "/" + (BatchGenerationSettings.BorderCache.maxHeapBudgetInBytes / 1024 / 1024) + "] MB, " +
+				"hits: [" + this.hitCount.get() + "], misses: [" + this.missCount.get() + "], evictions: [" + this.evictionCount.get() + "]";
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static final class CacheEntry
+	{
+		public final ChunkAccess chunk;
+		/** the step the chunk was generated up to when it was cached */
+		public final ChunkStatus status;
+		public final long estimatedSizeInBytes;
+		public final long insertTimeNs;
+		
+		public CacheEntry(ChunkAccess chunk, ChunkStatus status, long estimatedSizeInBytes, long insertTimeNs)
+		{
+			this.chunk = chunk;
+			this.status = status;
+			this.estimatedSizeInBytes = estimatedSizeInBytes;
+			this.insertTimeNs = insertTimeNs;
+		}
+		
+		public boolean isExpired(long nowNs) { return (nowNs - this.insertTimeNs) > TimeUnit.SECONDS.toNanos(BatchGenerationSettings.BorderCache.maxEntryAgeInSeconds); }
+		
+	}
+	
+}
\ No newline at end of file
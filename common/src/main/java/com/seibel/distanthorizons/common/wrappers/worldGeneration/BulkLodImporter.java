@@ -0,0 +1,553 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import com.seibel.distanthorizons.common.util.NamedThreadFactory;
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.chunk.DecodedChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.world.ServerLevelWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.ChunkLoader;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.FastChunkDecoder;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionFileFormat;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionFileStorageExternalCache;
+import com.seibel.distanthorizons.core.api.internal.ServerApi;
+import com.seibel.distanthorizons.core.generation.DhLightingEngine;
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.LevelChunk;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Converts every chunk already saved in a level's region folder into LODs,
+ * without waiting for the world generator to request them one event at a time. <br><br>
+ *
+ * Each region file is handled by one of the importer's low priority threads. The region is split into
+ * square tiles, each tile (plus a one chunk border so lighting can cross the tile's edges) is
+ * read, decoded by {@link ChunkLoader} (or the {@link FastChunkDecoder} if it is enabled),
+ * lit by DH's lighting engine and handed to DH the same way a chunk loaded by the game would be. <br><br>
+ *
+ * Finished region files are appended to a journal next to the region folder, so an import that was
+ * stopped (or the server closed) picks up where it left off. Delete the journal to import everything again.
+ * Regions are only written to the journal once DH has saved the level's LODs (see {@link BulkLodImporter#onLevelSaved}),
+ * if the server crashes before then those regions are just imported again.
+ * Regions with chunks that couldn't be imported are never written to the journal, so they are retried next time. <br><br>
+ *
+ * Chunks are handed to DH at most {@link BatchGenerationSettings.BulkImport#maxChunksPerSecond} times a second (across every importer),
+ * since DH queues chunk loads without telling the caller when they are done.
+ */
+public final class BulkLodImporter
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	public static final String JOURNAL_FILE_NAME = "distanthorizons_import.journal";
+	private static final Pattern REGION_FILE_NAME_PATTERN = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+	private static final long PROGRESS_LOG_INTERVAL_NS = TimeUnit.NANOSECONDS.convert(10, TimeUnit.SECONDS);
+	
+	private static final ConcurrentHashMap<ServerLevel, BulkLodImporter> IMPORTER_BY_LEVEL = new ConcurrentHashMap<>();
+	/** the {@link System#nanoTime()} when the next chunk can be handed to DH */
+	private static final AtomicLong NEXT_HAND_OFF_TIME = new AtomicLong(Long.MIN_VALUE);
+	
+	private final ServerLevel level;
+	private final ServerLevelWrapper levelWrapper;
+	private final String levelName;
+	private final RegionFileStorageExternalCache regionCache;
+	private final FastChunkDecoder fastChunkDecoder;
+	private final Path regionFolderPath;
+	private final Path journalPath;
+	private final ThreadPoolExecutor executor;
+	private final int maxSkyLight;
+	
+	private volatile boolean stopped = false;
+	/** regions whose chunks have all been handed to DH without any failures, but which DH may not have saved yet */
+	private final List<String> unsavedRegionNames = new ArrayList<>();
+	
+	private int totalRegionCount = 0;
+	/** includes skipped regions */
+	private final AtomicInteger finishedRegionCount = new AtomicInteger(0);
+	/** regions whose location table couldn't be read */
+	private final AtomicInteger skippedRegionCount = new AtomicInteger(0);
+	private final AtomicLong importedChunkCount = new AtomicLong(0);
+	private final AtomicLong failedChunkCount = new AtomicLong(0);
+	private long startTime;
+	private final AtomicLong lastLogTime = new AtomicLong(0);
+	private final AtomicLong lastLogChunkCount = new AtomicLong(0);
+	
+	
+	
+	//================//
+	// level handling //
+	//================//
+	
+	/** Starts importing the given level's saved chunks if {@link BatchGenerationSettings.BulkImport#enabled} is true. */
+	public static void onLevelLoad(ServerLevelWrapper levelWrapper)
+	{
+		if (!BatchGenerationSettings.BulkImport.enabled)
+		{
+			return;
+		}
+		
+		ServerLevel level = levelWrapper.getLevel();
+		IMPORTER_BY_LEVEL.computeIfAbsent(level, (newLevel) ->
+		{
+			BulkLodImporter importer = new BulkLodImporter(levelWrapper);
+			importer.start();
+			return importer;
+		});
+	}
+	
+	/** 
+	 * Stops importing the given level without waiting for the import threads, 
+	 * the import will continue from the journal next time the level is loaded. <br>
+	 * Should be called before DH unloads the level.
+	 */
+	public static void onLevelUnload(ServerLevelWrapper levelWrapper)
+	{
+		BulkLodImporter importer = IMPORTER_BY_LEVEL.get(levelWrapper.getLevel());
+		if (importer != null)
+		{
+			importer.stop();
+		}
+	}
+	
+	/** 
+	 * Writes the regions that were imported to the journal. <br>
+	 * Should be called after DH has unloaded (and saved) the level.
+	 */
+	public static void onLevelSaved(ServerLevelWrapper levelWrapper)
+	{
+		BulkLodImporter importer = IMPORTER_BY_LEVEL.remove(levelWrapper.getLevel());
+		if (importer != null)
+		{
+			importer.writeJournal();
+		}
+	}
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	private BulkLodImporter(ServerLevelWrapper levelWrapper)
+	{
+		this.level = levelWrapper.getLevel();
+		this.levelWrapper = levelWrapper;
+		this.levelName = this.level.dimension().location().toString();
+		this.regionCache = new RegionFileStorageExternalCache(this.level.getChunkSource().chunkMap.worker.storage);
+		this.fastChunkDecoder = new FastChunkDecoder(this.level, levelWrapper);
+		this.regionFolderPath = this.regionCache.getStorageFolderPath();
+		this.journalPath = this.regionFolderPath.resolveSibling(JOURNAL_FILE_NAME);
+		this.maxSkyLight = levelWrapper.hasSkyLight() ? 15 : 0;
+		
+		this.executor = new ThreadPoolExecutor(BatchGenerationSettings.BulkImport.threadCount, BatchGenerationSettings.BulkImport.threadCount,
+				0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(),
+				new NamedThreadFactory("DH-Bulk-Import", Thread.MIN_PRIORITY))
+		{
+			/** called by the last import thread to stop, so closing the region files never blocks the server thread */
+			@Override
+			protected void terminated()
+			{
+				BulkLodImporter.this.closeRegionCache();
+			}
+		};
+	}
+	
+	
+	
+	//=========//
+	// running //
+	//=========//
+	
+	private void start()
+	{
+		Set<String> finishedRegionNames = this.readJournal();
+		
+		List<int[]> regionPositions = new ArrayList<>();
+		try (Stream<Path> files = Files.list(this.regionFolderPath))
+		{
+			files.forEach((path) ->
+			{
+				Matcher matcher = REGION_FILE_NAME_PATTERN.matcher(path.getFileName().toString());
+				if (matcher.matches() && !finishedRegionNames.contains(path.getFileName().toString()))
+				{
+					regionPositions.add(new int[] { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) });
+				}
+			});
+		}
+		catch (NoSuchFileException e)
+		{
+			// nothing has been saved in this level yet
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("Unable to list the region files for [" + this.levelName + "], nothing will be imported. Error: " + e.getMessage(), e);
+		}
+		
+		if (regionPositions.isEmpty())
+		{
+			LOGGER.info("Nothing to import for [" + this.levelName + "], [" + finishedRegionNames.size() + "] region files were already imported.");
+			this.stop();
+			return;
+		}
+		
+		// start near the origin, that is usually where players are
+		regionPositions.sort(Comparator.comparingLong((pos) -> (long) pos[0] * pos[0] + (long) pos[1] * pos[1]));
+		
+		this.totalRegionCount = regionPositions.size();
+		this.startTime = System.nanoTime();
+		this.lastLogTime.set(this.startTime);
+		LOGGER.info("Importing [" + this.totalRegionCount + "] region files for [" + this.levelName + "] with [" + BatchGenerationSettings.BulkImport.threadCount + "] threads, [" + finishedRegionNames.size() + "] were already imported.");
+		
+		for (int[] regionPos : regionPositions)
+		{
+			this.executor.execute(() -> this.importRegion(regionPos[0], regionPos[1]));
+		}
+	}
+	
+	/** Doesn't wait for the import threads, the region cache is closed once the last of them has stopped. */
+	private void stop()
+	{
+		if (this.stopped)
+		{
+			return;
+		}
+		this.stopped = true;
+		this.executor.shutdownNow();
+	}
+	
+	private void closeRegionCache()
+	{
+		try
+		{
+			this.regionCache.close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.error("Failed to close the bulk import region file cache for [" + this.levelName + "].", e);
+		}
+	}
+	
+	private void importRegion(int regionX, int regionZ)
+	{
+		if (this.stopped)
+		{
+			return;
+		}
+		
+		String regionFileName = RegionFileFormat.getRegionFileName(regionX, regionZ);
+		int[] locations;
+		try (FileChannel channel = FileChannel.open(this.regionFolderPath.resolve(regionFileName), StandardOpenOption.READ))
+		{
+			locations = RegionFileFormat.readLocationTable(channel);
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Unable to read region file [" + regionFileName + "] for [" + this.levelName + "], it will be skipped. Error: " + e.getMessage());
+			this.skippedRegionCount.incrementAndGet();
+			this.finishedRegionCount.incrementAndGet();
+			this.tryLogProgress();
+			return;
+		}
+		
+		AtomicInteger regionFailedChunkCount = new AtomicInteger(0);
+		
+		int regionMinChunkX = regionX * RegionFileFormat.CHUNKS_PER_REGION_SIDE;
+		int regionMinChunkZ = regionZ * RegionFileFormat.CHUNKS_PER_REGION_SIDE;
+		int tileWidth = Math.max(1, Math.min(BatchGenerationSettings.BulkImport.tileSize, RegionFileFormat.CHUNKS_PER_REGION_SIDE));
+		try
+		{
+			for (int tileZ = 0; tileZ < RegionFileFormat.CHUNKS_PER_REGION_SIDE; tileZ += tileWidth)
+			{
+				for (int tileX = 0; tileX < RegionFileFormat.CHUNKS_PER_REGION_SIDE; tileX += tileWidth)
+				{
+					this.importTile(locations, regionFailedChunkCount, regionMinChunkX, regionMinChunkZ, tileX, tileZ,
+							Math.min(tileWidth, RegionFileFormat.CHUNKS_PER_REGION_SIDE - tileX),
+							Math.min(tileWidth, RegionFileFormat.CHUNKS_PER_REGION_SIDE - tileZ));
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// stopped part way through, this region will be imported again next time
+			return;
+		}
+		
+		if (regionFailedChunkCount.get() == 0)
+		{
+			synchronized (this.unsavedRegionNames)
+			{
+				this.unsavedRegionNames.add(regionFileName);
+			}
+		}
+		this.finishedRegionCount.incrementAndGet();
+		this.tryLogProgress();
+	}
+	
+	/** 
+	 * @param regionFailedChunkCount incremented for each of the tile's chunks that couldn't be imported
+	 * @param tileX relative to the region 
+	 */
+	private void importTile(int[] locations, AtomicInteger regionFailedChunkCount, int regionMinChunkX, int regionMinChunkZ, int tileX, int tileZ, int tileWidth, int tileDepth) throws InterruptedException
+	{
+		// only the tile's own chunks are imported, the border is read so light can spread into the tile
+		ArrayList<IChunkWrapper> tileChunks = new ArrayList<>(tileWidth * tileDepth);
+		ArrayList<IChunkWrapper> loadedChunks = new ArrayList<>((tileWidth + 2) * (tileDepth + 2));
+		for (int z = tileZ - 1; z <= tileZ + tileDepth; z++)
+		{
+			for (int x = tileX - 1; x <= tileX + tileWidth; x++)
+			{
+				if (this.stopped || Thread.interrupted())
+				{
+					throw new InterruptedException("Bulk import stopped.");
+				}
+				
+				boolean isBorderChunk = x < tileX || x >= tileX + tileWidth || z < tileZ || z >= tileZ + tileDepth;
+				boolean isInRegion = x >= 0 && x < RegionFileFormat.CHUNKS_PER_REGION_SIDE && z >= 0 && z < RegionFileFormat.CHUNKS_PER_REGION_SIDE;
+				if (isInRegion && !RegionFileFormat.isPresent(locations[RegionFileFormat.getLocationIndex(x, z)]))
+				{
+					continue;
+				}
+				
+				IChunkWrapper chunk = this.loadChunk(new ChunkPos(regionMinChunkX + x, regionMinChunkZ + z), isBorderChunk ? null : regionFailedChunkCount);
+				if (chunk == null)
+				{
+					continue;
+				}
+				
+				loadedChunks.add(chunk);
+				if (!isBorderChunk)
+				{
+					tileChunks.add(chunk);
+				}
+			}
+		}
+		
+		for (IChunkWrapper chunk : tileChunks)
+		{
+			DhLightingEngine.INSTANCE.lightChunk(chunk, loadedChunks, this.maxSkyLight);
+			waitToHandOff();
+			if (this.stopped)
+			{
+				throw new InterruptedException("Bulk import stopped.");
+			}
+			ServerApi.INSTANCE.serverChunkLoadEvent(chunk, this.levelWrapper);
+		}
+		this.importedChunkCount.addAndGet(tileChunks.size());
+	}
+	
+	/** Blocks until this thread can hand another chunk to DH without going over {@link BatchGenerationSettings.BulkImport#maxChunksPerSecond}. */
+	private static void waitToHandOff() throws InterruptedException
+	{
+		if (BatchGenerationSettings.BulkImport.maxChunksPerSecond <= 0)
+		{
+			return;
+		}
+		
+		long interval = 1_000_000_000L / BatchGenerationSettings.BulkImport.maxChunksPerSecond;
+		long now = System.nanoTime();
+		// reserve the next free slot, slots that passed while nothing was imported aren't saved up
+		long slotTime = Math.max(now, NEXT_HAND_OFF_TIME.getAndAccumulate(now, (nextTime, currentTime) -> Math.max(nextTime, currentTime) + interval));
+		if (slotTime > now)
+		{
+			TimeUnit.NANOSECONDS.sleep(slotTime - now);
+		}
+	}
+	
+	/**
+	 * @param regionFailedChunkCount incremented if the chunk couldn't be read,
+	 *                               null for border chunks, their failures will be reported when their own tile is imported
+	 * @return null if the chunk doesn't exist, isn't generated far enough to be loaded, or couldn't be read
+	 */
+	@Nullable
+	private IChunkWrapper loadChunk(ChunkPos chunkPos, @Nullable AtomicInteger regionFailedChunkCount)
+	{
+		try
+		{
+			CompoundTag chunkData = this.regionCache.read(chunkPos);
+			if (chunkData == null)
+			{
+				return null;
+			}
+			
+			if (BatchGenerationSettings.FastChunkDecode.enabled && FastChunkDecoder.canDecode(chunkPos, chunkData))
+			{
+				DecodedChunkWrapper decodedChunk = this.fastChunkDecoder.decode(chunkPos, chunkData);
+				if (decodedChunk != null)
+				{
+					return decodedChunk;
+				}
+			}
+			
+			LevelChunk chunk = ChunkLoader.read(this.level, chunkPos, chunkData);
+			if (chunk == null)
+			{
+				return null;
+			}
+			
+			ChunkWrapper chunkWrapper = new ChunkWrapper(chunk, this.level, this.levelWrapper);
+			// the level's light engine doesn't know about this chunk
+			chunkWrapper.setUseDhLighting(true);
+			return chunkWrapper;
+		}
+		catch (Exception e)
+		{
+			if (regionFailedChunkCount != null)
+			{
+				regionFailedChunkCount.incrementAndGet();
+				this.failedChunkCount.incrementAndGet();
+				LOGGER.warn("Unable to import chunk " + chunkPos + " for [" + this.levelName + "]. Error: " + e.getMessage());
+			}
+			return null;
+		}
+	}
+	
+	
+	
+	//=========//
+	// journal //
+	//=========//
+	
+	/** @return the names of the region files that have already been imported */
+	private Set<String> readJournal()
+	{
+		Set<String> finishedRegionNames = new HashSet<>();
+		try
+		{
+			for (String line : Files.readAllLines(this.journalPath, StandardCharsets.UTF_8))
+			{
+				if (!line.trim().isEmpty())
+				{
+					finishedRegionNames.add(line.trim());
+				}
+			}
+		}
+		catch (NoSuchFileException e)
+		{
+			// this level hasn't been imported before
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Unable to read the bulk import journal [" + this.journalPath + "], every region file will be imported. Error: " + e.getMessage());
+		}
+		return finishedRegionNames;
+	}
+	
+	/** Appends every region that has been imported since the last call to the journal. */
+	private void writeJournal()
+	{
+		StringBuilder entries = new StringBuilder();
+		int entryCount;
+		synchronized (this.unsavedRegionNames)
+		{
+			entryCount = this.unsavedRegionNames.size();
+			for (String regionFileName : this.unsavedRegionNames)
+			{
+				entries.append(regionFileName).append("\n");
+			}
+			this.unsavedRegionNames.clear();
+		}
+		
+		if (entryCount == 0)
+		{
+			return;
+		}
+		
+		try
+		{
+			Files.write(this.journalPath, entries.toString().getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Unable to write to the bulk import journal [" + this.journalPath + "], [" + entryCount + "] region files will be imported again next time. Error: " + e.getMessage());
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	private void tryLogProgress()
+	{
+		long now = System.nanoTime();
+		boolean finished = this.finishedRegionCount.get() == this.totalRegionCount;
+		long lastTime = this.lastLogTime.get();
+		if (!finished && (now - lastTime < PROGRESS_LOG_INTERVAL_NS || !this.lastLogTime.compareAndSet(lastTime, now)))
+		{
+			return;
+		}
+		
+		long chunkCount = this.importedChunkCount.get();
+		long lastChunkCount = this.lastLogChunkCount.getAndSet(chunkCount);
+		double recentSeconds = Math.max(1, now - lastTime) / 1_000_000_000.0;
+		double totalSeconds = Math.max(1, now - this.startTime) / 1_000_000_000.0;
+		
+		if (finished)
+		{
+			LOGGER.info("Finished importing [" + this.levelName + "]: " + this + ", took [" + String.format("%.0f", totalSeconds) + "] seconds.");
+		}
+		else
+		{
+			LOGGER.info("Importing [" + this.levelName + "]: " + this + ", recent chunks/sec: [" + String.format("%.1f", (chunkCount - lastChunkCount) / recentSeconds) + "]");
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		double totalSeconds = Math.max(1, System.nanoTime() - this.startTime) / 1_000_000_000.0;
+		return "regions: [" + this.finishedRegionCount.get() + "/" + this.totalRegionCount + "], skipped: [" + this.skippedRegionCount.get() + "]"
+				+ ", chunks imported: [" + this.importedChunkCount.get() + "], failed: [" + this.failedChunkCount.get() + "]"
+				+ ", chunks/sec: [" + String.format("%.1f", this.importedChunkCount.get() / totalSeconds) + "]";
+	}
+	
+}
\ No newline at end of file
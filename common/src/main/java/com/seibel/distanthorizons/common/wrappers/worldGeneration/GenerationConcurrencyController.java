@@ -0,0 +1,182 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+
+import net.minecraft.server.MinecraftServer;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Adjusts how many {@link GenerationEvent}s the {@link GenerationScheduler} runs at once,
+ * based on the measured chunk throughput, the queue depth, and the server's tick time. <br><br>
+ *
+ * Uses additive increase / multiplicative decrease: <br>
+ * - while there is queued work and adding a runner improved throughput, one more runner is allowed <br>
+ * - if adding a runner made throughput worse, that runner is removed again <br>
+ * - if the server is lagging or exceptions spike, the limit is halved <br>
+ * - if the chunk generator isn't thread safe the limit is pinned to one runner <br><br>
+ *
+ * Unless {@link BatchGenerationSettings.AdaptiveThreads#enabled} is true the limit only changes
+ * when exceptions spike or the chunk generator isn't thread safe.
+ */
+public final class GenerationConcurrencyController
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	/** throughput has to change by more than this fraction to count as better or worse */
+	private static final double THROUGHPUT_TOLERANCE = 0.05;
+	
+	private final GenerationScheduler scheduler;
+	private final MinecraftServer server;
+	
+	private final AtomicLong completedChunkCount = new AtomicLong(0);
+	private long windowStartTimeNs = System.nanoTime();
+	
+	/** chunks per second measured during the last window */
+	private double lastThroughput = -1;
+	/** true if the limit was raised at the end of the last window */
+	private boolean lastChangeWasIncrease = false;
+	private boolean pinnedToSingleRunner = false;
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public GenerationConcurrencyController(GenerationScheduler scheduler, MinecraftServer server)
+	{
+		this.scheduler = scheduler;
+		this.server = server;
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/** Should be called whenever an event finishes successfully. */
+	public void recordCompletedEvent(GenerationEvent genEvent) { this.completedChunkCount.addAndGet((long) genEvent.size * genEvent.size); }
+	
+	/** Immediately limits generation to a single event at a time, used when the chunk generator isn't thread safe. */
+	public void pinToSingleRunner()
+	{
+		if (!this.pinnedToSingleRunner)
+		{
+			this.pinnedToSingleRunner = true;
+			this.scheduler.setRunnerLimit(1);
+			LOGGER.warn("Distant generation limited to one event at a time since the chunk generator isn't thread safe.");
+		}
+	}
+	
+	/**
+	 * Halves the runner limit.
+	 * @return false if the limit was already at one runner
+	 */
+	public boolean backOff(String reason)
+	{
+		int currentLimit = this.scheduler.getRunnerLimit();
+		if (currentLimit <= 1)
+		{
+			return false;
+		}
+		
+		int newLimit = Math.max(1, currentLimit / 2);
+		this.scheduler.setRunnerLimit(newLimit);
+		this.lastChangeWasIncrease = false;
+		this.lastThroughput = -1;
+		LOGGER.info("Reducing concurrent world gen events from [" + currentLimit + "] to [" + newLimit + "], reason: " + reason);
+		return true;
+	}
+	
+	/** Should be called regularly, the limit will only change once per window. */
+	public void update(boolean unsafeThreadingRecorded)
+	{
+		if (unsafeThreadingRecorded)
+		{
+			this.pinToSingleRunner();
+		}
+		if (!BatchGenerationSettings.AdaptiveThreads.enabled || this.pinnedToSingleRunner)
+		{
+			return;
+		}
+		
+		long now = System.nanoTime();
+		long elapsedNs = now - this.windowStartTimeNs;
+		if (elapsedNs < TimeUnit.MILLISECONDS.toNanos(BatchGenerationSettings.AdaptiveThreads.windowDurationInMs))
+		{
+			return;
+		}
+		this.windowStartTimeNs = now;
+		
+		double throughput = this.completedChunkCount.getAndSet(0) / (elapsedNs / 1_000_000_000.0);
+		int queuedCount = this.scheduler.getQueuedCount();
+		int currentLimit = this.scheduler.getRunnerLimit();
+		
+		
+		if (this.server.getAverageTickTime() > BatchGenerationSettings.AdaptiveThreads.maxServerTickTimeInMs)
+		{
+			this.backOff("server tick time [" + this.server.getAverageTickTime() + "] ms");
+			return;
+		}
+		
+		if (this.lastChangeWasIncrease && this.lastThroughput > 0
+			&& throughput < this.lastThroughput * (1.0 - THROUGHPUT_TOLERANCE))
+		{
+			// the extra runner made things worse (probably lock contention or too few cores)
+			this.scheduler.setRunnerLimit(currentLimit - 1);
+			this.lastChangeWasIncrease = false;
+		}
+		else if (queuedCount > currentLimit && currentLimit < this.scheduler.getMaxRunnerLimit()
+				&& (this.lastThroughput < 0 || throughput >= this.lastThroughput * (1.0 - THROUGHPUT_TOLERANCE)))
+		{
+			// there is enough queued work for another runner
+			this.scheduler.setRunnerLimit(currentLimit + 1);
+			this.lastChangeWasIncrease = true;
+		}
+		else
+		{
+			this.lastChangeWasIncrease = false;
+		}
+		
+		this.lastThroughput = throughput;
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		return "World gen concurrency: limit: [" + this.scheduler.getRunnerLimit() + "/" + this.scheduler.getMaxRunnerLimit() + "], " +
+				"throughput: [" + String.format("%.1f", Math.max(0, this.lastThroughput)) + "] chunks/sec" + (this.pinnedToSingleRunner ? ", pinned to one runner" : "");
+	}
+	
+}
\ No newline at end of file
@@ -20,21 +20,32 @@
 package com.seibel.distanthorizons.common.wrappers.worldGeneration;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.ChunkLoader;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.DhLitWorldGenRegion;
 import com.seibel.distanthorizons.core.generation.WorldGenerationQueue;
 import com.seibel.distanthorizons.core.util.ThreadUtil;
 import com.seibel.distanthorizons.core.util.objects.UncheckedInterruptedException;
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
 import com.seibel.distanthorizons.core.pos.DhChunkPos;
 import com.seibel.distanthorizons.core.util.objects.EventTimer;
+import com.seibel.distanthorizons.core.util.gridList.ArrayGridList;
 import com.seibel.distanthorizons.core.util.threading.ThreadPools;
 import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
 import org.apache.logging.log4j.Logger;
 
 public final class GenerationEvent
@@ -43,7 +54,6 @@ public final class GenerationEvent
 	private static int generationFutureDebugIDs = 0;
 	
 	public final int id;
-	public final ThreadedParameters threadedParam;
 	public final DhChunkPos minPos;
 	public final int size;
 	public final EDhApiWorldGenerationStep targetGenerationStep;
@@ -52,6 +62,37 @@ public final class GenerationEvent
 	public long timeoutTime = -1;
 	public CompletableFuture<Void> future = null;
 	public final Consumer<IChunkWrapper> resultConsumer;
+	/** 
+	 * distance (in chunks) from the event's center to the nearest player, 
+	 * set by {@link GenerationScheduler} whenever the event is prioritized, -1 if no player's position is known 
+	 */
+	public volatile int nearestPlayerDistanceInChunks = -1;
+	
+	/** populated by {@link BatchGenerationEnvironment#prepareGenerationRegion(GenerationEvent)} */
+	public ArrayGridList<ChunkWrapper> chunkWrapperList = null;
+	/** populated by {@link BatchGenerationEnvironment#prepareGenerationRegion(GenerationEvent)} */
+	public DhLitWorldGenRegion region = null;
+	/** the chunks that need to be filled in by {@link SparseLatticeGenerator}, null if this event isn't generated sparsely */
+	public ArrayList<ChunkWrapper> sparseSkippedChunks = null;
+	/** 
+	 * populated by {@link BatchGenerationEnvironment#prefetchChunks(GenerationEvent)} once {@link GenerationScheduler} is about to run the event, 
+	 * null if prefetching is disabled, hasn't started, or the chunks have already been loaded 
+	 */
+	public volatile RegionFilePrefetcher.PrefetchedChunks prefetchedChunks = null;
+	/** populated by {@link BatchGenerationEnvironment#tryEmitStoredChunks(GenerationEvent)}, stored chunks {@link ChunkLoader} would reject, null if there aren't any */
+	public LongOpenHashSet unloadableStoredChunks = null;
+	/** 
+	 * populated by {@link BatchGenerationEnvironment#tryEmitStoredChunks(GenerationEvent)}, 
+	 * chunks that were already read in full there, so {@link BatchGenerationEnvironment#prepareGenerationRegion(GenerationEvent)} doesn't read them again. 
+	 * Keyed by {@link ChunkPos#toLong()}, null if there aren't any.
+	 */
+	public Long2ObjectOpenHashMap<CompoundTag> storedChunkData = null;
+	/** 
+	 * populated by {@link BatchGenerationEnvironment#prepareGenerationRegion(GenerationEvent)}, 
+	 * the chunks that were loaded from disk instead of generated, so {@link BorderChunkCache} never keeps them. 
+	 * Keyed by {@link ChunkPos#toLong()}.
+	 */
+	public final LongSet storedChunkPositions = LongSets.synchronize(new LongOpenHashSet());
 	
 	
 	
@@ -64,7 +105,6 @@ public final class GenerationEvent
 		this.minPos = minPos;
 		this.size = size;
 		this.targetGenerationStep = targetGenerationStep;
-		this.threadedParam = ThreadedParameters.getOrMake(generationGroup.params);
 		this.resultConsumer = resultConsumer;
 	}
 	
@@ -75,14 +115,24 @@ public final class GenerationEvent
 			EDhApiWorldGenerationStep target, Consumer<IChunkWrapper> resultConsumer,
 			ExecutorService worldGeneratorThreadPool)
 	{
-		if (size % 2 == 0)
-		{
-			size += 1; // size must be odd for vanilla world gen regions to work
-		}
+		size = getEventSize(size);
 		
 		
 		GenerationEvent generationEvent = new GenerationEvent(minPos, size, genEnvironment, target, resultConsumer);
-		generationEvent.future = CompletableFuture.runAsync(() ->
+		
+		// the scheduler will start reading the chunks shortly before the event runs
+		generationEvent.future = new CompletableFuture<>();
+		
+		GenerationPipeline pipeline = genEnvironment.getPipeline();
+		if (pipeline != null)
+		{
+			// each generation step group will be run by its own worker threads,
+			// the pipeline's setup queue is bounded so the scheduler still decides which event goes next
+			genEnvironment.getScheduler().submit(generationEvent, () -> pipeline.submit(generationEvent), worldGeneratorThreadPool);
+			return generationEvent;
+		}
+		
+		genEnvironment.getScheduler().submit(generationEvent, () ->
 		{
 			long runStartTime = System.nanoTime();
 			generationEvent.timeoutTime = runStartTime;
@@ -94,9 +144,15 @@ public final class GenerationEvent
 			{
 				//LOGGER.info("generating [{}]", event.minPos);
 				genEnvironment.generateLodFromList(generationEvent);
+				generationEvent.future.complete(null);
 			}
 			catch (InterruptedException ignored)
 			{
+				generationEvent.future.complete(null);
+			}
+			catch (Throwable e)
+			{
+				generationEvent.future.completeExceptionally(e);
 			}
 			finally
 			{
@@ -106,6 +162,29 @@ public final class GenerationEvent
 		return generationEvent;
 	}
 	
+	/** @return the size that will actually be generated for the given requested size */
+	public static int getEventSize(int size)
+	{
+		if (size % 2 == 0)
+		{
+			size += 1; // size must be odd for vanilla world gen regions to work
+		}
+		return size;
+	}
+	
+	/** 
+	 * @return roughly the LOD detail level this event was requested for,
+	 * larger events are requested for lower detail (higher detail level) LODs. <br>
+	 * Event sizes are capped well below the lowest detail levels,
+	 * so this is only useful for comparing events with each other.
+	 */
+	public int getEstimatedDetailLevel()
+	{
+		// 4 = chunk sized LODs, each doubling of the event's width is one detail level lower
+		int log2Size = 32 - Integer.numberOfLeadingZeros(Math.max(1, this.size) - 1);
+		return 4 + log2Size;
+	}
+	
 	public boolean isComplete() { return this.future.isDone(); }
 	
 	public boolean hasTimeout(int duration, TimeUnit unit)
@@ -128,11 +207,14 @@ public final class GenerationEvent
 		return this.future.isCancelled();
 	}
 	
-	public boolean tooClose(int minX, int minZ, int width)
+	public boolean tooClose(int minX, int minZ, int width) { return tooClose(this.minPos.x, this.minPos.z, this.size, minX, minZ, width); }
+	
+	/** 
+	 * @return true if the two areas overlap or are close enough that their border chunks would overlap
+	 * @see GenerationEventPlanner
+	 */
+	public static boolean tooClose(int aMinX, int aMinZ, int aSize, int minX, int minZ, int width)
 	{
-		int aMinX = this.minPos.x;
-		int aMinZ = this.minPos.z;
-		int aSize = this.size;
 		// Account for required empty chunks in the border
 		aSize += 1;
 		width += 1;
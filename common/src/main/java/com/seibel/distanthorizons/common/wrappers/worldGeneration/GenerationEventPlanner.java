@@ -0,0 +1,464 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+import com.seibel.distanthorizons.common.util.NamedThreadFactory;
+import com.seibel.distanthorizons.core.pos.DhChunkPos;
+import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.world.level.ChunkPos;
+
+/**
+ * Sits in front of {@link GenerationEvent#startEvent} and combines
+ * generation requests that are next to each other into fewer, larger events. <br><br>
+ *
+ * Every event needs a ring of {@link BatchGenerationEnvironment#MaxBorderNeeded} border chunks
+ * which have to be loaded (or created) but are then thrown away,
+ * so many small neighbouring requests spend a lot of their time on border chunks. <br>
+ * Requests are held for {@link BatchGenerationSettings.EventMerging#mergeWindowInMs} so requests
+ * that arrive together can be merged, then each merged event's results are
+ * handed back to whichever original requests contain them.
+ */
+public final class GenerationEventPlanner
+{
+	private static final ScheduledExecutorService FLUSH_EXECUTOR = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("DH-WorldGen-Planner", Thread.NORM_PRIORITY));
+	
+	private final BatchGenerationEnvironment environment;
+	
+	private final Object pendingLock = new Object();
+	private ArrayList<PlannedRequest> pendingRequests = new ArrayList<>();
+	private boolean flushScheduled = false;
+	private volatile boolean isShutdown = false;
+	
+	private final AtomicLong requestCount = new AtomicLong(0);
+	private final AtomicLong eventCount = new AtomicLong(0);
+	private final AtomicLong borderChunkLoadsAvoided = new AtomicLong(0);
+	private final AtomicLong duplicateChunkGenerationsAvoided = new AtomicLong(0);
+	private final AtomicLong extraChunksGenerated = new AtomicLong(0);
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public GenerationEventPlanner(BatchGenerationEnvironment environment) { this.environment = environment; }
+	
+	
+	
+	//==========//
+	// requests //
+	//==========//
+	
+	/** @return a future that completes once the requested area has been generated */
+	public CompletableFuture<Void> queueRequest(
+			int minX, int minZ, int size, EDhApiWorldGenerationStep targetStep,
+			ExecutorService worldGeneratorThreadPool, Consumer<IChunkWrapper> resultConsumer)
+	{
+		PlannedRequest request = new PlannedRequest(minX, minZ, size, targetStep, worldGeneratorThreadPool, resultConsumer);
+		this.requestCount.incrementAndGet();
+		
+		synchronized (this.pendingLock)
+		{
+			if (this.isShutdown)
+			{
+				request.future.cancel(false);
+				return request.future;
+			}
+			
+			this.pendingRequests.add(request);
+			if (!this.flushScheduled)
+			{
+				this.flushScheduled = true;
+				FLUSH_EXECUTOR.schedule(this::flush, BatchGenerationSettings.EventMerging.mergeWindowInMs, TimeUnit.MILLISECONDS);
+			}
+		}
+		
+		return request.future;
+	}
+	
+	public int getPendingCount()
+	{
+		synchronized (this.pendingLock)
+		{
+			return this.pendingRequests.size();
+		}
+	}
+	
+	/** Merges and starts every pending request. */
+	public void flush()
+	{
+		ArrayList<PlannedRequest> requests;
+		synchronized (this.pendingLock)
+		{
+			requests = this.pendingRequests;
+			this.pendingRequests = new ArrayList<>();
+			this.flushScheduled = false;
+		}
+		
+		if (requests.isEmpty())
+		{
+			return;
+		}
+		
+		for (MergedGroup group : planGroups(requests))
+		{
+			try
+			{
+				this.startGroup(group);
+			}
+			catch (Exception e)
+			{
+				// only this group's requests are affected, the other groups can still be started
+				BatchGenerationEnvironment.EVENT_LOGGER.error("Unable to start planned world gen event at [" + group.minX + "," + group.minZ + "], error: " + e.getMessage(), e);
+				for (PlannedRequest request : group.requests)
+				{
+					request.future.completeExceptionally(e);
+				}
+			}
+		}
+		
+		if (BatchGenerationEnvironment.PREF_LOGGER.canMaybeLog())
+		{
+			BatchGenerationEnvironment.PREF_LOGGER.infoInc("{}", this);
+		}
+	}
+	
+	/** Greedily combines requests with the same target step that are close enough to share border chunks. */
+	private static ArrayList<MergedGroup> planGroups(ArrayList<PlannedRequest> requests)
+	{
+		// sorting keeps neighbours next to each other, which gives the greedy merge better results
+		requests.sort(Comparator.<PlannedRequest>comparingInt(request -> request.minZ).thenComparingInt(request -> request.minX));
+		
+		ArrayList<MergedGroup> groups = new ArrayList<>();
+		for (PlannedRequest request : requests)
+		{
+			MergedGroup mergeTarget = null;
+			if (BatchGenerationSettings.EventMerging.enabled)
+			{
+				for (MergedGroup group : groups)
+				{
+					if (group.canMerge(request))
+					{
+						mergeTarget = group;
+						break;
+					}
+				}
+			}
+			
+			if (mergeTarget != null)
+			{
+				mergeTarget.add(request);
+			}
+			else
+			{
+				groups.add(new MergedGroup(request));
+			}
+		}
+		return groups;
+	}
+	
+	private void startGroup(MergedGroup group)
+	{
+		// only requests that haven't been canceled need to be generated
+		group.requests.removeIf(request -> request.future.isDone());
+		if (group.requests.isEmpty())
+		{
+			return;
+		}
+		
+		PlannedRequest firstRequest = group.requests.get(0);
+		GenerationEvent genEvent;
+		if (group.requests.size() == 1)
+		{
+			genEvent = GenerationEvent.startEvent(new DhChunkPos(firstRequest.minX, firstRequest.minZ), firstRequest.size,
+					this.environment, firstRequest.targetStep, firstRequest.resultConsumer, firstRequest.worldGeneratorThreadPool);
+		}
+		else
+		{
+			this.recordMergeSavings(group);
+			genEvent = GenerationEvent.startEvent(new DhChunkPos(group.minX, group.minZ), group.getSize(),
+					this.environment, group.targetStep, group::acceptResult, firstRequest.worldGeneratorThreadPool);
+		}
+		this.eventCount.incrementAndGet();
+		this.environment.trackEvent(genEvent);
+		
+		
+		// pass the event's result back to the original requests
+		genEvent.future.whenComplete((result, throwable) ->
+		{
+			for (PlannedRequest request : group.requests)
+			{
+				if (throwable == null)
+				{
+					request.future.complete(null);
+				}
+				else if (throwable instanceof CancellationException
+						|| (throwable instanceof CompletionException && throwable.getCause() instanceof CancellationException))
+				{
+					request.future.cancel(false);
+				}
+				else
+				{
+					request.future.completeExceptionally(throwable);
+				}
+			}
+		});
+		
+		// only cancel the event once nobody is waiting for it
+		for (PlannedRequest request : group.requests)
+		{
+			request.future.whenComplete((result, throwable) ->
+			{
+				if (request.future.isCancelled() && group.requests.stream().allMatch(otherRequest -> otherRequest.future.isCancelled()))
+				{
+					genEvent.future.cancel(true);
+				}
+			});
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	private void recordMergeSavings(MergedGroup group)
+	{
+		int border = BatchGenerationEnvironment.MaxBorderNeeded;
+		
+		long separateBorderChunks = 0;
+		long separateGeneratedChunks = 0;
+		LongOpenHashSet requestedChunks = new LongOpenHashSet();
+		for (PlannedRequest request : group.requests)
+		{
+			int size = GenerationEvent.getEventSize(request.size);
+			separateBorderChunks += borderChunkCount(size, border);
+			separateGeneratedChunks += (long) size * size;
+			
+			for (int x = request.minX; x < request.minX + request.size; x++)
+			{
+				for (int z = request.minZ; z < request.minZ + request.size; z++)
+				{
+					requestedChunks.add(ChunkPos.asLong(x, z));
+				}
+			}
+		}
+		
+		int mergedSize = GenerationEvent.getEventSize(group.getSize());
+		long mergedGeneratedChunks = (long) mergedSize * mergedSize;
+		
+		this.borderChunkLoadsAvoided.addAndGet(separateBorderChunks - borderChunkCount(mergedSize, border));
+		this.duplicateChunkGenerationsAvoided.addAndGet(Math.max(0, separateGeneratedChunks - mergedGeneratedChunks));
+		this.extraChunksGenerated.addAndGet(Math.max(0, mergedGeneratedChunks - requestedChunks.size()));
+	}
+	private static long borderChunkCount(int size, int border) { return ((long) (size + border * 2) * (size + border * 2)) - ((long) size * size); }
+	
+	@Override
+	public String toString()
+	{
+		return "World gen event planner: [" + this.requestCount.get() + "] requests run as [" + this.eventCount.get() + "] events, " +
+				"border chunk loads avoided: [" + this.borderChunkLoadsAvoided.get() + "], " +
+				"duplicate chunk generations avoided: [" + this.duplicateChunkGenerationsAvoided.get() + "], " +
+				"extra chunks generated: [" + this.extraChunksGenerated.get() + "]";
+	}
+	
+	
+	
+	//==========//
+	// shutdown //
+	//==========//
+	
+	/** Cancels every request that hasn't been started yet. */
+	public void shutdown()
+	{
+		ArrayList<PlannedRequest> requests;
+		synchronized (this.pendingLock)
+		{
+			this.isShutdown = true;
+			requests = this.pendingRequests;
+			this.pendingRequests = new ArrayList<>();
+		}
+		
+		for (PlannedRequest request : requests)
+		{
+			request.future.cancel(false);
+		}
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static final class PlannedRequest
+	{
+		public final int minX;
+		public final int minZ;
+		public final int size;
+		public final EDhApiWorldGenerationStep targetStep;
+		public final ExecutorService worldGeneratorThreadPool;
+		public final Consumer<IChunkWrapper> resultConsumer;
+		public final CompletableFuture<Void> future = new CompletableFuture<>();
+		
+		public PlannedRequest(
+				int minX, int minZ, int size, EDhApiWorldGenerationStep targetStep,
+				ExecutorService worldGeneratorThreadPool, Consumer<IChunkWrapper> resultConsumer)
+		{
+			this.minX = minX;
+			this.minZ = minZ;
+			this.size = size;
+			this.targetStep = targetStep;
+			this.worldGeneratorThreadPool = worldGeneratorThreadPool;
+			this.resultConsumer = resultConsumer;
+		}
+		
+		public boolean contains(int chunkX, int chunkZ)
+		{
+			return chunkX >= this.minX && chunkX < this.minX + this.size
+					&& chunkZ >= this.minZ && chunkZ < this.minZ + this.size;
+		}
+		
+	}
+	
+	private static final class MergedGroup
+	{
+		public final EDhApiWorldGenerationStep targetStep;
+		public final ArrayList<PlannedRequest> requests = new ArrayList<>();
+		
+		public int minX;
+		public int minZ;
+		/** exclusive */
+		public int maxX;
+		/** exclusive */
+		public int maxZ;
+		
+		public MergedGroup(PlannedRequest request)
+		{
+			this.targetStep = request.targetStep;
+			this.minX = request.minX;
+			this.minZ = request.minZ;
+			this.maxX = request.minX + request.size;
+			this.maxZ = request.minZ + request.size;
+			this.add(request);
+		}
+		
+		public int getSize() { return Math.max(this.maxX - this.minX, this.maxZ - this.minZ); }
+		
+		public boolean canMerge(PlannedRequest request)
+		{
+			if (request.targetStep != this.targetStep)
+			{
+				return false;
+			}
+			
+			boolean isNearby = false;
+			for (PlannedRequest member : this.requests)
+			{
+				if (GenerationEvent.tooClose(member.minX, member.minZ, member.size, request.minX, request.minZ, request.size))
+				{
+					isNearby = true;
+					break;
+				}
+			}
+			if (!isNearby)
+			{
+				return false;
+			}
+			
+			int mergedSize = Math.max(
+					Math.max(this.maxX, request.minX + request.size) - Math.min(this.minX, request.minX),
+					Math.max(this.maxZ, request.minZ + request.size) - Math.min(this.minZ, request.minZ));
+			if (mergedSize > BatchGenerationSettings.EventMerging.maxMergedSize)
+			{
+				return false;
+			}
+			
+			// overlapping requests only count once, otherwise a stack of duplicates could justify a mostly empty event
+			long mergedArea = (long) mergedSize * mergedSize;
+			long requestedArea = this.countRequestedChunks(
+					Math.min(this.minX, request.minX), Math.min(this.minZ, request.minZ), mergedSize, request);
+			return (requestedArea * 100 >= mergedArea * BatchGenerationSettings.EventMerging.minMergedFillPercent);
+		}
+		
+		/** @return how many chunks of the given square are inside at least one member or the given request */
+		private int countRequestedChunks(int squareMinX, int squareMinZ, int squareSize, PlannedRequest newRequest)
+		{
+			// the square is at most the max merged size wide, so this stays small
+			BitSet requestedChunks = new BitSet(squareSize * squareSize);
+			for (PlannedRequest member : this.requests)
+			{
+				markRequestedChunks(requestedChunks, member, squareMinX, squareMinZ, squareSize);
+			}
+			markRequestedChunks(requestedChunks, newRequest, squareMinX, squareMinZ, squareSize);
+			return requestedChunks.cardinality();
+		}
+		private static void markRequestedChunks(BitSet requestedChunks, PlannedRequest request, int squareMinX, int squareMinZ, int squareSize)
+		{
+			int relativeX = request.minX - squareMinX;
+			for (int relativeZ = request.minZ - squareMinZ; relativeZ < request.minZ - squareMinZ + request.size; relativeZ++)
+			{
+				requestedChunks.set(relativeZ * squareSize + relativeX, relativeZ * squareSize + relativeX + request.size);
+			}
+		}
+		
+		public void add(PlannedRequest request)
+		{
+			this.requests.add(request);
+			
+			this.minX = Math.min(this.minX, request.minX);
+			this.minZ = Math.min(this.minZ, request.minZ);
+			this.maxX = Math.max(this.maxX, request.minX + request.size);
+			this.maxZ = Math.max(this.maxZ, request.minZ + request.size);
+		}
+		
+		/** passes the generated chunk to every request that contains it */
+		public void acceptResult(IChunkWrapper chunk)
+		{
+			DhChunkPos pos = chunk.getChunkPos();
+			for (PlannedRequest request : this.requests)
+			{
+				if (!request.future.isDone() && request.contains(pos.x, pos.z))
+				{
+					request.resultConsumer.accept(chunk);
+				}
+			}
+		}
+		
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,307 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.seibel.distanthorizons.common.util.NamedThreadFactory;
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+import com.seibel.distanthorizons.core.util.objects.EventTimer;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs {@link GenerationEvent}s through a set of stages,
+ * each with its own worker threads and a bounded queue in front of it. <br>
+ * This allows the expensive noise step for one event to overlap
+ * with the feature and lighting steps of another event. <br><br>
+ *
+ * Stages: <br>
+ * setup - loads the chunks and creates the world gen region <br>
+ * noise - structure starts/references, biomes, and noise <br>
+ * decorate - surface, carvers, and features <br>
+ * light - filling in sparse chunks, DH lighting, and passing the results back to the requester <br><br>
+ *
+ * Every queue is bounded; a stage that can't hand off an event
+ * will block until the next stage has room, which keeps memory use in check. <br>
+ * This also leaves waiting events in the {@link GenerationScheduler}, so it can still decide which event goes next.
+ */
+public final class GenerationPipeline
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	/** how long a hand off waits for a queue slot before checking if the stage has been shut down */
+	private static final long SLOT_WAIT_IN_MS = 100;
+	
+	private final BatchGenerationEnvironment environment;
+	
+	private final Stage setupStage;
+	private final Stage noiseStage;
+	private final Stage decorateStage;
+	private final Stage lightStage;
+	private final Stage[] stages;
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public GenerationPipeline(BatchGenerationEnvironment environment)
+	{
+		this.environment = environment;
+		
+		this.setupStage = new Stage("setup", BatchGenerationSettings.Pipeline.setupThreadCount, BatchGenerationSettings.Pipeline.stageQueueCapacity);
+		this.noiseStage = new Stage("noise", BatchGenerationSettings.Pipeline.noiseThreadCount, BatchGenerationSettings.Pipeline.stageQueueCapacity);
+		this.decorateStage = new Stage("decorate", BatchGenerationSettings.Pipeline.decorateThreadCount, BatchGenerationSettings.Pipeline.stageQueueCapacity);
+		this.lightStage = new Stage("light", BatchGenerationSettings.Pipeline.lightThreadCount, BatchGenerationSettings.Pipeline.stageQueueCapacity);
+		this.stages = new Stage[] { this.setupStage, this.noiseStage, this.decorateStage, this.lightStage };
+		
+		LOGGER.info("World gen pipeline started with [" + BatchGenerationSettings.Pipeline.setupThreadCount + "/" + BatchGenerationSettings.Pipeline.noiseThreadCount + "/" + BatchGenerationSettings.Pipeline.decorateThreadCount + "/" + BatchGenerationSettings.Pipeline.lightThreadCount + "] setup/noise/decorate/light threads.");
+	}
+	
+	
+	
+	//=========//
+	// running //
+	//=========//
+	
+	/** 
+	 * The event's future will be completed once the event has passed through every stage. <br>
+	 * Blocks if the setup stage's queue is full.
+	 */
+	public void submit(GenerationEvent genEvent)
+	{
+		this.handOff(genEvent, this.setupStage, this::runSetup);
+	}
+	
+	private void runSetup(GenerationEvent genEvent) throws InterruptedException
+	{
+		long runStartTime = System.nanoTime();
+		genEvent.inQueueTime = runStartTime - genEvent.inQueueTime;
+		genEvent.timer = new EventTimer("setup");
+		
+		if (this.environment.tryEmitStoredChunks(genEvent))
+		{
+			// every chunk was already on disk, nothing needs generating
+			genEvent.future.complete(null);
+			return;
+		}
+		
+		this.environment.prepareGenerationRegion(genEvent);
+		
+		this.handOff(genEvent, this.noiseStage, this::runNoise);
+	}
+	
+	private void runNoise(GenerationEvent genEvent) throws InterruptedException
+	{
+		boolean targetStepReached = this.environment.generateStepsUpToNoise(genEvent, genEvent.chunkWrapperList, genEvent.targetGenerationStep, genEvent.region);
+		
+		if (targetStepReached)
+		{
+			this.handOff(genEvent, this.lightStage, this::runLight);
+		}
+		else
+		{
+			this.handOff(genEvent, this.decorateStage, this::runDecorate);
+		}
+	}
+	
+	private void runDecorate(GenerationEvent genEvent) throws InterruptedException
+	{
+		this.environment.generateStepsAfterNoise(genEvent, genEvent.chunkWrapperList, genEvent.targetGenerationStep, genEvent.region);
+		this.handOff(genEvent, this.lightStage, this::runLight);
+	}
+	
+	private void runLight(GenerationEvent genEvent) throws InterruptedException
+	{
+		this.environment.fillSparseChunks(genEvent, genEvent.chunkWrapperList);
+		this.environment.lightChunks(genEvent, genEvent.chunkWrapperList);
+		genEvent.timer.nextEvent("cleanup");
+		this.environment.emitGeneratedChunks(genEvent);
+		this.environment.cacheBorderChunks(genEvent);
+		
+		// the chunks are no longer needed
+		genEvent.region = null;
+		genEvent.chunkWrapperList = null;
+		
+		genEvent.future.complete(null);
+	}
+	
+	/** 
+	 * Queues the given event for the given stage, blocking if that stage's queue is full. <br>
+	 * The event is failed if the stage has been shut down, or canceled if the calling thread is interrupted.
+	 */
+	private void handOff(GenerationEvent genEvent, Stage stage, IStageRunner runner)
+	{
+		// waiting in a queue isn't the same as being stuck, so don't time out while waiting
+		genEvent.timeoutTime = -1;
+		
+		try
+		{
+			// a stage that has been shut down will never free up a slot
+			while (!stage.queueSlots.tryAcquire(SLOT_WAIT_IN_MS, TimeUnit.MILLISECONDS))
+			{
+				if (stage.executor.isShutdown())
+				{
+					genEvent.future.completeExceptionally(new RejectedExecutionException("World gen pipeline stage [" + stage.name + "] has been shut down."));
+					return;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			genEvent.future.cancel(false);
+			return;
+		}
+		
+		try
+		{
+			stage.executor.execute(() -> this.runStage(genEvent, stage, runner));
+		}
+		catch (RejectedExecutionException e)
+		{
+			stage.queueSlots.release();
+			genEvent.future.completeExceptionally(e);
+		}
+	}
+	
+	private void runStage(GenerationEvent genEvent, Stage stage, IStageRunner runner)
+	{
+		// the event is no longer waiting in the queue
+		stage.queueSlots.release();
+		
+		// the event was canceled or timed out while waiting in the queue
+		if (genEvent.future.isDone())
+		{
+			return;
+		}
+		
+		BatchGenerationEnvironment.isDistantGeneratorThread.set(true);
+		try
+		{
+			genEvent.refreshTimeout();
+			runner.run(genEvent);
+			stage.processedEventCount.incrementAndGet();
+		}
+		catch (InterruptedException e)
+		{
+			genEvent.future.cancel(false);
+		}
+		catch (Throwable e)
+		{
+			genEvent.future.completeExceptionally(e);
+		}
+		finally
+		{
+			BatchGenerationEnvironment.isDistantGeneratorThread.remove();
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	/** @return the number of events waiting in front of each stage, in stage order */
+	public int[] getQueueDepths()
+	{
+		int[] depths = new int[this.stages.length];
+		for (int i = 0; i < this.stages.length; i++)
+		{
+			depths[i] = this.stages[i].executor.getQueue().size();
+		}
+		return depths;
+	}
+	
+	/** used to help size each stage's thread count */
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("World gen pipeline: ");
+		for (Stage stage : this.stages)
+		{
+			sb.append(stage.name)
+					.append(" [queued: ").append(stage.executor.getQueue().size())
+					.append(", active: ").append(stage.executor.getActiveCount()).append("/").append(stage.executor.getMaximumPoolSize())
+					.append(", done: ").append(stage.processedEventCount.get())
+					.append("] ");
+		}
+		return sb.toString();
+	}
+	
+	
+	
+	//==========//
+	// shutdown //
+	//==========//
+	
+	public void shutdown()
+	{
+		for (Stage stage : this.stages)
+		{
+			stage.executor.shutdownNow();
+		}
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	@FunctionalInterface
+	private interface IStageRunner
+	{
+		void run(GenerationEvent genEvent) throws InterruptedException;
+	}
+	
+	private static final class Stage
+	{
+		public final String name;
+		public final ThreadPoolExecutor executor;
+		/** 
+		 * Acquired before an event is handed to the executor and released once a worker picks it up,
+		 * so the executor's queue never holds more than the stage's capacity. <br>
+		 * Bounding the queue itself would require a rejection handler that races with shutdown.
+		 */
+		public final Semaphore queueSlots;
+		public final AtomicLong processedEventCount = new AtomicLong(0);
+		
+		public Stage(String name, int threadCount, int queueCapacity)
+		{
+			this.name = name;
+			threadCount = Math.max(1, threadCount);
+			this.queueSlots = new Semaphore(Math.max(1, queueCapacity));
+			this.executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<>(), new NamedThreadFactory("DH-WorldGen-" + name, Thread.MIN_PRIORITY));
+		}
+		
+	}
+	
+}
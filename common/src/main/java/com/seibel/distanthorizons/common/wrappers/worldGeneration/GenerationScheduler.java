@@ -0,0 +1,541 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides which {@link GenerationEvent} should be run next. <br><br>
+ *
+ * Events are ordered by their distance to the nearest player, then by their detail level,
+ * so when a player flies or teleports the requests around their new position
+ * don't have to wait for every far away request submitted before them. <br>
+ * Events are run by a limited number of runner tasks on the world generator thread pool,
+ * each runner keeps taking the highest priority event until the queue is empty. <br>
+ * The runner limit applies to events in flight (from when they're taken until their future completes),
+ * not just to runners, since with the {@link GenerationPipeline} a runner only hands the event off. <br><br>
+ *
+ * The next {@link BatchGenerationSettings.Prefetch#lookaheadEventCount} events are taken out of the queue early
+ * so their chunks can be prefetched before they run.
+ * Those events are no longer re-prioritized, so the lookahead should be kept small.
+ */
+public final class GenerationScheduler
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	/** every scheduler that hasn't been closed, their player positions are updated on the server thread */
+	private static final Set<GenerationScheduler> OPEN_SCHEDULERS = ConcurrentHashMap.newKeySet();
+	
+	private final ServerLevel level;
+	
+	private final PriorityBlockingQueue<ScheduledEvent> eventQueue = new PriorityBlockingQueue<>();
+	/** 
+	 * events that will be run next, in order, their chunks are being prefetched. <br>
+	 * Guarded by itself.
+	 */
+	private final ArrayDeque<ScheduledEvent> upcomingEvents = new ArrayDeque<>();
+	/** called when an event is moved into {@link GenerationScheduler#upcomingEvents} */
+	private final Consumer<GenerationEvent> upcomingEventListener;
+	private final AtomicInteger runnerCount = new AtomicInteger(0);
+	/** events that have been taken from the queue but whose future hasn't completed yet */
+	private final AtomicInteger inFlightCount = new AtomicInteger(0);
+	/** how many runners (and events in flight) are currently allowed, between 1 and {@link GenerationScheduler#getMaxRunnerLimit()} */
+	private volatile int runnerLimit = BatchGenerationSettings.Scheduler.maxRunnerCount;
+	/** the pool the last event was submitted with, used to start new runners when the limit is raised */
+	private volatile ExecutorService lastThreadPool = null;
+	/** how many threads {@link GenerationScheduler#lastThreadPool} has, so runners don't wait on each other for a thread */
+	private volatile int coreThreadCount = BatchGenerationSettings.Threads.maxThreadCount;
+	private final AtomicLong submitCount = new AtomicLong(0);
+	private final AtomicLong droppedEventCount = new AtomicLong(0);
+	
+	/**
+	 * player chunk positions, stored as x/z pairs. <br>
+	 * Written by the server thread, replaced as a whole so it can be read without locking.
+	 */
+	private volatile int[] playerChunkPositions = new int[0];
+	/** the player positions used the last time the queue was re-prioritized */
+	private int[] prioritizedPlayerChunkPositions = new int[0];
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	/** @param upcomingEventListener called shortly before an event is run, used to start prefetching its chunks */
+	public GenerationScheduler(ServerLevel level, Consumer<GenerationEvent> upcomingEventListener)
+	{
+		this.level = level;
+		this.upcomingEventListener = upcomingEventListener;
+		OPEN_SCHEDULERS.add(this);
+	}
+	
+	
+	
+	//============//
+	// scheduling //
+	//============//
+	
+	/**
+	 * Queues the given task, it will be run on the given thread pool
+	 * once there aren't any higher priority events waiting.
+	 */
+	public void submit(GenerationEvent genEvent, Runnable task, ExecutorService worldGeneratorThreadPool)
+	{
+		ScheduledEvent scheduledEvent = new ScheduledEvent(genEvent, task, this.submitCount.getAndIncrement());
+		scheduledEvent.updatePriority(this.playerChunkPositions);
+		this.eventQueue.add(scheduledEvent);
+		
+		if (this.lastThreadPool != worldGeneratorThreadPool)
+		{
+			this.coreThreadCount = BatchGenerationSettings.Threads.getCoreThreadCount(worldGeneratorThreadPool);
+			this.runnerLimit = Math.min(this.runnerLimit, this.getMaxRunnerLimit());
+			this.lastThreadPool = worldGeneratorThreadPool;
+		}
+		this.tryStartRunner(worldGeneratorThreadPool);
+	}
+	
+	public int getRunnerLimit() { return this.runnerLimit; }
+	/** the smaller of {@link BatchGenerationSettings.Scheduler#maxRunnerCount} and the thread count of DH's world gen thread pool */
+	public int getMaxRunnerLimit() { return Math.max(1, Math.min(BatchGenerationSettings.Scheduler.maxRunnerCount, this.coreThreadCount)); }
+	/** 
+	 * Lowering the limit won't interrupt any running events,
+	 * extra runners will stop once their current event is done.
+	 */
+	public void setRunnerLimit(int newLimit)
+	{
+		newLimit = Math.max(1, Math.min(newLimit, this.getMaxRunnerLimit()));
+		int oldLimit = this.runnerLimit;
+		this.runnerLimit = newLimit;
+		
+		ExecutorService threadPool = this.lastThreadPool;
+		if (newLimit > oldLimit && threadPool != null)
+		{
+			for (int i = oldLimit; i < newLimit && this.hasQueuedEvents(); i++)
+			{
+				this.tryStartRunner(threadPool);
+			}
+		}
+	}
+	
+	private void tryStartRunner(ExecutorService worldGeneratorThreadPool)
+	{
+		// a runner wouldn't be able to start any events, one will be started when an event finishes
+		if (this.inFlightCount.get() >= this.runnerLimit)
+		{
+			return;
+		}
+		
+		int currentRunnerCount = this.runnerCount.get();
+		while (currentRunnerCount < this.runnerLimit)
+		{
+			if (this.runnerCount.compareAndSet(currentRunnerCount, currentRunnerCount + 1))
+			{
+				try
+				{
+					worldGeneratorThreadPool.execute(() -> this.runEvents(worldGeneratorThreadPool));
+				}
+				catch (RejectedExecutionException e)
+				{
+					this.runnerCount.decrementAndGet();
+					this.cancelQueuedEvents();
+				}
+				return;
+			}
+			currentRunnerCount = this.runnerCount.get();
+		}
+	}
+	
+	private void runEvents(ExecutorService worldGeneratorThreadPool)
+	{
+		boolean retired = false;
+		try
+		{
+			while (true)
+			{
+				// stop early if the limit was lowered
+				int currentRunnerCount = this.runnerCount.get();
+				if (currentRunnerCount > this.runnerLimit)
+				{
+					if (this.runnerCount.compareAndSet(currentRunnerCount, currentRunnerCount - 1))
+					{
+						retired = true;
+						return;
+					}
+					continue;
+				}
+				
+				// stop once enough events are in flight, finishing events will start a new runner
+				if (!this.tryReserveInFlightSlot())
+				{
+					break;
+				}
+				
+				ScheduledEvent scheduledEvent = this.pollNextEvent();
+				if (scheduledEvent == null)
+				{
+					this.inFlightCount.decrementAndGet();
+					break;
+				}
+				
+				// canceled while waiting in the queue
+				if (scheduledEvent.genEvent.future.isDone())
+				{
+					this.inFlightCount.decrementAndGet();
+					continue;
+				}
+				
+				scheduledEvent.genEvent.future.whenComplete((result, throwable) -> this.onEventFinished());
+				try
+				{
+					scheduledEvent.task.run();
+				}
+				catch (Exception e)
+				{
+					scheduledEvent.genEvent.future.completeExceptionally(e);
+				}
+			}
+		}
+		finally
+		{
+			if (!retired)
+			{
+				this.runnerCount.decrementAndGet();
+			}
+		}
+		
+		// an event may have been added after the queue was found empty but before this runner stopped
+		if (this.hasQueuedEvents())
+		{
+			this.tryStartRunner(worldGeneratorThreadPool);
+		}
+	}
+	
+	/** @return false if {@link GenerationScheduler#runnerLimit} events are already in flight */
+	private boolean tryReserveInFlightSlot()
+	{
+		while (true)
+		{
+			int currentInFlightCount = this.inFlightCount.get();
+			if (currentInFlightCount >= this.runnerLimit)
+			{
+				return false;
+			}
+			else if (this.inFlightCount.compareAndSet(currentInFlightCount, currentInFlightCount + 1))
+			{
+				return true;
+			}
+		}
+	}
+	
+	private void onEventFinished()
+	{
+		this.inFlightCount.decrementAndGet();
+		
+		ExecutorService threadPool = this.lastThreadPool;
+		if (threadPool != null && this.hasQueuedEvents())
+		{
+			this.tryStartRunner(threadPool);
+		}
+	}
+	
+	/** 
+	 * Takes the next event to run and tops up {@link GenerationScheduler#upcomingEvents}. 
+	 * @return null if no events are queued
+	 */
+	private ScheduledEvent pollNextEvent()
+	{
+		int lookaheadCount = BatchGenerationSettings.Prefetch.enabled ? Math.max(0, BatchGenerationSettings.Prefetch.lookaheadEventCount) : 0;
+		
+		ScheduledEvent nextEvent;
+		ArrayList<ScheduledEvent> newUpcomingEvents = new ArrayList<>();
+		synchronized (this.upcomingEvents)
+		{
+			nextEvent = this.upcomingEvents.poll();
+			if (nextEvent == null)
+			{
+				nextEvent = this.eventQueue.poll();
+			}
+			
+			while (this.upcomingEvents.size() < lookaheadCount)
+			{
+				ScheduledEvent upcomingEvent = this.eventQueue.poll();
+				if (upcomingEvent == null)
+				{
+					break;
+				}
+				this.upcomingEvents.add(upcomingEvent);
+				newUpcomingEvents.add(upcomingEvent);
+			}
+		}
+		
+		// started outside the lock since it can take a moment
+		for (ScheduledEvent upcomingEvent : newUpcomingEvents)
+		{
+			this.upcomingEventListener.accept(upcomingEvent.genEvent);
+		}
+		return nextEvent;
+	}
+	
+	private boolean hasQueuedEvents()
+	{
+		if (!this.eventQueue.isEmpty())
+		{
+			return true;
+		}
+		
+		synchronized (this.upcomingEvents)
+		{
+			return !this.upcomingEvents.isEmpty();
+		}
+	}
+	
+	
+	
+	//================//
+	// prioritization //
+	//================//
+	
+	/** 
+	 * Takes a snapshot of every open scheduler's player positions. <br>
+	 * Must be called on the server thread, since that thread owns the player lists.
+	 */
+	public static void onServerTick()
+	{
+		for (GenerationScheduler scheduler : OPEN_SCHEDULERS)
+		{
+			scheduler.snapshotPlayerPositions();
+		}
+	}
+	
+	private void snapshotPlayerPositions()
+	{
+		List<ServerPlayer> players = this.level.players();
+		int[] newPositions = new int[players.size() * 2];
+		for (int i = 0; i < players.size(); i++)
+		{
+			#if PRE_MC_1_17_1
+			ChunkPos chunkPos = new ChunkPos(players.get(i).blockPosition());
+			#else
+			ChunkPos chunkPos = players.get(i).chunkPosition();
+			#endif
+			newPositions[i * 2] = chunkPos.x;
+			newPositions[i * 2 + 1] = chunkPos.z;
+		}
+		this.playerChunkPositions = newPositions;
+	}
+	
+	/**
+	 * Re-prioritizes the queued events if any player has moved far enough since the last time,
+	 * using the positions taken during the last server tick. <br>
+	 * Should be called regularly.
+	 */
+	public void updatePlayerPositions()
+	{
+		int[] newPositions = this.playerChunkPositions;
+		if (this.havePlayersMoved(newPositions))
+		{
+			this.prioritizedPlayerChunkPositions = newPositions;
+			this.reprioritize(newPositions);
+		}
+	}
+	
+	private boolean havePlayersMoved(int[] newPositions)
+	{
+		int[] oldPositions = this.prioritizedPlayerChunkPositions;
+		if (oldPositions.length != newPositions.length)
+		{
+			return true;
+		}
+		
+		for (int i = 0; i < newPositions.length; i++)
+		{
+			if (Math.abs(oldPositions[i] - newPositions[i]) >= BatchGenerationSettings.Scheduler.reprioritizeDistanceInChunks)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void reprioritize(int[] positions)
+	{
+		ArrayList<ScheduledEvent> queuedEvents = new ArrayList<>(this.eventQueue.size());
+		this.eventQueue.drainTo(queuedEvents);
+		
+		long dropDistanceSquared = (long) BatchGenerationSettings.Scheduler.dropDistanceInChunks * BatchGenerationSettings.Scheduler.dropDistanceInChunks;
+		for (ScheduledEvent scheduledEvent : queuedEvents)
+		{
+			scheduledEvent.updatePriority(positions);
+			if (BatchGenerationSettings.Scheduler.dropStaleEvents && positions.length != 0 && scheduledEvent.distanceSquared > dropDistanceSquared)
+			{
+				scheduledEvent.genEvent.future.cancel(false);
+				this.droppedEventCount.incrementAndGet();
+				continue;
+			}
+			
+			this.eventQueue.add(scheduledEvent);
+		}
+		
+		LOGGER.debug("Re-prioritized [" + queuedEvents.size() + "] queued world gen events.");
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	public int getQueuedCount()
+	{
+		synchronized (this.upcomingEvents)
+		{
+			return this.eventQueue.size() + this.upcomingEvents.size();
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "World gen scheduler: queued: [" + this.getQueuedCount() + "], in flight: [" + this.inFlightCount.get() + "/" + this.runnerLimit + "], runners: [" + this.runnerCount.get() + "], " +
+				"players: [" + (this.playerChunkPositions.length / 2) + "], dropped: [" + this.droppedEventCount.get() + "]";
+	}
+	
+	
+	
+	//==========//
+	// shutdown //
+	//==========//
+	
+	/** Cancels the queued events and stops tracking the player positions. */
+	public void close()
+	{
+		OPEN_SCHEDULERS.remove(this);
+		this.cancelQueuedEvents();
+	}
+	
+	public void cancelQueuedEvents()
+	{
+		synchronized (this.upcomingEvents)
+		{
+			for (ScheduledEvent upcomingEvent : this.upcomingEvents)
+			{
+				upcomingEvent.genEvent.future.cancel(false);
+			}
+			this.upcomingEvents.clear();
+		}
+		
+		ScheduledEvent scheduledEvent;
+		while ((scheduledEvent = this.eventQueue.poll()) != null)
+		{
+			scheduledEvent.genEvent.future.cancel(false);
+		}
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static final class ScheduledEvent implements Comparable<ScheduledEvent>
+	{
+		public final GenerationEvent genEvent;
+		public final Runnable task;
+		/** used to keep events with the same priority in submission order */
+		public final long sequenceNumber;
+		public final int detailLevel;
+		
+		/** only changed while the event isn't in the queue */
+		public long distanceSquared = 0;
+		
+		public ScheduledEvent(GenerationEvent genEvent, Runnable task, long sequenceNumber)
+		{
+			this.genEvent = genEvent;
+			this.task = task;
+			this.sequenceNumber = sequenceNumber;
+			this.detailLevel = genEvent.getEstimatedDetailLevel();
+		}
+		
+		public void updatePriority(int[] playerChunkPositions)
+		{
+			if (playerChunkPositions.length == 0)
+			{
+				// without any players every event is equally important
+				this.distanceSquared = 0;
+				this.genEvent.nearestPlayerDistanceInChunks = -1;
+				return;
+			}
+			
+			long centerX = this.genEvent.minPos.x + (this.genEvent.size / 2);
+			long centerZ = this.genEvent.minPos.z + (this.genEvent.size / 2);
+			
+			long minDistanceSquared = Long.MAX_VALUE;
+			for (int i = 0; i < playerChunkPositions.length; i += 2)
+			{
+				long deltaX = centerX - playerChunkPositions[i];
+				long deltaZ = centerZ - playerChunkPositions[i + 1];
+				minDistanceSquared = Math.min(minDistanceSquared, deltaX * deltaX + deltaZ * deltaZ);
+			}
+			this.distanceSquared = minDistanceSquared;
+			this.genEvent.nearestPlayerDistanceInChunks = (int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(minDistanceSquared));
+		}
+		
+		@Override
+		public int compareTo(ScheduledEvent other)
+		{
+			int compare = Long.compare(this.distanceSquared, other.distanceSquared);
+			if (compare != 0)
+			{
+				return compare;
+			}
+			
+			// higher detail (lower detail level) events are needed first
+			compare = Integer.compare(this.detailLevel, other.detailLevel);
+			if (compare != 0)
+			{
+				return compare;
+			}
+			
+			return Long.compare(this.sequenceNumber, other.sequenceNumber);
+		}
+		
+	}
+	
+}
\ No newline at end of file
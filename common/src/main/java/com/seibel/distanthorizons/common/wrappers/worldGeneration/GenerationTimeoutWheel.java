@@ -0,0 +1,178 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel used to find {@link GenerationEvent}s that may have timed out,
+ * without having to look at every outstanding event each tick. <br><br>
+ *
+ * Each event is put in the bucket for its deadline, and only the buckets
+ * whose time has passed are looked at when the wheel is advanced. <br>
+ * Deadlines longer than one rotation are handled by leaving the event in its bucket
+ * until the wheel comes around to it again. <br><br>
+ *
+ * Events are removed once they complete, so finished events (and their chunks) aren't kept until their deadline. <br>
+ * Events can be added and removed from any thread, but {@link GenerationTimeoutWheel#advance}
+ * should only be called by one thread at a time.
+ */
+public final class GenerationTimeoutWheel
+{
+	/** must be a power of 2 */
+	private static final int BUCKET_COUNT = 64;
+	private static final long TICK_DURATION_NS = TimeUnit.SECONDS.toNanos(1);
+	
+	private final ArrayList<ConcurrentLinkedQueue<Entry>> buckets = new ArrayList<>(BUCKET_COUNT);
+	/** each event's entry, so events can be removed without waiting for their bucket to be advanced */
+	private final ConcurrentHashMap<GenerationEvent, Entry> entryByEvent = new ConcurrentHashMap<>();
+	private final long startTimeNs = System.nanoTime();
+	/** the last tick that has been processed */
+	private volatile long currentTick = 0;
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public GenerationTimeoutWheel()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			this.buckets.add(new ConcurrentLinkedQueue<>());
+		}
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/** The given event will be passed to the expired consumer once the given deadline has passed. */
+	public void add(GenerationEvent genEvent, long deadlineNs)
+	{
+		long deadlineTick = (deadlineNs - this.startTimeNs + TICK_DURATION_NS - 1) / TICK_DURATION_NS;
+		// the deadline has already passed, check it on the next tick
+		deadlineTick = Math.max(deadlineTick, this.currentTick + 1);
+		
+		Entry entry = new Entry(genEvent, deadlineTick);
+		Entry oldEntry = this.entryByEvent.put(genEvent, entry);
+		if (oldEntry != null)
+		{
+			this.getBucket(oldEntry.deadlineTick).remove(oldEntry);
+		}
+		this.getBucket(deadlineTick).add(entry);
+		
+		// the event may have completed (and been removed) while it was being added
+		if (genEvent.future.isDone())
+		{
+			this.remove(genEvent);
+		}
+	}
+	
+	/** Should be called once the event is done so the wheel doesn't keep it until its deadline. */
+	public void remove(GenerationEvent genEvent)
+	{
+		Entry entry = this.entryByEvent.remove(genEvent);
+		if (entry != null)
+		{
+			this.getBucket(entry.deadlineTick).remove(entry);
+		}
+	}
+	
+	/**
+	 * Processes every bucket up to the given time. <br>
+	 * Events whose deadline has passed are removed from the wheel and passed to the consumer,
+	 * which can {@link GenerationTimeoutWheel#add} them again if they should still be tracked.
+	 */
+	public void advance(long nowNs, Consumer<GenerationEvent> expiredEventConsumer)
+	{
+		long targetTick = (nowNs - this.startTimeNs) / TICK_DURATION_NS;
+		long tickCount = targetTick - this.currentTick;
+		if (tickCount <= 0)
+		{
+			return;
+		}
+		
+		// if more than a full rotation has passed every bucket only needs to be looked at once
+		tickCount = Math.min(tickCount, BUCKET_COUNT);
+		
+		ArrayList<GenerationEvent> expiredEvents = new ArrayList<>();
+		for (long tick = targetTick - tickCount + 1; tick <= targetTick; tick++)
+		{
+			Iterator<Entry> iter = this.getBucket(tick).iterator();
+			while (iter.hasNext())
+			{
+				Entry entry = iter.next();
+				if (entry.deadlineTick <= targetTick)
+				{
+					iter.remove();
+					// the event may have been removed in the meantime
+					if (this.entryByEvent.remove(entry.genEvent, entry))
+					{
+						expiredEvents.add(entry.genEvent);
+					}
+				}
+			}
+		}
+		this.currentTick = targetTick;
+		
+		// consumed after the buckets are updated so re-added events end up in a future bucket
+		expiredEvents.forEach(expiredEventConsumer);
+	}
+	
+	public void clear()
+	{
+		for (ConcurrentLinkedQueue<Entry> bucket : this.buckets)
+		{
+			bucket.clear();
+		}
+		this.entryByEvent.clear();
+	}
+	
+	private ConcurrentLinkedQueue<Entry> getBucket(long tick) { return this.buckets.get((int) (tick & (BUCKET_COUNT - 1))); }
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static final class Entry
+	{
+		public final GenerationEvent genEvent;
+		public final long deadlineTick;
+		
+		public Entry(GenerationEvent genEvent, long deadlineTick)
+		{
+			this.genEvent = genEvent;
+			this.deadlineTick = deadlineTick;
+		}
+		
+	}
+	
+}
\ No newline at end of file
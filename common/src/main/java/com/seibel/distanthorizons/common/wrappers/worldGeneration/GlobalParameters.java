@@ -21,6 +21,7 @@ package com.seibel.distanthorizons.common.wrappers.worldGeneration;
 
 import com.mojang.datafixers.DataFixer;
 import com.seibel.distanthorizons.common.wrappers.world.ServerLevelWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.SharedStructureStartCache;
 import com.seibel.distanthorizons.core.level.IDhServerLevel;
 
 import net.minecraft.core.Registry;
@@ -34,6 +35,11 @@ import net.minecraft.world.level.chunk.ChunkGenerator;
 #if POST_MC_1_18_2
 import net.minecraft.world.level.chunk.storage.ChunkScanAccess;
 #endif
+#if POST_MC_1_18_2 && PRE_MC_1_19_2
+import net.minecraft.world.level.levelgen.feature.ConfiguredStructureFeature;
+#elif POST_MC_1_19_2
+import net.minecraft.world.level.levelgen.structure.Structure;
+#endif
 import net.minecraft.world.level.levelgen.WorldGenSettings;
 #if PRE_MC_1_19_2
 import net.minecraft.world.level.levelgen.structure.templatesystem.StructureManager;
@@ -45,7 +51,19 @@ import net.minecraft.world.level.levelgen.WorldOptions;
 import net.minecraft.core.registries.Registries;
 #endif
 #endif
+#if POST_MC_1_18_2
+import com.google.gson.JsonElement;
+import com.mojang.serialization.JsonOps;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.levelgen.structure.StructureSet;
+#endif
 import net.minecraft.world.level.storage.WorldData;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
 
 public final class GlobalParameters
 {
@@ -71,6 +89,9 @@ public final class GlobalParameters
 	public final BiomeManager biomeManager;
 	public final ChunkScanAccess chunkScanner; // FIXME: Figure out if this is actually needed
 	#endif
+	/** shared by every world gen thread, null if {@link BatchGenerationSettings.SharedStructureCache#enabled} is false or structure checks aren't supported */
+	@Nullable
+	public final SharedStructureStartCache structureStartCache;
 	
 	public GlobalParameters(IDhServerLevel lodLevel)
 	{
@@ -80,7 +101,7 @@ public final class GlobalParameters
 		MinecraftServer server = level.getServer();
 		WorldData worldData = server.getWorldData();
 		registry = server.registryAccess();
-
+		
 		#if PRE_MC_1_19_4
 		worldGenSettings = worldData.worldGenSettings();
 		biomes = registry.registryOrThrow(Registry.BIOME_REGISTRY);
@@ -100,6 +121,69 @@ public final class GlobalParameters
 		#if POST_MC_1_19_2
 		randomState = level.getChunkSource().randomState();
 		#endif
+		
+		#if PRE_MC_1_18_2
+		structureStartCache = null;
+		#else
+		if (BatchGenerationSettings.SharedStructureCache.enabled)
+		{
+			#if PRE_MC_1_19_2
+			Registry<ConfiguredStructureFeature<?, ?>> structureRegistry = registry.registryOrThrow(Registry.CONFIGURED_STRUCTURE_FEATURE_REGISTRY);
+			#elif PRE_MC_1_19_4
+			Registry<Structure> structureRegistry = registry.registryOrThrow(Registry.STRUCTURE_REGISTRY);
+			#else
+			Registry<Structure> structureRegistry = registry.registryOrThrow(Registries.STRUCTURE);
+			#endif
+			Path cachePath = ((ServerLevelWrapper) lodLevel.getServerLevelWrapper()).getSaveFolder().toPath().resolve(SharedStructureStartCache.FILE_NAME);
+			structureStartCache = new SharedStructureStartCache(cachePath, worldSeed, generator.getClass().getName(), hashStructureSets(registry), structureRegistry);
+		}
+		else
+		{
+			structureStartCache = null;
+		}
+		#endif
+	}
+	
+	#if POST_MC_1_18_2
+	/** 
+	 * @return a hash of every structure set and its placement, 
+	 * which changes when a data pack adds, removes or changes a structure set
+	 */
+	private static long hashStructureSets(RegistryAccess registry)
+	{
+		#if PRE_MC_1_19_4
+		Registry<StructureSet> structureSetRegistry = registry.registryOrThrow(Registry.STRUCTURE_SET_REGISTRY);
+		#else
+		Registry<StructureSet> structureSetRegistry = registry.registryOrThrow(Registries.STRUCTURE_SET);
+		#endif
+		RegistryOps<JsonElement> ops = RegistryOps.create(JsonOps.INSTANCE, registry);
+		
+		// sorted so the hash doesn't depend on the registry's order
+		TreeMap<String, String> encodedSets = new TreeMap<>();
+		for (Map.Entry<ResourceKey<StructureSet>, StructureSet> entry : structureSetRegistry.entrySet())
+		{
+			// a set that can't be encoded still changes the hash when it is added or removed
+			String encodedSet = StructureSet.DIRECT_CODEC.encodeStart(ops, entry.getValue()).result().map(JsonElement::toString).orElse("");
+			encodedSets.put(entry.getKey().location().toString(), encodedSet);
+		}
+		
+		long hash = 1125899906842597L;
+		for (Map.Entry<String, String> entry : encodedSets.entrySet())
+		{
+			hash = hashString(hash, entry.getKey());
+			hash = hashString(hash, entry.getValue());
+		}
+		return hash;
 	}
 	
+	private static long hashString(long hash, String string)
+	{
+		for (int i = 0; i < string.length(); i++)
+		{
+			hash = 31 * hash + string.charAt(i);
+		}
+		return 31 * hash + string.length();
+	}
+	#endif
+	
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe histogram of nanosecond durations. <br><br>
+ *
+ * Uses log-linear buckets: each power of 2 is split into {@link LatencyHistogram#SUB_BUCKET_COUNT}
+ * linear buckets, so any recorded value is off by at most 12.5%. <br>
+ * Recording doesn't allocate and histograms can be merged,
+ * which allows keeping one histogram per thread and combining them when reporting.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	/** enough buckets to hold any positive long */
+	private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+	
+	private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong totalNs = new AtomicLong(0);
+	private final AtomicLong maxNs = new AtomicLong(0);
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	public void record(long durationNs)
+	{
+		durationNs = Math.max(0, durationNs);
+		
+		this.bucketCounts.incrementAndGet(getBucketIndex(durationNs));
+		this.count.incrementAndGet();
+		this.totalNs.addAndGet(durationNs);
+		this.maxNs.accumulateAndGet(durationNs, Math::max);
+	}
+	
+	/** Adds every value recorded by the other histogram to this one. */
+	public void merge(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			long bucketCount = other.bucketCounts.get(i);
+			if (bucketCount != 0)
+			{
+				this.bucketCounts.addAndGet(i, bucketCount);
+			}
+		}
+		this.count.addAndGet(other.count.get());
+		this.totalNs.addAndGet(other.totalNs.get());
+		this.maxNs.accumulateAndGet(other.maxNs.get(), Math::max);
+	}
+	
+	public void clear()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			this.bucketCounts.set(i, 0);
+		}
+		this.count.set(0);
+		this.totalNs.set(0);
+		this.maxNs.set(0);
+	}
+	
+	private static int getBucketIndex(long value)
+	{
+		if (value < SUB_BUCKET_COUNT)
+		{
+			return (int) value;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+		return ((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT) + subBucket;
+	}
+	
+	/** @return the largest value that would be put in the given bucket */
+	private static long getBucketUpperBound(int index)
+	{
+		if (index < SUB_BUCKET_COUNT)
+		{
+			return index;
+		}
+		
+		int exponent = (index / SUB_BUCKET_COUNT) + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKET_COUNT;
+		long lowerBound = (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+	
+	
+	
+	//=========//
+	// getters //
+	//=========//
+	
+	public long getCount() { return this.count.get(); }
+	public long getMaxNs() { return this.maxNs.get(); }
+	public double getAverageNs()
+	{
+		long count = this.count.get();
+		return (count == 0) ? 0 : (double) this.totalNs.get() / count;
+	}
+	
+	/**
+	 * @param percentile between 0.0 and 1.0
+	 * @return an upper bound for the given percentile, 0 if nothing has been recorded
+	 */
+	public long getPercentileNs(double percentile)
+	{
+		long count = this.count.get();
+		if (count == 0)
+		{
+			return 0;
+		}
+		
+		long targetCount = Math.max(1, (long) Math.ceil(count * percentile));
+		long seenCount = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seenCount += this.bucketCounts.get(i);
+			if (seenCount >= targetCount)
+			{
+				// the bucket's upper bound may be larger than anything actually recorded
+				return Math.min(getBucketUpperBound(i), this.maxNs.get());
+			}
+		}
+		return this.maxNs.get();
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "count: " + this.getCount()
+				+ ", p50: " + (this.getPercentileNs(0.5) / 1_000_000.0) + "ms"
+				+ ", p90: " + (this.getPercentileNs(0.9) / 1_000_000.0) + "ms"
+				+ ", p99: " + (this.getPercentileNs(0.99) / 1_000_000.0) + "ms"
+				+ ", max: " + (this.getMaxNs() / 1_000_000.0) + "ms";
+	}
+	
+}
\ No newline at end of file
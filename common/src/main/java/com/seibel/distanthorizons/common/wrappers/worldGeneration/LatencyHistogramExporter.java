@@ -0,0 +1,158 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment.PerfCalculator;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment.PerfCalculator.ETimedStep;
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Periodically appends the world gen latency histograms of every generator to a file,
+ * so generation performance can be compared across runs and machines. <br><br>
+ *
+ * Disabled unless the "distanthorizons.worldGen.latencyExport" system property
+ * is set to "jsonl" or "csv".
+ */
+public final class LatencyHistogramExporter
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	private static final String CSV_HEADER = "timestamp,generator,step,count,avgMs,p50Ms,p90Ms,p99Ms,maxMs";
+	
+	private final File exportFolder;
+	private long lastExportTimeNs = System.nanoTime();
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	/** @param gameDirectory the exported files will be put in a "distanthorizons" folder inside this directory */
+	public LatencyHistogramExporter(File gameDirectory) { this.exportFolder = new File(gameDirectory, "distanthorizons"); }
+	
+	
+	
+	//===========//
+	// exporting //
+	//===========//
+	
+	public static boolean isEnabled() { return "jsonl".equalsIgnoreCase(BatchGenerationSettings.LatencyExport.exportFormat) || "csv".equalsIgnoreCase(BatchGenerationSettings.LatencyExport.exportFormat); }
+	
+	/** Exports the histograms if the export interval has passed. */
+	public void tryExport()
+	{
+		if (!isEnabled())
+		{
+			return;
+		}
+		
+		long now = System.nanoTime();
+		if (now - this.lastExportTimeNs < TimeUnit.SECONDS.toNanos(BatchGenerationSettings.LatencyExport.exportIntervalInSeconds))
+		{
+			return;
+		}
+		this.lastExportTimeNs = now;
+		
+		try
+		{
+			this.export();
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Unable to export world gen latency histograms to [" + this.exportFolder + "], error: " + e.getMessage(), e);
+		}
+	}
+	
+	public void export() throws IOException
+	{
+		boolean isCsv = "csv".equalsIgnoreCase(BatchGenerationSettings.LatencyExport.exportFormat);
+		File exportFile = new File(this.exportFolder, "worldgen-latency." + (isCsv ? "csv" : "jsonl"));
+		if (!this.exportFolder.exists() && !this.exportFolder.mkdirs())
+		{
+			throw new IOException("Unable to create folder [" + this.exportFolder + "]");
+		}
+		
+		boolean isNewFile = !exportFile.exists();
+		long timestamp = System.currentTimeMillis();
+		try (Writer writer = new FileWriter(exportFile, true))
+		{
+			if (isCsv && isNewFile)
+			{
+				writer.write(CSV_HEADER);
+				writer.write('\n');
+			}
+			
+			for (String generatorName : PerfCalculator.getGeneratorNames())
+			{
+				LatencyHistogram[] histograms = PerfCalculator.getHistogramsForGenerator(generatorName);
+				for (ETimedStep step : ETimedStep.VALUES)
+				{
+					LatencyHistogram histogram = histograms[step.ordinal()];
+					if (histogram.getCount() == 0)
+					{
+						continue;
+					}
+					
+					writer.write(isCsv
+							? createCsvLine(timestamp, generatorName, step, histogram)
+							: createJsonLine(timestamp, generatorName, step, histogram));
+					writer.write('\n');
+				}
+			}
+		}
+	}
+	
+	private static String createCsvLine(long timestamp, String generatorName, ETimedStep step, LatencyHistogram histogram)
+	{
+		return timestamp + "," + generatorName + "," + step.timerName + "," + histogram.getCount()
+				+ "," + toMs(histogram.getAverageNs())
+				+ "," + toMs(histogram.getPercentileNs(0.5))
+				+ "," + toMs(histogram.getPercentileNs(0.9))
+				+ "," + toMs(histogram.getPercentileNs(0.99))
+				+ "," + toMs(histogram.getMaxNs());
+	}
+	
+	private static String createJsonLine(long timestamp, String generatorName, ETimedStep step, LatencyHistogram histogram)
+	{
+		return "{\"timestamp\":" + timestamp
+				+ ",\"generator\":\"" + generatorName.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+				+ ",\"step\":\"" + step.timerName + "\""
+				+ ",\"count\":" + histogram.getCount()
+				+ ",\"avgMs\":" + toMs(histogram.getAverageNs())
+				+ ",\"p50Ms\":" + toMs(histogram.getPercentileNs(0.5))
+				+ ",\"p90Ms\":" + toMs(histogram.getPercentileNs(0.9))
+				+ ",\"p99Ms\":" + toMs(histogram.getPercentileNs(0.99))
+				+ ",\"maxMs\":" + toMs(histogram.getMaxNs())
+				+ "}";
+	}
+	
+	private static double toMs(double nanoseconds) { return nanoseconds / 1_000_000.0; }
+	
+}
\ No newline at end of file
@@ -0,0 +1,260 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.DhLitWorldGenRegion;
+import com.seibel.distanthorizons.core.generation.DhLightingEngine;
+import com.seibel.distanthorizons.core.util.gridList.ArrayGridList;
+import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
+
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.levelgen.Heightmap;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lights the chunks of a generation event with DH's lighting engine. <br>
+ * Only the chunks that will be emitted are lit, the border chunks around them only get heightmaps. <br><br>
+ *
+ * Lighting a chunk reads and writes the chunks directly next to it,
+ * so the grid is split into 9 waves using a 3x3 coloring (by x mod 3 and z mod 3). <br>
+ * Chunks in the same wave are at least 3 chunks apart and never share a neighbor,
+ * so each wave can be lit in parallel on the shared world gen worker pool,
+ * with each wave waiting for the previous one to finish. <br><br>
+ *
+ * The time per chunk is recorded separately for each mode,
+ * so running with the setting on and off shows the speedup in the log.
+ */
+public final class ParallelLightingStage
+{
+	/** chunks in the same wave must be this far apart so their 3x3 neighborhoods don't overlap */
+	private static final int WAVE_SPACING = 3;
+	
+	private final AtomicLong litChunkCount = new AtomicLong(0);
+	/** border chunks that were only given heightmaps instead of being lit */
+	private final AtomicLong skippedChunkCount = new AtomicLong(0);
+	/** chunks whose heightmaps didn't need to be primed */
+	private final AtomicLong skippedHeightmapCount = new AtomicLong(0);
+	/** nanoseconds per lit chunk */
+	private final LatencyHistogram serialChunkTimes = new LatencyHistogram();
+	/** nanoseconds per lit chunk */
+	private final LatencyHistogram parallelChunkTimes = new LatencyHistogram();
+	
+	
+	
+	//==========//
+	// lighting //
+	//==========//
+	
+	/**
+	 * Only the chunks inside the border are lit, since the border chunks are never emitted.
+	 * Border chunks only get their heightmaps primed, which is all the lighting engine needs
+	 * when it reads them as neighbors of the inner chunks.
+	 * 
+	 * @param region if not null, chunks whose heightmaps were already primed by this region won't be primed again
+	 * @param borderSize how many chunks wide the ring of non-emitted chunks around the edge of the grid is
+	 */
+	public void lightChunks(ArrayGridList<ChunkWrapper> chunkWrapperList, @Nullable DhLitWorldGenRegion region, int borderSize, int maxSkyLight) throws InterruptedException
+	{
+		ArrayList<IChunkWrapper> iChunkWrapperList = new ArrayList<>(chunkWrapperList);
+		int gridSize = chunkWrapperList.gridSize;
+		int innerMin = Math.min(borderSize, gridSize / 2);
+		int innerMax = gridSize - innerMin;
+		
+		// done first so every border chunk is ready before any inner chunk reads it
+		int borderChunkCount = 0;
+		for (int x = 0; x < gridSize; x++)
+		{
+			for (int z = 0; z < gridSize; z++)
+			{
+				boolean isBorderChunk = x < innerMin || x >= innerMax || z < innerMin || z >= innerMax;
+				ChunkWrapper chunk = chunkWrapperList.get(x, z);
+				if (isBorderChunk && chunk != null)
+				{
+					this.primeHeightmaps(chunk, region);
+					borderChunkCount++;
+				}
+			}
+		}
+		this.skippedChunkCount.addAndGet(borderChunkCount);
+		
+		boolean runInParallel = BatchGenerationSettings.ParallelLighting.enabled && innerMax - innerMin >= BatchGenerationSettings.ParallelLighting.minGridSize;
+		
+		long startTime = System.nanoTime();
+		int litChunkCount;
+		if (runInParallel)
+		{
+			litChunkCount = this.lightInWaves(chunkWrapperList, region, innerMin, innerMax, iChunkWrapperList, maxSkyLight);
+		}
+		else
+		{
+			litChunkCount = this.lightSerially(chunkWrapperList, region, innerMin, innerMax, iChunkWrapperList, maxSkyLight);
+		}
+		this.litChunkCount.addAndGet(litChunkCount);
+		
+		if (litChunkCount != 0)
+		{
+			long nsPerChunk = (System.nanoTime() - startTime) / litChunkCount;
+			(runInParallel ? this.parallelChunkTimes : this.serialChunkTimes).record(nsPerChunk);
+		}
+	}
+	
+	/** @return the number of chunks lit */
+	private int lightSerially(ArrayGridList<ChunkWrapper> chunkWrapperList, @Nullable DhLitWorldGenRegion region, int innerMin, int innerMax, ArrayList<IChunkWrapper> iChunkWrapperList, int maxSkyLight) throws InterruptedException
+	{
+		int litChunkCount = 0;
+		for (int z = innerMin; z < innerMax; z++)
+		{
+			for (int x = innerMin; x < innerMax; x++)
+			{
+				ChunkWrapper centerChunk = chunkWrapperList.get(x, z);
+				if (centerChunk == null)
+				{
+					continue;
+				}
+				
+				BatchGenerationEnvironment.throwIfThreadInterrupted();
+				this.lightChunk(centerChunk, region, iChunkWrapperList, maxSkyLight);
+				litChunkCount++;
+			}
+		}
+		return litChunkCount;
+	}
+	
+	/** @return the number of chunks lit */
+	private int lightInWaves(ArrayGridList<ChunkWrapper> chunkWrapperList, @Nullable DhLitWorldGenRegion region, int innerMin, int innerMax, ArrayList<IChunkWrapper> iChunkWrapperList, int maxSkyLight) throws InterruptedException
+	{
+		ForkJoinPool pool = ParallelStepExecutor.getPool();
+		int litChunkCount = 0;
+		
+		for (int waveX = 0; waveX < WAVE_SPACING; waveX++)
+		{
+			for (int waveZ = 0; waveZ < WAVE_SPACING; waveZ++)
+			{
+				BatchGenerationEnvironment.throwIfThreadInterrupted();
+				
+				ArrayList<ForkJoinTask<?>> waveTasks = new ArrayList<>();
+				for (int x = innerMin + waveX; x < innerMax; x += WAVE_SPACING)
+				{
+					for (int z = innerMin + waveZ; z < innerMax; z += WAVE_SPACING)
+					{
+						ChunkWrapper centerChunk = chunkWrapperList.get(x, z);
+						if (centerChunk != null)
+						{
+							waveTasks.add(pool.submit(() -> this.lightChunk(centerChunk, region, iChunkWrapperList, maxSkyLight)));
+						}
+					}
+				}
+				
+				waitForWave(waveTasks);
+				litChunkCount += waveTasks.size();
+			}
+		}
+		
+		return litChunkCount;
+	}
+	
+	private static void waitForWave(ArrayList<ForkJoinTask<?>> waveTasks) throws InterruptedException
+	{
+		try
+		{
+			for (ForkJoinTask<?> task : waveTasks)
+			{
+				task.get();
+			}
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		finally
+		{
+			// if a chunk failed, don't leave the rest of the wave running
+			for (ForkJoinTask<?> task : waveTasks)
+			{
+				task.cancel(false);
+			}
+		}
+	}
+	
+	private void lightChunk(ChunkWrapper centerChunk, @Nullable DhLitWorldGenRegion region, ArrayList<IChunkWrapper> iChunkWrapperList, int maxSkyLight)
+	{
+		this.primeHeightmaps(centerChunk, region);
+		
+		// populate the lighting
+		DhLightingEngine.INSTANCE.lightChunk(centerChunk, iChunkWrapperList, maxSkyLight);
+	}
+	
+	/**
+	 * make sure the height maps are all properly generated
+	 * if this isn't done everything else afterward may fail
+	 */
+	private void primeHeightmaps(ChunkWrapper chunkWrapper, @Nullable DhLitWorldGenRegion region)
+	{
+		ChunkAccess chunk = chunkWrapper.getChunk();
+		if (region != null && region.areFeatureHeightmapsPrimed(chunk))
+		{
+			// the region kept the heightmaps up to date while the features were placed
+			this.skippedHeightmapCount.incrementAndGet();
+			return;
+		}
+		
+		Heightmap.primeHeightmaps(chunk, ChunkStatus.FEATURES.heightmapsAfter());
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		long litCount = this.litChunkCount.get();
+		long skippedCount = this.skippedChunkCount.get();
+		String text = "World gen lighting: [" + litCount + "] chunks lit, [" + skippedCount + "] border chunks skipped"
+				+ ((litCount + skippedCount > 0) ? " (" + (100 * skippedCount / (litCount + skippedCount)) + "% skipped)" : "")
+				+ ", [" + this.skippedHeightmapCount.get() + "] heightmap primes skipped";
+		text += ", time per chunk: serial: [" + this.serialChunkTimes + "], parallel: [" + this.parallelChunkTimes + "]";
+		if (this.serialChunkTimes.getCount() != 0 && this.parallelChunkTimes.getCount() != 0)
+		{
+			text += ", speedup: [" + String.format("%.2f", this.serialChunkTimes.getAverageNs() / this.parallelChunkTimes.getAverageNs()) + "x]";
+		}
+		return text;
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.DhLitWorldGenRegion;
+import com.seibel.distanthorizons.core.util.objects.UncheckedInterruptedException;
+
+import net.minecraft.server.level.WorldGenRegion;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkGenerator;
+import net.minecraft.world.level.levelgen.FlatLevelSource;
+import net.minecraft.world.level.levelgen.NoiseBasedChunkGenerator;
+
+/**
+ * Runs the per-chunk work of a generation step on a shared fork-join pool,
+ * for steps that only write into the chunk they are given (biomes, noise, and surface). <br><br>
+ *
+ * Each worker thread uses its own {@link ThreadedParameters} and structure manager,
+ * so nothing the steps touch is shared between workers except the read-only region,
+ * which is marked as shared while the workers are running so its chunk lookups stay thread safe. <br>
+ * Only chunk generators on the allow-list are run in parallel, since a modded generator
+ * may keep per-call state that isn't thread safe. Vanilla's noise and flat generators are always allowed,
+ * additional generators can be added by class name with the "distanthorizons.worldGen.parallelStepGenerators" system property.
+ */
+public final class ParallelStepExecutor
+{
+	/**
+	 * Matched against the generator's exact class,
+	 * subclasses aren't included since they may override the generation methods.
+	 */
+	private static final Set<String> ALLOWED_GENERATOR_CLASS_NAMES = createAllowList();
+	
+	private static ForkJoinPool pool = null;
+	
+	
+	
+	/** A generation step's work for a single chunk. */
+	@FunctionalInterface
+	public interface IChunkStep
+	{
+		void generate(ThreadedParameters tParams, ChunkAccess chunk);
+	}
+	
+	
+	
+	//============//
+	// allow-list //
+	//============//
+	
+	private static Set<String> createAllowList()
+	{
+		Set<String> classNames = new HashSet<>();
+		classNames.add(NoiseBasedChunkGenerator.class.getName());
+		classNames.add(FlatLevelSource.class.getName());
+		
+		String extraClassNames = BatchGenerationSettings.ParallelSteps.extraGeneratorClassNames;
+		for (String className : extraClassNames.split(","))
+		{
+			if (!className.trim().isEmpty())
+			{
+				classNames.add(className.trim());
+			}
+		}
+		return classNames;
+	}
+	
+	public static boolean isAllowed(ChunkGenerator generator) { return ALLOWED_GENERATOR_CLASS_NAMES.contains(generator.getClass().getName()); }
+	
+	
+	
+	//=========//
+	// running //
+	//=========//
+	
+	/**
+	 * Runs the given step for each chunk,
+	 * either in parallel or one at a time on the calling thread with the given {@link ThreadedParameters}.
+	 * Returns once every chunk has been generated.
+	 */
+	public static void forEachChunk(GlobalParameters params, ThreadedParameters tParams, WorldGenRegion region,
+			List<ChunkAccess> chunks, IChunkStep step)
+	{
+		if (!BatchGenerationSettings.ParallelSteps.enabled || BatchGenerationSettings.ParallelSteps.parallelism <= 1 || chunks.size() < BatchGenerationSettings.ParallelSteps.minChunkCount || !isAllowed(params.generator))
+		{
+			for (ChunkAccess chunk : chunks)
+			{
+				step.generate(tParams, chunk);
+			}
+			return;
+		}
+		
+		
+		// the region is normally only used by one thread at a time and doesn't lock its chunk lookups
+		DhLitWorldGenRegion sharedRegion = (region instanceof DhLitWorldGenRegion) ? (DhLitWorldGenRegion) region : null;
+		if (sharedRegion != null)
+		{
+			sharedRegion.beginSharedAccess();
+		}
+		
+		ForkJoinPool stepPool = getPool();
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<>(chunks.size());
+		for (ChunkAccess chunk : chunks)
+		{
+			tasks.add(stepPool.submit(() -> runOnWorker(params, region, chunk, step)));
+		}
+		
+		try
+		{
+			for (ForkJoinTask<?> task : tasks)
+			{
+				task.get();
+			}
+			
+			// if a task failed the others may still be running, so the region is left shared
+			if (sharedRegion != null)
+			{
+				sharedRegion.endSharedAccess();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			UncheckedInterruptedException.throwIfInterrupted();
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			else if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		finally
+		{
+			// don't leave chunks generating if this event was stopped early
+			for (ForkJoinTask<?> task : tasks)
+			{
+				task.cancel(false);
+			}
+		}
+	}
+	
+	private static void runOnWorker(GlobalParameters params, WorldGenRegion region, ChunkAccess chunk, IChunkStep step)
+	{
+		BatchGenerationEnvironment.isDistantGeneratorThread.set(true);
+		try
+		{
+			ThreadedParameters workerParams = ThreadedParameters.getOrMake(params);
+			workerParams.makeStructFeatIfNeeded(region, params);
+			step.generate(workerParams, chunk);
+		}
+		finally
+		{
+			BatchGenerationEnvironment.isDistantGeneratorThread.remove();
+		}
+	}
+	
+	/** also used by {@link ParallelLightingStage} */
+	static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+		{
+			AtomicInteger threadCount = new AtomicInteger(0);
+			pool = new ForkJoinPool(BatchGenerationSettings.ParallelSteps.parallelism, (forkJoinPool) ->
+			{
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+				thread.setName("DH-WorldGen-Worker Thread " + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}, null, false);
+		}
+		return pool;
+	}
+	
+}
\ No newline at end of file
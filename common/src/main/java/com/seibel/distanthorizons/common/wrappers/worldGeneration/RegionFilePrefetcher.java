@@ -0,0 +1,432 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.seibel.distanthorizons.common.util.NamedThreadFactory;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionFileFormat;
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads every chunk a {@link GenerationEvent} will need (including its border)
+ * from the region files before the event starts, so the world gen threads don't have to wait on the disk. <br>
+ * {@link GenerationScheduler} only prefetches the next few events it will run,
+ * and the decoded chunks held at once are limited by {@link BatchGenerationSettings.Prefetch#maxBytesInFlight}. <br><br>
+ *
+ * Each region file's location table is read once per event, then the needed chunks are sorted by their position in the file
+ * and neighboring chunks are read with a single sequential read (small gaps between them are read through).
+ * Decompressing and parsing the NBT is done on the same I/O threads. <br><br>
+ *
+ * Anything the prefetcher can't handle (chunks stored in external .mcc files, corrupt or half-written data,
+ * or reads that haven't finished in time) is left out of the result so the caller falls back to
+ * {@link com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionFileStorageExternalCache}.
+ */
+public final class RegionFilePrefetcher
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	private final ThreadPoolExecutor ioExecutor;
+	
+	private final AtomicLong regionFileCount = new AtomicLong(0);
+	private final AtomicLong readCount = new AtomicLong(0);
+	private final AtomicLong readBytes = new AtomicLong(0);
+	private final AtomicLong prefetchedChunkCount = new AtomicLong(0);
+	private final AtomicLong missingChunkCount = new AtomicLong(0);
+	/** chunks that were present but couldn't be read by the prefetcher */
+	private final AtomicLong fallbackChunkCount = new AtomicLong(0);
+	/** chunks that were read but dropped because {@link BatchGenerationSettings.Prefetch#maxBytesInFlight} was reached */
+	private final AtomicLong overBudgetChunkCount = new AtomicLong(0);
+	/** the on-disk size of every prefetched chunk that hasn't been taken or canceled yet */
+	private final AtomicLong bytesInFlight = new AtomicLong(0);
+	
+	
+	
+	/** 
+	 * The chunks read for a single event. <br>
+	 * Chunks that weren't found aren't remembered, vanilla may save them before the event runs.
+	 */
+	public static class PrefetchedChunks
+	{
+		/** keyed by {@link ChunkPos#asLong(int, int)} of the region */
+		private final ConcurrentHashMap<Long, CompletableFuture<Void>> regionFutures = new ConcurrentHashMap<>();
+		/** regions that weren't read in time, keyed by {@link ChunkPos#asLong(int, int)} of the region */
+		private final Set<Long> abandonedRegions = ConcurrentHashMap.newKeySet();
+		/** keyed by {@link ChunkPos#asLong(int, int)} */
+		private final ConcurrentHashMap<Long, PrefetchedChunk> chunkData = new ConcurrentHashMap<>();
+		/** shared with the prefetcher, see {@link RegionFilePrefetcher#bytesInFlight} */
+		private final AtomicLong bytesInFlight;
+		private volatile boolean canceled = false;
+		
+		
+		
+		private PrefetchedChunks(AtomicLong bytesInFlight) { this.bytesInFlight = bytesInFlight; }
+		
+		/** @return false if the chunk wasn't kept because the event was canceled */
+		private boolean put(long pos, PrefetchedChunk chunk)
+		{
+			this.chunkData.put(pos, chunk);
+			
+			// cancel may have cleared the chunks while this one was being added
+			if (this.canceled)
+			{
+				this.release(this.chunkData.remove(pos));
+				return false;
+			}
+			return true;
+		}
+		
+		private void release(@Nullable PrefetchedChunk chunk)
+		{
+			if (chunk != null)
+			{
+				this.bytesInFlight.addAndGet(-chunk.sizeInBytes);
+			}
+		}
+		
+		/**
+		 * Waits up to {@link BatchGenerationSettings.Prefetch#maxWaitInMs} for the chunk's region to finish being read. <br>
+		 * Each region is only waited on once, if it times out the rest of its chunks are abandoned immediately.
+		 * @return false if the prefetcher couldn't get an answer for this chunk in time
+		 */
+		private boolean awaitRegion(ChunkPos pos)
+		{
+			long regionPos = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
+			CompletableFuture<Void> future = this.regionFutures.get(regionPos);
+			if (future == null || this.abandonedRegions.contains(regionPos))
+			{
+				return false;
+			}
+			
+			try
+			{
+				future.get(BatchGenerationSettings.Prefetch.maxWaitInMs, TimeUnit.MILLISECONDS);
+				return true;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			catch (TimeoutException e)
+			{
+				// waiting again for each of the region's chunks could stall the event for several seconds
+				this.abandonedRegions.add(regionPos);
+				return false;
+			}
+			catch (ExecutionException e)
+			{
+				return false;
+			}
+		}
+		
+		/** @return null if the chunk wasn't prefetched, the data can only be taken once */
+		@Nullable
+		public CompoundTag take(ChunkPos pos)
+		{
+			if (!this.awaitRegion(pos))
+			{
+				return null;
+			}
+			
+			PrefetchedChunk chunk = this.chunkData.remove(pos.toLong());
+			this.release(chunk);
+			return (chunk != null) ? chunk.tag : null;
+		}
+		
+		/** Cancels any reads that haven't started yet and drops any chunks that haven't been taken. */
+		public void cancel()
+		{
+			this.canceled = true;
+			for (CompletableFuture<Void> future : this.regionFutures.values())
+			{
+				future.cancel(false);
+			}
+			
+			for (Long pos : this.chunkData.keySet())
+			{
+				this.release(this.chunkData.remove(pos));
+			}
+		}
+		
+	}
+	
+	private static class PrefetchedChunk
+	{
+		final CompoundTag tag;
+		/** the chunk's size on disk, used as a rough measure of how much memory it's holding */
+		final int sizeInBytes;
+		
+		PrefetchedChunk(CompoundTag tag, int sizeInBytes)
+		{
+			this.tag = tag;
+			this.sizeInBytes = sizeInBytes;
+		}
+		
+	}
+	
+	/** where a chunk is in its region file */
+	private static class ChunkLocation
+	{
+		final long pos;
+		final int sectorOffset;
+		final int sectorCount;
+		
+		ChunkLocation(long pos, int location)
+		{
+			this.pos = pos;
+			this.sectorOffset = RegionFileFormat.getSectorOffset(location);
+			this.sectorCount = RegionFileFormat.getSectorCount(location);
+		}
+		
+	}
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public RegionFilePrefetcher()
+	{
+		this.ioExecutor = new ThreadPoolExecutor(BatchGenerationSettings.Prefetch.threadCount, BatchGenerationSettings.Prefetch.threadCount, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), new NamedThreadFactory("DH-WorldGen-Prefetch", Thread.NORM_PRIORITY));
+	}
+	
+	
+	
+	//=============//
+	// prefetching //
+	//=============//
+	
+	/**
+	 * Starts reading every chunk in the given square on the I/O threads.
+	 *
+	 * @param storageFolder the folder containing the region files
+	 */
+	public PrefetchedChunks prefetch(Path storageFolder, int minChunkX, int minChunkZ, int size)
+	{
+		PrefetchedChunks prefetchedChunks = new PrefetchedChunks(this.bytesInFlight);
+		
+		int minRegionX = minChunkX >> 5;
+		int minRegionZ = minChunkZ >> 5;
+		int maxRegionX = (minChunkX + size - 1) >> 5;
+		int maxRegionZ = (minChunkZ + size - 1) >> 5;
+		for (int regionX = minRegionX; regionX <= maxRegionX; regionX++)
+		{
+			for (int regionZ = minRegionZ; regionZ <= maxRegionZ; regionZ++)
+			{
+				// only the part of the square inside this region
+				int regionMinChunkX = Math.max(minChunkX, regionX << 5);
+				int regionMinChunkZ = Math.max(minChunkZ, regionZ << 5);
+				int regionMaxChunkX = Math.min(minChunkX + size - 1, (regionX << 5) + 31);
+				int regionMaxChunkZ = Math.min(minChunkZ + size - 1, (regionZ << 5) + 31);
+				int finalRegionX = regionX;
+				int finalRegionZ = regionZ;
+				
+				CompletableFuture<Void> future = CompletableFuture.runAsync(() ->
+				{
+					try
+					{
+						this.prefetchRegion(storageFolder, finalRegionX, finalRegionZ,
+								regionMinChunkX, regionMinChunkZ, regionMaxChunkX, regionMaxChunkZ, prefetchedChunks);
+					}
+					catch (IOException e)
+					{
+						LOGGER.warn("Unable to prefetch region [" + finalRegionX + "," + finalRegionZ + "], error: " + e.getMessage(), e);
+					}
+				}, this.ioExecutor);
+				prefetchedChunks.regionFutures.put(ChunkPos.asLong(regionX, regionZ), future);
+			}
+		}
+		
+		return prefetchedChunks;
+	}
+	
+	private void prefetchRegion(
+			Path storageFolder, int regionX, int regionZ,
+			int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ,
+			PrefetchedChunks prefetchedChunks) throws IOException
+	{
+		Path regionFilePath = RegionFileFormat.getRegionFilePath(storageFolder, regionX, regionZ);
+		if (!Files.exists(regionFilePath))
+		{
+			this.missingChunkCount.addAndGet((long) (maxChunkX - minChunkX + 1) * (maxChunkZ - minChunkZ + 1));
+			return;
+		}
+		
+		try (FileChannel channel = FileChannel.open(regionFilePath, StandardOpenOption.READ))
+		{
+			this.regionFileCount.incrementAndGet();
+			int[] locations = RegionFileFormat.readLocationTable(channel);
+			
+			ArrayList<ChunkLocation> chunkLocations = new ArrayList<>();
+			for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++)
+			{
+				for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++)
+				{
+					int location = locations[RegionFileFormat.getLocationIndex(chunkX, chunkZ)];
+					if (RegionFileFormat.isPresent(location))
+					{
+						chunkLocations.add(new ChunkLocation(ChunkPos.asLong(chunkX, chunkZ), location));
+					}
+					else
+					{
+						this.missingChunkCount.incrementAndGet();
+					}
+				}
+			}
+			
+			// read the chunks in file order so neighboring chunks can share a read
+			chunkLocations.sort(Comparator.comparingInt(location -> location.sectorOffset));
+			int runStartIndex = 0;
+			while (runStartIndex < chunkLocations.size())
+			{
+				int runStartSector = chunkLocations.get(runStartIndex).sectorOffset;
+				int runEndSector = runStartSector + chunkLocations.get(runStartIndex).sectorCount;
+				int runEndIndex = runStartIndex + 1;
+				while (runEndIndex < chunkLocations.size())
+				{
+					ChunkLocation next = chunkLocations.get(runEndIndex);
+					int newRunEndSector = Math.max(runEndSector, next.sectorOffset + next.sectorCount);
+					if (next.sectorOffset > runEndSector + BatchGenerationSettings.Prefetch.maxGapSectors
+						|| (long) (newRunEndSector - runStartSector) * RegionFileFormat.SECTOR_BYTES > BatchGenerationSettings.Prefetch.maxReadBytes)
+					{
+						break;
+					}
+					runEndSector = newRunEndSector;
+					runEndIndex++;
+				}
+				
+				ByteBuffer buffer = readSectors(channel, runStartSector, runEndSector - runStartSector);
+				this.readCount.incrementAndGet();
+				this.readBytes.addAndGet(buffer.limit());
+				
+				for (int i = runStartIndex; i < runEndIndex; i++)
+				{
+					if (prefetchedChunks.canceled)
+					{
+						return;
+					}
+					this.decodeChunk(buffer, runStartSector, chunkLocations.get(i), prefetchedChunks);
+				}
+				runStartIndex = runEndIndex;
+			}
+		}
+	}
+	
+	/** @return a buffer containing the sectors, it may be shorter than requested if the file ends early */
+	private static ByteBuffer readSectors(FileChannel channel, int firstSector, int sectorCount) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(sectorCount * RegionFileFormat.SECTOR_BYTES);
+		long filePosition = (long) firstSector * RegionFileFormat.SECTOR_BYTES;
+		while (buffer.hasRemaining())
+		{
+			int bytesRead = channel.read(buffer, filePosition + buffer.position());
+			if (bytesRead < 0)
+			{
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	private void decodeChunk(ByteBuffer buffer, int bufferStartSector, ChunkLocation chunkLocation, PrefetchedChunks prefetchedChunks)
+	{
+		int offset = (chunkLocation.sectorOffset - bufferStartSector) * RegionFileFormat.SECTOR_BYTES;
+		int availableBytes = Math.min(chunkLocation.sectorCount * RegionFileFormat.SECTOR_BYTES, buffer.limit() - offset);
+		
+		// the event will read the chunk itself once it runs
+		if (this.bytesInFlight.addAndGet(availableBytes) > BatchGenerationSettings.Prefetch.maxBytesInFlight)
+		{
+			this.bytesInFlight.addAndGet(-availableBytes);
+			this.overBudgetChunkCount.incrementAndGet();
+			return;
+		}
+		
+		CompoundTag chunkData = null;
+		try
+		{
+			if (availableBytes > 0)
+			{
+				chunkData = RegionFileFormat.readChunk(buffer, offset, availableBytes);
+			}
+		}
+		catch (IOException e)
+		{
+			// probably being written by vanilla right now, the fallback will handle it
+		}
+		
+		if (chunkData != null)
+		{
+			if (prefetchedChunks.put(chunkLocation.pos, new PrefetchedChunk(chunkData, availableBytes)))
+			{
+				this.prefetchedChunkCount.incrementAndGet();
+			}
+		}
+		else
+		{
+			this.bytesInFlight.addAndGet(-availableBytes);
+			this.fallbackChunkCount.incrementAndGet();
+		}
+	}
+	
+	public void shutdown() { this.ioExecutor.shutdownNow(); }
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		return "World gen prefetch: [" + this.prefetchedChunkCount.get() + "] chunks prefetched, [" + this.missingChunkCount.get() + "] missing, [" + this.fallbackChunkCount.get() + "] fell back, "
+				+ "[" + this.overBudgetChunkCount.get() + "] over budget, [" + (this.bytesInFlight.get() / 1024) + "/" + (BatchGenerationSettings.Prefetch.maxBytesInFlight / 1024) + "] KiB held, "
+				+ "[" + this.regionFileCount.get() + "] region files, [" + this.readCount.get() + "] reads, [" + (this.readBytes.get() / 1024) + "] KiB read, "
+				+ "[" + this.ioExecutor.getQueue().size() + "] regions queued";
+	}
+	
+}
\ No newline at end of file
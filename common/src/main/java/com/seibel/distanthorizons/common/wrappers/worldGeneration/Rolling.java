@@ -39,7 +39,8 @@ public class Rolling
 		}
 	}
 	
-	public void add(double x)
+	/** synchronized since the same instance may be given events from several generation threads */
+	public synchronized void add(double x)
 	{
 		total -= samples[index];
 		samples[index] = x;
@@ -48,7 +49,7 @@ public class Rolling
 			index = 0; // cheaper than modulus
 	}
 	
-	public double getAverage()
+	public synchronized double getAverage()
 	{
 		return size == 0 ? 0 : total / size;
 	}
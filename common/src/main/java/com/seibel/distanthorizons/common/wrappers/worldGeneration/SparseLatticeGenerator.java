@@ -0,0 +1,270 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.core.util.gridList.ArrayGridList;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.ProtoChunk;
+import net.minecraft.world.level.levelgen.Heightmap;
+
+/**
+ * For the lowest detail levels, where one LOD pixel covers several chunks,
+ * only a lattice of sample chunks is generated (one every {@link BatchGenerationSettings.Sparse#latticeSpacing} chunks on each axis). <br><br>
+ *
+ * The skipped chunks are marked as finished before the noise step so every later step ignores them,
+ * then once the samples are done each skipped column's height is interpolated from the
+ * surrounding samples and the top blocks of the nearest sample are copied on top. <br>
+ * The lattice is aligned to the world, so neighbouring events agree on which chunks are samples.
+ */
+public final class SparseLatticeGenerator
+{
+	private final AtomicLong sampleChunkCount = new AtomicLong(0);
+	private final AtomicLong synthesizedChunkCount = new AtomicLong(0);
+	
+	
+	
+	//=========//
+	// marking //
+	//=========//
+	
+	/** Events without a known player distance are always fully generated. */
+	public static boolean shouldUseSparse(GenerationEvent genEvent)
+	{
+		int distance = genEvent.nearestPlayerDistanceInChunks;
+		return BatchGenerationSettings.Sparse.enabled && BatchGenerationSettings.Sparse.latticeSpacing > 1 && distance != -1 && distance >= BatchGenerationSettings.Sparse.minPlayerDistanceInChunks;
+	}
+	
+	private static boolean isSamplePos(ChunkPos pos)
+	{
+		return Math.floorMod(pos.x, BatchGenerationSettings.Sparse.latticeSpacing) == 0
+				&& Math.floorMod(pos.z, BatchGenerationSettings.Sparse.latticeSpacing) == 0;
+	}
+	
+	/**
+	 * Marks every chunk that isn't part of the lattice as finished so later steps will skip it.
+	 * Must be run after the biome step and before the noise step. <br>
+	 * The skipped chunks are stored in {@link GenerationEvent#sparseSkippedChunks}.
+	 *
+	 * @param innerChunks the chunks that will be sent to the event's consumer
+	 */
+	public void markSkippedChunks(GenerationEvent genEvent, ArrayGridList<ChunkWrapper> innerChunks)
+	{
+		ArrayList<ChunkWrapper> skippedChunks = new ArrayList<>();
+		int sampleCount = 0;
+		for (ChunkWrapper chunkWrapper : innerChunks)
+		{
+			ChunkAccess chunk = chunkWrapper.getChunk();
+			if (isSamplePos(chunk.getPos()))
+			{
+				sampleCount++;
+			}
+			else if (chunk instanceof ProtoChunk && !chunk.getStatus().isOrAfter(ChunkStatus.NOISE))
+			{
+				skippedChunks.add(chunkWrapper);
+			}
+		}
+		
+		// without any samples there wouldn't be anything to copy from
+		if (sampleCount == 0 || skippedChunks.isEmpty())
+		{
+			return;
+		}
+		
+		for (ChunkWrapper chunkWrapper : skippedChunks)
+		{
+			((ProtoChunk) chunkWrapper.getChunk()).setStatus(ChunkStatus.FEATURES);
+		}
+		genEvent.sparseSkippedChunks = skippedChunks;
+		this.sampleChunkCount.addAndGet(sampleCount);
+	}
+	
+	
+	
+	//=========//
+	// filling //
+	//=========//
+	
+	/**
+	 * Fills in the chunks skipped by {@link SparseLatticeGenerator#markSkippedChunks}.
+	 * Must be run after every other generation step has finished.
+	 */
+	public void fillSkippedChunks(GenerationEvent genEvent, ArrayGridList<ChunkWrapper> innerChunks, int seaLevel)
+	{
+		ArrayList<ChunkWrapper> skippedChunks = genEvent.sparseSkippedChunks;
+		if (skippedChunks == null)
+		{
+			return;
+		}
+		genEvent.sparseSkippedChunks = null;
+		
+		// find the samples
+		ArrayList<ChunkAccess> sampleChunks = new ArrayList<>();
+		for (ChunkWrapper chunkWrapper : innerChunks)
+		{
+			ChunkAccess chunk = chunkWrapper.getChunk();
+			if (isSamplePos(chunk.getPos()))
+			{
+				Heightmap.primeHeightmaps(chunk, EnumSet.of(Heightmap.Types.OCEAN_FLOOR));
+				sampleChunks.add(chunk);
+			}
+		}
+		
+		for (ChunkWrapper chunkWrapper : skippedChunks)
+		{
+			this.fillChunk(chunkWrapper.getChunk(), sampleChunks, seaLevel);
+		}
+		this.synthesizedChunkCount.addAndGet(skippedChunks.size());
+	}
+	
+	private void fillChunk(ChunkAccess chunk, ArrayList<ChunkAccess> sampleChunks, int seaLevel)
+	{
+		ChunkPos pos = chunk.getPos();
+		
+		// the lattice cell this chunk is in
+		int cellMinX = Math.floorDiv(pos.x, BatchGenerationSettings.Sparse.latticeSpacing) * BatchGenerationSettings.Sparse.latticeSpacing;
+		int cellMinZ = Math.floorDiv(pos.z, BatchGenerationSettings.Sparse.latticeSpacing) * BatchGenerationSettings.Sparse.latticeSpacing;
+		ChunkAccess[] corners = new ChunkAccess[] {
+				findSample(sampleChunks, cellMinX, cellMinZ),
+				findSample(sampleChunks, cellMinX + BatchGenerationSettings.Sparse.latticeSpacing, cellMinZ),
+				findSample(sampleChunks, cellMinX, cellMinZ + BatchGenerationSettings.Sparse.latticeSpacing),
+				findSample(sampleChunks, cellMinX + BatchGenerationSettings.Sparse.latticeSpacing, cellMinZ + BatchGenerationSettings.Sparse.latticeSpacing),
+		};
+		double fractionX = (pos.x - cellMinX) / (double) BatchGenerationSettings.Sparse.latticeSpacing;
+		double fractionZ = (pos.z - cellMinZ) / (double) BatchGenerationSettings.Sparse.latticeSpacing;
+		double[] weights = new double[] {
+				(1 - fractionX) * (1 - fractionZ),
+				fractionX * (1 - fractionZ),
+				(1 - fractionX) * fractionZ,
+				fractionX * fractionZ,
+		};
+		
+		ChunkAccess nearestSample = findNearestSample(sampleChunks, pos);
+		
+		#if PRE_MC_1_17_1
+		int minBuildHeight = 0;
+		#else
+		int minBuildHeight = chunk.getMinBuildHeight();
+		#endif
+		BlockPos.MutableBlockPos samplePos = new BlockPos.MutableBlockPos();
+		BlockPos.MutableBlockPos targetPos = new BlockPos.MutableBlockPos();
+		int minBlockX = pos.getMinBlockX();
+		int minBlockZ = pos.getMinBlockZ();
+		
+		for (int x = 0; x < 16; x++)
+		{
+			for (int z = 0; z < 16; z++)
+			{
+				// interpolate the height between whichever corners were generated
+				double weightedHeight = 0;
+				double totalWeight = 0;
+				for (int i = 0; i < corners.length; i++)
+				{
+					if (corners[i] != null && weights[i] > 0)
+					{
+						weightedHeight += weights[i] * getSurfaceY(corners[i], x, z);
+						totalWeight += weights[i];
+					}
+				}
+				int sampleTopY = getSurfaceY(nearestSample, x, z);
+				int topY = (totalWeight > 0) ? (int) Math.round(weightedHeight / totalWeight) : sampleTopY;
+				
+				if (topY < minBuildHeight)
+				{
+					continue;
+				}
+				
+				// copy the top of the nearest sample's column
+				int bottomY = Math.max(minBuildHeight, topY - BatchGenerationSettings.Sparse.copyDepth);
+				for (int y = topY; y >= bottomY; y--)
+				{
+					int sampleY = Math.max(minBuildHeight, sampleTopY - (topY - y));
+					BlockState block = nearestSample.getBlockState(samplePos.set(nearestSample.getPos().getMinBlockX() + x, sampleY, nearestSample.getPos().getMinBlockZ() + z));
+					chunk.setBlockState(targetPos.set(minBlockX + x, y, minBlockZ + z), block, false);
+				}
+				
+				for (int y = topY + 1; y < seaLevel; y++)
+				{
+					chunk.setBlockState(targetPos.set(minBlockX + x, y, minBlockZ + z), Blocks.WATER.defaultBlockState(), false);
+				}
+			}
+		}
+	}
+	
+	/** @return the Y position of the highest solid block in the given column */
+	private static int getSurfaceY(ChunkAccess chunk, int relX, int relZ) { return chunk.getOrCreateHeightmapUnprimed(Heightmap.Types.OCEAN_FLOOR).getFirstAvailable(relX, relZ) - 1; }
+	
+	/** @return null if the sample at the given position isn't in the list */
+	private static ChunkAccess findSample(ArrayList<ChunkAccess> sampleChunks, int chunkX, int chunkZ)
+	{
+		for (ChunkAccess sample : sampleChunks)
+		{
+			if (sample.getPos().x == chunkX && sample.getPos().z == chunkZ)
+			{
+				return sample;
+			}
+		}
+		return null;
+	}
+	
+	private static ChunkAccess findNearestSample(ArrayList<ChunkAccess> sampleChunks, ChunkPos pos)
+	{
+		ChunkAccess nearest = null;
+		long nearestDistance = Long.MAX_VALUE;
+		for (ChunkAccess sample : sampleChunks)
+		{
+			long deltaX = sample.getPos().x - pos.x;
+			long deltaZ = sample.getPos().z - pos.z;
+			long distance = deltaX * deltaX + deltaZ * deltaZ;
+			if (distance < nearestDistance)
+			{
+				nearestDistance = distance;
+				nearest = sample;
+			}
+		}
+		return nearest;
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		long sampleCount = this.sampleChunkCount.get();
+		long synthesizedCount = this.synthesizedChunkCount.get();
+		return "Sparse world gen: [" + sampleCount + "] sample chunks generated, [" + synthesizedCount + "] chunks synthesized"
+				+ ((sampleCount + synthesizedCount > 0) ? " (" + (100 * synthesizedCount / (sampleCount + synthesizedCount)) + "% skipped)" : "");
+	}
+	
+}
\ No newline at end of file
@@ -35,6 +35,8 @@ public final class ThreadedParameters
 	
 	final ServerLevel level;
 	public WorldGenStructFeatManager structFeat = null;
+	/** the level {@link ThreadedParameters#structFeat} was made for */
+	private WorldGenLevel structFeatLevel = null;
 	#if POST_MC_1_18_2
 	public StructureCheck structCheck;
 	#endif
@@ -81,10 +83,20 @@ public final class ThreadedParameters
 	public void makeStructFeat(WorldGenLevel genLevel, GlobalParameters param)
 	{
 		#if PRE_MC_1_19_4
-		structFeat = new WorldGenStructFeatManager(param.worldGenSettings, genLevel #if POST_MC_1_18_2 , structCheck #endif );
+		structFeat = new WorldGenStructFeatManager(param.worldGenSettings, genLevel #if POST_MC_1_18_2 , structCheck, param.structureStartCache #endif );
 		#else
-		structFeat = new WorldGenStructFeatManager(param.worldOptions, genLevel, structCheck);
+		structFeat = new WorldGenStructFeatManager(param.worldOptions, genLevel, structCheck, param.structureStartCache);
 		#endif
+		structFeatLevel = genLevel;
+	}
+	
+	/** Only creates a new {@link WorldGenStructFeatManager} if the current one was made for a different level. */
+	public void makeStructFeatIfNeeded(WorldGenLevel genLevel, GlobalParameters param)
+	{
+		if (structFeat == null || structFeatLevel != genLevel)
+		{
+			makeStructFeat(genLevel, param);
+		}
 	}
 	
 	
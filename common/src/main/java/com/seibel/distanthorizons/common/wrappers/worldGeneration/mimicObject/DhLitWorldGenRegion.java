@@ -21,7 +21,9 @@ package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
 
 import java.lang.invoke.MethodHandles;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
@@ -53,6 +55,8 @@ import net.minecraft.world.level.chunk.ChunkAccess;
 import net.minecraft.world.level.chunk.ChunkStatus;
 import net.minecraft.world.level.chunk.ImposterProtoChunk;
 import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.ProtoChunk;
+import net.minecraft.world.level.levelgen.Heightmap;
 import net.minecraft.world.level.lighting.LevelLightEngine;
 
 public class DhLitWorldGenRegion extends WorldGenRegion
@@ -64,14 +68,36 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 	public final int writeRadius;
 	public final int size;
 	private final ChunkPos firstPos;
-	private final List<ChunkAccess> cache;
-	Long2ObjectOpenHashMap<ChunkAccess> chunkMap = new Long2ObjectOpenHashMap<ChunkAccess>();
+	/** the chunks inside this region, never changes after construction so it can be read by any thread without locking */
+	private final ChunkAccess[] chunkArray;
+	/** 
+	 * Empty chunks created outside this region's bounds. <br>
+	 * Only written to while this region isn't shared, see {@link DhLitWorldGenRegion#isShared}.
+	 */
+	private final Long2ObjectOpenHashMap<ChunkAccess> chunkMap = new Long2ObjectOpenHashMap<>();
+	/** Empty chunks created while this region is shared, moved into {@link DhLitWorldGenRegion#chunkMap} once it stops being shared. */
+	private final ConcurrentHashMap<Long, ChunkAccess> sharedChunkMap = new ConcurrentHashMap<>();
+	/**
+	 * True while several threads may be getting chunks from this region at once. <br>
+	 * Otherwise the region is only used by its generation event, which runs one step at a time,
+	 * so chunks can be looked up without any locking.
+	 */
+	private volatile boolean isShared = false;
+	
+	/**
+	 * Positions of the chunks whose {@link ChunkStatus#FEATURES} heightmaps were primed by this region.
+	 * After that {@link ProtoChunk#setBlockState} keeps those heightmaps up to date for every block
+	 * set through {@link DhLitWorldGenRegion#setBlock}, so they never need to be primed again.
+	 */
+	private final Set<Long> heightmapPrimedChunkPositions = ConcurrentHashMap.newKeySet();
 	
 	/** 
-	 * Present to reduce the chance that we accidentally break underlying MC code that isn't thread safe, 
-	 * specifically: "it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap.getAndMoveToFirst()"
+	 * Structure managers created for this region, keyed by the per-thread structure check they use. 
+	 * Only lives as long as this region, so the managers' memoized structure starts can't go stale.
+	 * 
+	 * @see WorldGenStructFeatManager#forWorldGenRegion(WorldGenRegion)
 	 */
-	ReentrantLock getChunkLock = new ReentrantLock();
+	private final ConcurrentHashMap<Object, WorldGenStructFeatManager> structFeatByKey = new ConcurrentHashMap<>(4);
 	
 	#if PRE_MC_1_18_2
 	private ChunkPos overrideCenterPos = null;
@@ -109,7 +135,7 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 		this.generator = generator;
 		this.lightEngine = lightEngine;
 		this.writeRadius = writeRadius;
-		this.cache = chunkList;
+		this.chunkArray = chunkList.toArray(new ChunkAccess[0]);
 		this.size = Mth.floor(Math.sqrt(chunkList.size()));
 	}
 	
@@ -166,6 +192,30 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 		return true;
 	}
 	
+	/**
+	 * Should be called when the chunk is set to {@link ChunkStatus#FEATURES}, before any features are placed.
+	 * Any block set afterward will update the heightmaps, see {@link DhLitWorldGenRegion#heightmapPrimedChunkPositions}.
+	 */
+	public void primeFeatureHeightmaps(ChunkAccess chunk)
+	{
+		Heightmap.primeHeightmaps(chunk, ChunkStatus.FEATURES.heightmapsAfter());
+		this.heightmapPrimedChunkPositions.add(chunk.getPos().toLong());
+	}
+	
+	/** @return true if the chunk's heightmaps are up to date and don't need to be primed again */
+	public boolean areFeatureHeightmapsPrimed(ChunkAccess chunk)
+	{
+		return chunk instanceof ProtoChunk
+				&& chunk.getStatus().isOrAfter(ChunkStatus.FEATURES)
+				&& this.heightmapPrimedChunkPositions.contains(chunk.getPos().toLong());
+	}
+	
+	/** @param managerKey identifies which threads can share the manager, see {@link DhLitWorldGenRegion#structFeatByKey} */
+	public WorldGenStructFeatManager getOrCreateStructFeat(Object managerKey, Supplier<WorldGenStructFeatManager> managerSupplier)
+	{
+		return this.structFeatByKey.computeIfAbsent(managerKey, (key) -> managerSupplier.get());
+	}
+	
 	// Skip Dropping the item on destroy
 	@Override
 	public boolean destroyBlock(BlockPos blockPos, boolean bl, @Nullable Entity entity, int i)
@@ -214,43 +264,19 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 	// Override to ensure no other mod mixins cause skipping the overrided
 	// getChunk(...)
 	@Override
-	public ChunkAccess getChunk(int i, int j)
-	{
-		try
-		{
-			// lock is to prevent issues with underlying MC code that doesn't support multithreading
-			this.getChunkLock.lock();
-			return this.getChunk(i, j, ChunkStatus.EMPTY);
-		}
-		finally
-		{
-			this.getChunkLock.unlock();
-		}
-	}
+	public ChunkAccess getChunk(int i, int j) { return this.getChunk(i, j, ChunkStatus.EMPTY, true); }
 	
 	// Override to ensure no other mod mixins cause skipping the overrided
 	// getChunk(...)
 	@Override
-	public ChunkAccess getChunk(int i, int j, ChunkStatus chunkStatus)
-	{
-		try
-		{
-			// lock is to prevent issues with underlying MC code that doesn't support multithreading
-			this.getChunkLock.lock();
-			return this.getChunk(i, j, chunkStatus, true);
-		}
-		finally
-		{
-			this.getChunkLock.unlock();
-		}
-	}
+	public ChunkAccess getChunk(int i, int j, ChunkStatus chunkStatus) { return this.getChunk(i, j, chunkStatus, true); }
 	
 	// Use this instead of super.getChunk() to bypass C2ME concurrency checks
 	private ChunkAccess superGetChunk(int x, int z, ChunkStatus cs)
 	{
 		int k = x - firstPos.x;
 		int l = z - firstPos.z;
-		return cache.get(k + l * size);
+		return this.chunkArray[k + l * size];
 	}
 	
 	// Use this instead of super.hasChunk() to bypass C2ME concurrency checks
@@ -287,14 +313,7 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 			return null;
 		if (chunk == null)
 		{
-			chunk = chunkMap.get(ChunkPos.asLong(i, j));
-			if (chunk == null)
-			{
-				chunk = generator.generate(i, j);
-				if (chunk == null)
-					throw new NullPointerException("The provided generator should not return null!");
-				chunkMap.put(ChunkPos.asLong(i, j), chunk);
-			}
+			chunk = this.getOrCreateOutOfBoundsChunk(i, j);
 		}
 		if (chunkStatus != ChunkStatus.EMPTY && chunkStatus != debugTriggeredForStatus)
 		{
@@ -305,6 +324,49 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 		return chunk;
 	}
 	
+	private ChunkAccess getOrCreateOutOfBoundsChunk(int x, int z)
+	{
+		long pos = ChunkPos.asLong(x, z);
+		ChunkAccess chunk = this.chunkMap.get(pos);
+		if (chunk != null)
+		{
+			return chunk;
+		}
+		
+		if (this.isShared)
+		{
+			// chunkMap isn't written to while shared, so only the new chunks need a thread safe map
+			return this.sharedChunkMap.computeIfAbsent(pos, (key) -> this.generateOutOfBoundsChunk(x, z));
+		}
+		
+		chunk = this.generateOutOfBoundsChunk(x, z);
+		this.chunkMap.put(pos, chunk);
+		return chunk;
+	}
+	
+	private ChunkAccess generateOutOfBoundsChunk(int x, int z)
+	{
+		ChunkAccess chunk = this.generator.generate(x, z);
+		if (chunk == null)
+			throw new NullPointerException("The provided generator should not return null!");
+		return chunk;
+	}
+	
+	/** 
+	 * Should be called before several threads start getting chunks from this region at once. 
+	 * Must be paired with {@link DhLitWorldGenRegion#endSharedAccess()}.
+	 */
+	public void beginSharedAccess() { this.isShared = true; }
+	
+	/** Should be called once every other thread has finished with this region. */
+	public void endSharedAccess()
+	{
+		this.isShared = false;
+		
+		this.chunkMap.putAll(this.sharedChunkMap);
+		this.sharedChunkMap.clear();
+	}
+	
 	/** Overriding allows us to use our own lighting engine */
 	@Override
 	public LevelLightEngine getLightEngine() { return this.lightEngine; }
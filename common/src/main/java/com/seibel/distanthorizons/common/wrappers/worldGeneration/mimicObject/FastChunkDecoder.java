@@ -0,0 +1,401 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import com.seibel.distanthorizons.common.wrappers.block.BiomeWrapper;
+import com.seibel.distanthorizons.common.wrappers.block.BlockStateWrapper;
+import com.seibel.distanthorizons.common.wrappers.chunk.DecodedChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.LatencyHistogram;
+import com.seibel.distanthorizons.core.util.LodUtil;
+import com.seibel.distanthorizons.core.wrapperInterfaces.block.IBlockStateWrapper;
+import com.seibel.distanthorizons.core.wrapperInterfaces.world.IBiomeWrapper;
+import com.seibel.distanthorizons.core.wrapperInterfaces.world.ILevelWrapper;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.block.state.properties.Property;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.levelgen.Heightmap;
+
+import net.minecraft.core.Registry;
+#if POST_MC_1_18_2
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.biome.Biomes;
+#endif
+#if POST_MC_1_19_4
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.core.registries.Registries;
+#endif
+
+import javax.annotation.Nullable;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Turns a full chunk's NBT straight into a {@link DecodedChunkWrapper},
+ * skipping {@link ChunkLoader} and the codec based {@link net.minecraft.world.level.chunk.PalettedContainer} decoding. <br><br>
+ *
+ * Each section's palette is resolved once (palette entries are cached across chunks)
+ * and the packed long arrays are kept as they are, they're only unpacked when a block or biome is read. <br>
+ * Only chunks in the 1.18+ format (data version {@link FastChunkDecoder#MIN_DATA_VERSION} and up) are supported,
+ * anything else returns null so the caller can fall back to {@link ChunkLoader}.
+ */
+public class FastChunkDecoder
+{
+	/** the first data version (1.18) with per section biomes and no "Level" compound */
+	public static final int MIN_DATA_VERSION = 2860;
+	
+	private static final int BLOCKS_PER_SECTION = 4096;
+	private static final int BIOMES_PER_SECTION = 64;
+	private static final int COLUMNS_PER_CHUNK = LodUtil.CHUNK_WIDTH * LodUtil.CHUNK_WIDTH;
+	/** vanilla never packs block states with fewer bits than this */
+	private static final int MIN_BLOCK_BITS = 4;
+	
+	private final ILevelWrapper levelWrapper;
+	private final int minBuildHeight;
+	private final int height;
+	private final int minSection;
+	private final int sectionCount;
+	
+	#if POST_MC_1_18_2
+	private final Registry<Biome> biomes;
+	#endif
+	/** used when a biome can't be found */
+	private final IBiomeWrapper defaultBiome;
+	/** used for sections that aren't stored in the chunk */
+	private final DecodedChunkWrapper.Section airSection;
+	
+	/** palette entries are compared by value, so identical entries in different chunks share the same state */
+	private final ConcurrentHashMap<CompoundTag, BlockState> blockStateByPaletteEntry = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, IBiomeWrapper> biomeByName = new ConcurrentHashMap<>();
+	
+	private final AtomicLong fallbackCount = new AtomicLong(0);
+	/** nanoseconds per decoded chunk */
+	private final LatencyHistogram decodeTimes = new LatencyHistogram();
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public FastChunkDecoder(ServerLevel level, ILevelWrapper levelWrapper)
+	{
+		this.levelWrapper = levelWrapper;
+		#if PRE_MC_1_17_1
+		this.minBuildHeight = 0;
+		this.height = 256;
+		this.minSection = 0;
+		this.sectionCount = 16;
+		#else
+		this.minBuildHeight = level.getMinBuildHeight();
+		this.height = level.getHeight();
+		this.minSection = level.getMinSection();
+		this.sectionCount = level.getSectionsCount();
+		#endif
+		
+		#if POST_MC_1_18_2
+		#if PRE_MC_1_19_4
+		this.biomes = level.registryAccess().registryOrThrow(Registry.BIOME_REGISTRY);
+		#else
+		this.biomes = level.registryAccess().registryOrThrow(Registries.BIOME);
+		#endif
+		this.defaultBiome = BiomeWrapper.getBiomeWrapper(this.biomes.getHolderOrThrow(Biomes.PLAINS), levelWrapper);
+		
+		BlockState air = Blocks.AIR.defaultBlockState();
+		this.airSection = new DecodedChunkWrapper.Section(
+				new BlockState[]{ air }, new IBlockStateWrapper[]{ BlockStateWrapper.fromBlockState(air, levelWrapper) }, null, 0,
+				new IBiomeWrapper[]{ this.defaultBiome }, null, 0);
+		#else
+		this.defaultBiome = null;
+		this.airSection = null;
+		#endif
+	}
+	
+	
+	
+	//==========//
+	// decoding //
+	//==========//
+	
+	/** @return true if the chunk is a full chunk in the 1.18+ format at the given position */
+	public static boolean canDecode(ChunkPos pos, CompoundTag chunkData)
+	{
+		#if PRE_MC_1_18_2
+		return false;
+		#else
+		return chunkData.getInt("DataVersion") >= MIN_DATA_VERSION
+				&& ChunkStatus.byName(chunkData.getString("Status")) == ChunkStatus.FULL
+				&& chunkData.getInt("xPos") == pos.x
+				&& chunkData.getInt("zPos") == pos.z;
+		#endif
+	}
+	
+	/** @return null if the chunk can't be decoded by this decoder and should be loaded with {@link ChunkLoader} instead */
+	@Nullable
+	public DecodedChunkWrapper decode(ChunkPos pos, CompoundTag chunkData)
+	{
+		if (!canDecode(pos, chunkData))
+		{
+			this.fallbackCount.incrementAndGet();
+			return null;
+		}
+		
+		long startTime = System.nanoTime();
+		try
+		{
+			DecodedChunkWrapper.Section[] sections = this.decodeSections(chunkData);
+			
+			CompoundTag heightmaps = chunkData.getCompound("Heightmaps");
+			int[] worldSurfaceHeights = this.decodeHeightmap(heightmaps, Heightmap.Types.WORLD_SURFACE, sections);
+			int[] motionBlockingHeights = this.decodeHeightmap(heightmaps, Heightmap.Types.MOTION_BLOCKING, sections);
+			
+			DecodedChunkWrapper chunk = new DecodedChunkWrapper(pos, this.minBuildHeight, this.height, sections, worldSurfaceHeights, motionBlockingHeights);
+			this.decodeTimes.record(System.nanoTime() - startTime);
+			return chunk;
+		}
+		catch (RuntimeException e)
+		{
+			BatchGenerationEnvironment.LOAD_LOGGER.warn("Unable to quickly decode chunk at " + pos + ", it will be loaded normally. Error: " + e.getMessage(), e);
+			this.fallbackCount.incrementAndGet();
+			return null;
+		}
+	}
+	
+	private DecodedChunkWrapper.Section[] decodeSections(CompoundTag chunkData)
+	{
+		DecodedChunkWrapper.Section[] sections = new DecodedChunkWrapper.Section[this.sectionCount];
+		
+		ListTag sectionTags = chunkData.getList("sections", 10);
+		for (int i = 0; i < sectionTags.size(); i++)
+		{
+			CompoundTag sectionTag = sectionTags.getCompound(i);
+			int sectionIndex = sectionTag.getByte("Y") - this.minSection;
+			// light only sections are stored above and below the world
+			if (sectionIndex >= 0 && sectionIndex < sections.length && sectionTag.contains("block_states", 10))
+			{
+				sections[sectionIndex] = this.decodeSection(sectionTag);
+			}
+		}
+		
+		for (int i = 0; i < sections.length; i++)
+		{
+			if (sections[i] == null)
+			{
+				sections[i] = this.airSection;
+			}
+		}
+		return sections;
+	}
+	
+	private DecodedChunkWrapper.Section decodeSection(CompoundTag sectionTag)
+	{
+		CompoundTag blockStatesTag = sectionTag.getCompound("block_states");
+		ListTag blockPaletteTag = blockStatesTag.getList("palette", 10);
+		if (blockPaletteTag.isEmpty())
+		{
+			throw new IllegalStateException("Section has no block palette");
+		}
+		
+		BlockState[] blockPalette = new BlockState[blockPaletteTag.size()];
+		IBlockStateWrapper[] blockWrapperPalette = new IBlockStateWrapper[blockPalette.length];
+		for (int i = 0; i < blockPalette.length; i++)
+		{
+			blockPalette[i] = this.resolveBlockState(blockPaletteTag.getCompound(i));
+			blockWrapperPalette[i] = BlockStateWrapper.fromBlockState(blockPalette[i], this.levelWrapper);
+		}
+		int blockBits = (blockPalette.length == 1) ? 0 : Math.max(MIN_BLOCK_BITS, Mth.ceillog2(blockPalette.length));
+		long[] blockData = readPackedData(blockStatesTag, BLOCKS_PER_SECTION, blockBits);
+		
+		IBiomeWrapper[] biomePalette;
+		long[] biomeData;
+		int biomeBits;
+		CompoundTag biomesTag = sectionTag.getCompound("biomes");
+		ListTag biomePaletteTag = biomesTag.getList("palette", 8);
+		if (biomePaletteTag.isEmpty())
+		{
+			biomePalette = new IBiomeWrapper[]{ this.defaultBiome };
+			biomeData = null;
+			biomeBits = 0;
+		}
+		else
+		{
+			biomePalette = new IBiomeWrapper[biomePaletteTag.size()];
+			for (int i = 0; i < biomePalette.length; i++)
+			{
+				biomePalette[i] = this.resolveBiome(biomePaletteTag.getString(i));
+			}
+			biomeBits = (biomePalette.length == 1) ? 0 : Mth.ceillog2(biomePalette.length);
+			biomeData = readPackedData(biomesTag, BIOMES_PER_SECTION, biomeBits);
+		}
+		
+		return new DecodedChunkWrapper.Section(blockPalette, blockWrapperPalette, blockData, blockBits, biomePalette, biomeData, biomeBits);
+	}
+	
+	/** @return null if bits is 0 */
+	@Nullable
+	private static long[] readPackedData(CompoundTag containerTag, int valueCount, int bits)
+	{
+		if (bits == 0)
+		{
+			return null;
+		}
+		
+		long[] data = containerTag.getLongArray("data");
+		int valuesPerLong = Long.SIZE / bits;
+		int expectedLength = (valueCount + valuesPerLong - 1) / valuesPerLong;
+		if (data.length != expectedLength)
+		{
+			throw new IllegalStateException("Packed data has [" + data.length + "] longs, expected [" + expectedLength + "] for [" + bits + "] bits per value");
+		}
+		return data;
+	}
+	
+	/** @return the first available y position of each column */
+	private int[] decodeHeightmap(CompoundTag heightmaps, Heightmap.Types type, DecodedChunkWrapper.Section[] sections)
+	{
+		int bits = Mth.ceillog2(this.height + 1);
+		long[] data = heightmaps.getLongArray(type.getSerializationKey());
+		int valuesPerLong = Long.SIZE / bits;
+		if (data.length != (COLUMNS_PER_CHUNK + valuesPerLong - 1) / valuesPerLong)
+		{
+			// missing or from a different world height
+			return this.computeHeightmap(type.isOpaque(), sections);
+		}
+		
+		int[] heights = new int[COLUMNS_PER_CHUNK];
+		for (int i = 0; i < COLUMNS_PER_CHUNK; i++)
+		{
+			heights[i] = DecodedChunkWrapper.unpack(data, bits, i) + this.minBuildHeight;
+		}
+		return heights;
+	}
+	
+	private int[] computeHeightmap(Predicate<BlockState> isOpaque, DecodedChunkWrapper.Section[] sections)
+	{
+		int[] heights = new int[COLUMNS_PER_CHUNK];
+		for (int z = 0; z < LodUtil.CHUNK_WIDTH; z++)
+		{
+			for (int x = 0; x < LodUtil.CHUNK_WIDTH; x++)
+			{
+				int firstAvailable = this.minBuildHeight;
+				for (int y = this.height - 1; y >= 0; y--)
+				{
+					DecodedChunkWrapper.Section section = sections[y >> 4];
+					if (isOpaque.test(section.getBlockState(x, y & 15, z)))
+					{
+						firstAvailable = this.minBuildHeight + y + 1;
+						break;
+					}
+				}
+				heights[x + z * LodUtil.CHUNK_WIDTH] = firstAvailable;
+			}
+		}
+		return heights;
+	}
+	
+	
+	
+	//==========//
+	// palettes //
+	//==========//
+	
+	private BlockState resolveBlockState(CompoundTag paletteEntry)
+	{
+		BlockState blockState = this.blockStateByPaletteEntry.get(paletteEntry);
+		if (blockState != null)
+		{
+			return blockState;
+		}
+		
+		ResourceLocation location = ResourceLocation.tryParse(paletteEntry.getString("Name"));
+		#if PRE_MC_1_19_4
+		Optional<Block> block = (location != null) ? Registry.BLOCK.getOptional(location) : Optional.empty();
+		#else
+		Optional<Block> block = (location != null) ? BuiltInRegistries.BLOCK.getOptional(location) : Optional.empty();
+		#endif
+		
+		blockState = block.map(Block::defaultBlockState).orElse(Blocks.AIR.defaultBlockState());
+		if (block.isPresent() && paletteEntry.contains("Properties", 10))
+		{
+			CompoundTag properties = paletteEntry.getCompound("Properties");
+			for (String propertyName : properties.getAllKeys())
+			{
+				Property<?> property = block.get().getStateDefinition().getProperty(propertyName);
+				if (property != null)
+				{
+					blockState = setValue(blockState, property, properties.getString(propertyName));
+				}
+			}
+		}
+		
+		this.blockStateByPaletteEntry.put(paletteEntry, blockState);
+		return blockState;
+	}
+	
+	private static <T extends Comparable<T>> BlockState setValue(BlockState blockState, Property<T> property, String value)
+	{
+		Optional<T> parsedValue = property.getValue(value);
+		return parsedValue.isPresent() ? blockState.setValue(property, parsedValue.get()) : blockState;
+	}
+	
+	private IBiomeWrapper resolveBiome(String name)
+	{
+		#if PRE_MC_1_18_2
+		throw new UnsupportedOperationException("Per section biomes don't exist before 1.18");
+		#else
+		return this.biomeByName.computeIfAbsent(name, (biomeName) ->
+		{
+			ResourceLocation location = ResourceLocation.tryParse(biomeName);
+			if (location == null)
+			{
+				return this.defaultBiome;
+			}
+			
+			#if PRE_MC_1_19_4
+			ResourceKey<Biome> key = ResourceKey.create(Registry.BIOME_REGISTRY, location);
+			#else
+			ResourceKey<Biome> key = ResourceKey.create(Registries.BIOME, location);
+			#endif
+			return this.biomes.getHolder(key).map(holder -> BiomeWrapper.getBiomeWrapper(holder, this.levelWrapper)).orElse(this.defaultBiome);
+		});
+		#endif
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString() { return "Fast chunk decoding: [" + this.decodeTimes.getCount() + "] chunks decoded, [" + this.fallbackCount.get() + "] left to the normal loader, time per chunk: [" + this.decodeTimes + "]"; }
+	
+}
\ No newline at end of file
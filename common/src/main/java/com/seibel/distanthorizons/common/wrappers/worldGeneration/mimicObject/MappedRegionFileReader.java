@@ -0,0 +1,430 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationSettings;
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-only region file reader that memory maps each .mca file
+ * and reads the location table and chunk data straight out of the mapping. <br><br>
+ *
+ * Reads don't take any locks: every read works on its own view of the shared mapping,
+ * so any number of threads can read the same region file at once. <br>
+ * Vanilla's {@link net.minecraft.world.level.chunk.storage.RegionFileStorage} is never touched,
+ * so this can't interfere with (or be broken by) the server's own chunk saving. <br><br>
+ *
+ * Vanilla writes to the same file while the server runs. Writes inside the mapped range are visible immediately,
+ * if a chunk points past the end of the mapping the file is mapped again at its new size. <br>
+ * A chunk that is caught half-written fails to decompress,
+ * in that case (and for chunks stored in external .mcc files) an {@link IOException} is thrown
+ * so the caller can fall back to vanilla's {@link net.minecraft.world.level.chunk.storage.RegionFile}. <br><br>
+ *
+ * Mappings are released as soon as they are dropped and no read is using them, instead of whenever the garbage collector gets to them,
+ * since Windows won't let a mapped file be deleted (which would stop the world from being deleted). <br>
+ * If this JVM doesn't allow releasing mappings early, this reader isn't used on Windows, see {@link #canBeUsed()}.
+ */
+public class MappedRegionFileReader
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	/** null if this JVM doesn't let mappings be released before they are garbage collected */
+	@Nullable
+	private static final IBufferUnmapper UNMAPPER = createUnmapper();
+	private static final boolean IS_WINDOWS = System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+	
+	private final Path storageFolder;
+	/** keyed by {@link ChunkPos#asLong(int, int)} of the region */
+	private final ConcurrentHashMap<Long, MappedRegionFile> mappedFiles = new ConcurrentHashMap<>();
+	
+	private final AtomicLong readCount = new AtomicLong(0);
+	private final AtomicLong mapCount = new AtomicLong(0);
+	
+	
+	
+	/** 
+	 * Holds one reference for {@link MappedRegionFileReader#mappedFiles} and one for each read using it,
+	 * the mapping is released once every reference has been released.
+	 */
+	private static class MappedRegionFile
+	{
+		final MappedByteBuffer buffer;
+		/** how many bytes of the file are mapped */
+		final int mappedSize;
+		private final AtomicInteger refCount = new AtomicInteger(1);
+		
+		MappedRegionFile(MappedByteBuffer buffer, int mappedSize)
+		{
+			this.buffer = buffer;
+			this.mappedSize = mappedSize;
+		}
+		
+		/** @return false if the mapping has already been released */
+		boolean tryAcquire()
+		{
+			int count;
+			do
+			{
+				count = this.refCount.get();
+				if (count <= 0)
+				{
+					return false;
+				}
+			}
+			while (!this.refCount.compareAndSet(count, count + 1));
+			return true;
+		}
+		
+		void release()
+		{
+			if (this.refCount.decrementAndGet() == 0)
+			{
+				unmap(this.buffer);
+			}
+		}
+		
+	}
+	
+	@FunctionalInterface
+	private interface IBufferUnmapper
+	{
+		void unmap(MappedByteBuffer buffer) throws Exception;
+	}
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public MappedRegionFileReader(Path storageFolder) { this.storageFolder = storageFolder; }
+	
+	
+	
+	//=========//
+	// reading //
+	//=========//
+	
+	/**
+	 * @return null if the chunk doesn't exist on disk
+	 * @throws IOException if the chunk exists but couldn't be read by this reader
+	 */
+	@Nullable
+	public CompoundTag read(ChunkPos pos) throws IOException { return this.read(pos, ProjectedChunkNbtReader.INSTANCE::read); }
+	
+	/**
+	 * @param reader is given the chunk's decompressed NBT stream
+	 * @return null if the chunk doesn't exist on disk
+	 * @throws IOException if the chunk exists but couldn't be read by this reader
+	 */
+	@Nullable
+	public <T> T read(ChunkPos pos, RegionFileFormat.IChunkStreamReader<T> reader) throws IOException
+	{
+		long regionPos = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
+		MappedRegionFile mappedFile = this.acquireMappedFile(regionPos, pos.getRegionX(), pos.getRegionZ());
+		if (mappedFile == null)
+		{
+			return null;
+		}
+		
+		try
+		{
+			if (mappedFile.mappedSize < RegionFileFormat.SECTOR_BYTES)
+			{
+				// the file was mapped before vanilla finished writing its header
+				mappedFile = this.remap(regionPos, mappedFile, pos.getRegionX(), pos.getRegionZ());
+				if (mappedFile == null || mappedFile.mappedSize < RegionFileFormat.SECTOR_BYTES)
+				{
+					return null;
+				}
+			}
+			
+			int location = mappedFile.buffer.getInt(RegionFileFormat.getLocationIndex(pos.x, pos.z) * 4);
+			if (!RegionFileFormat.isPresent(location))
+			{
+				return null;
+			}
+			
+			long chunkStart = (long) RegionFileFormat.getSectorOffset(location) * RegionFileFormat.SECTOR_BYTES;
+			long chunkEnd = chunkStart + (long) RegionFileFormat.getSectorCount(location) * RegionFileFormat.SECTOR_BYTES;
+			if (chunkEnd > mappedFile.mappedSize)
+			{
+				// the chunk was written after the file was mapped
+				mappedFile = this.remap(regionPos, mappedFile, pos.getRegionX(), pos.getRegionZ());
+				if (mappedFile == null || chunkStart >= mappedFile.mappedSize)
+				{
+					throw new IOException("Chunk " + pos + " is outside its region file");
+				}
+			}
+			
+			this.readCount.incrementAndGet();
+			int availableBytes = (int) Math.min(chunkEnd, mappedFile.mappedSize) - (int) chunkStart;
+			// each read gets its own view so concurrent reads don't share a position
+			ByteBuffer view = mappedFile.buffer.duplicate();
+			T chunkData = RegionFileFormat.readChunk(view, (int) chunkStart, availableBytes, reader);
+			if (chunkData == null)
+			{
+				throw new IOException("Chunk " + pos + " is stored externally or uses an unknown compression type");
+			}
+			return chunkData;
+		}
+		finally
+		{
+			// the mapping can't be released while this read is using it
+			if (mappedFile != null)
+			{
+				mappedFile.release();
+			}
+		}
+	}
+	
+	/** @return null if the region file doesn't exist, otherwise a mapping the caller must release */
+	@Nullable
+	private MappedRegionFile acquireMappedFile(long regionPos, int regionX, int regionZ) throws IOException
+	{
+		while (true)
+		{
+			MappedRegionFile mappedFile = this.mappedFiles.get(regionPos);
+			if (mappedFile != null)
+			{
+				if (mappedFile.tryAcquire())
+				{
+					return mappedFile;
+				}
+				
+				// dropped and released by another thread just now, map the file again
+				continue;
+			}
+			
+			mappedFile = this.map(regionX, regionZ);
+			if (mappedFile == null)
+			{
+				return null;
+			}
+			
+			// taken before the file is shared, so trimming can't release it before it is used
+			mappedFile.tryAcquire();
+			
+			// another thread may have mapped the file at the same time, use theirs
+			if (this.mappedFiles.putIfAbsent(regionPos, mappedFile) != null)
+			{
+				mappedFile.release();
+				mappedFile.release();
+				continue;
+			}
+			
+			this.trimMappedFiles();
+			return mappedFile;
+		}
+	}
+	
+	/** 
+	 * Releases the caller's reference to the old mapping.
+	 * @return null if the region file no longer exists, otherwise a new mapping the caller must release
+	 */
+	@Nullable
+	private MappedRegionFile remap(long regionPos, MappedRegionFile oldFile, int regionX, int regionZ) throws IOException
+	{
+		MappedRegionFile newFile;
+		try
+		{
+			newFile = this.map(regionX, regionZ);
+			if (newFile == null)
+			{
+				if (this.mappedFiles.remove(regionPos, oldFile))
+				{
+					oldFile.release();
+				}
+				return null;
+			}
+			
+			newFile.tryAcquire();
+			
+			// other threads can keep using the old mapping until they finish their reads
+			if (this.mappedFiles.replace(regionPos, oldFile, newFile))
+			{
+				oldFile.release();
+			}
+			else
+			{
+				// another thread already replaced or dropped the old mapping, only the caller will use this one
+				newFile.release();
+			}
+		}
+		finally
+		{
+			oldFile.release();
+		}
+		return newFile;
+	}
+	
+	/** @return null if the region file doesn't exist */
+	@Nullable
+	private MappedRegionFile map(int regionX, int regionZ) throws IOException
+	{
+		Path regionFilePath = RegionFileFormat.getRegionFilePath(this.storageFolder, regionX, regionZ);
+		if (!Files.exists(regionFilePath))
+		{
+			return null;
+		}
+		
+		try (FileChannel channel = FileChannel.open(regionFilePath, StandardOpenOption.READ))
+		{
+			// vanilla region files are far smaller than 2 GiB, so a single mapping is enough
+			int size = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			this.mapCount.incrementAndGet();
+			// the mapping stays valid after the channel is closed
+			return new MappedRegionFile(buffer, size);
+		}
+		catch (NoSuchFileException e)
+		{
+			// deleted between the exists check and opening it
+			return null;
+		}
+	}
+	
+	private void trimMappedFiles()
+	{
+		Iterator<Map.Entry<Long, MappedRegionFile>> iterator = this.mappedFiles.entrySet().iterator();
+		while (this.mappedFiles.size() > BatchGenerationSettings.MappedRegionReader.maxMappedFileCount && iterator.hasNext())
+		{
+			this.drop(iterator.next());
+		}
+	}
+	
+	/** Drops every mapping, files will be mapped again the next time they're read. */
+	public void clear()
+	{
+		for (Map.Entry<Long, MappedRegionFile> entry : this.mappedFiles.entrySet())
+		{
+			this.drop(entry);
+		}
+	}
+	
+	/** the mapping is released once any reads using it have finished */
+	private void drop(Map.Entry<Long, MappedRegionFile> entry)
+	{
+		if (this.mappedFiles.remove(entry.getKey(), entry.getValue()))
+		{
+			entry.getValue().release();
+		}
+	}
+	
+	
+	
+	//===========//
+	// unmapping //
+	//===========//
+	
+	/** 
+	 * @return false if mappings can't be released early and this is Windows, 
+	 * where a mapped region file couldn't be deleted until the garbage collector cleans up its mapping
+	 */
+	public static boolean canBeUsed() { return UNMAPPER != null || !IS_WINDOWS; }
+	
+	private static void unmap(MappedByteBuffer buffer)
+	{
+		if (UNMAPPER == null)
+		{
+			// the mapping is released once the garbage collector cleans up the buffer
+			return;
+		}
+		
+		try
+		{
+			UNMAPPER.unmap(buffer);
+		}
+		catch (Exception e)
+		{
+			LOGGER.warn("Unable to release a region file mapping, it will be released once it is garbage collected. Error: " + e.getMessage());
+		}
+	}
+	
+	@Nullable
+	private static IBufferUnmapper createUnmapper()
+	{
+		try
+		{
+			// Java 9 and newer
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+			unsafeField.setAccessible(true);
+			Object unsafe = unsafeField.get(null);
+			return (buffer) -> invokeCleaner.invoke(unsafe, buffer);
+		}
+		catch (Exception e)
+		{
+			// Java 8 doesn't have invokeCleaner
+		}
+		
+		try
+		{
+			// Java 8
+			Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return (buffer) ->
+			{
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null)
+				{
+					cleanMethod.invoke(cleaner);
+				}
+			};
+		}
+		catch (Exception e)
+		{
+			LOGGER.info("Region file mappings can't be released early on this JVM, they will be released once they're garbage collected.");
+			return null;
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString() { return "Mapped region reader: [" + this.mappedFiles.size() + "] files mapped, [" + this.mapCount.get() + "] mappings created, [" + this.readCount.get() + "] chunks read"; }
+	
+}
\ No newline at end of file
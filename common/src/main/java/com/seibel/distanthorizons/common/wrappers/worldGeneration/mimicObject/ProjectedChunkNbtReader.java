@@ -0,0 +1,574 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationSettings;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.LatencyHistogram;
+import net.minecraft.nbt.ByteArrayTag;
+import net.minecraft.nbt.ByteTag;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.DoubleTag;
+import net.minecraft.nbt.FloatTag;
+import net.minecraft.nbt.IntArrayTag;
+import net.minecraft.nbt.IntTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.LongArrayTag;
+import net.minecraft.nbt.LongTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.ShortTag;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.nbt.Tag;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads a chunk's NBT straight from the decompressed stream,
+ * only building tags for the parts {@link ChunkLoader} uses to make a LOD. <br><br>
+ *
+ * Everything else (entities, block entities, ticks, structures, light arrays, etc.)
+ * is skipped at the byte level, without creating any tags or strings for it. <br>
+ * The resulting {@link CompoundTag} has the same layout as the full one,
+ * it is just missing the skipped entries, which {@link ChunkLoader} already treats as empty. <br><br>
+ *
+ * The time and bytes allocated per chunk are recorded for both this and vanilla's {@link NbtIo},
+ * the "distanthorizons.worldGen.projectedNbtCompare" system property alternates between the two
+ * so the reduction can be measured on the actual world.
+ */
+public class ProjectedChunkNbtReader
+{
+	public static final ProjectedChunkNbtReader INSTANCE = new ProjectedChunkNbtReader();
+	
+	/** the same limit vanilla uses */
+	private static final int MAX_DEPTH = 512;
+	private static final int SKIP_BUFFER_SIZE = 8192;
+	
+	private static final byte TAG_END = 0;
+	private static final byte TAG_BYTE = 1;
+	private static final byte TAG_SHORT = 2;
+	private static final byte TAG_INT = 3;
+	private static final byte TAG_LONG = 4;
+	private static final byte TAG_FLOAT = 5;
+	private static final byte TAG_DOUBLE = 6;
+	private static final byte TAG_BYTE_ARRAY = 7;
+	private static final byte TAG_STRING = 8;
+	private static final byte TAG_LIST = 9;
+	private static final byte TAG_COMPOUND = 10;
+	private static final byte TAG_INT_ARRAY = 11;
+	private static final byte TAG_LONG_ARRAY = 12;
+	
+	/** pre 1.18 chunks keep everything inside this compound */
+	private static final String LEVEL_KEY = "Level";
+	private static final String SECTIONS_KEY = "sections";
+	private static final String SECTIONS_KEY_PRE18 = "Sections";
+	private static final String STATUS_KEY = "Status";
+	private static final String IS_LIGHT_ON_KEY = "isLightOn";
+	private static final String BLENDING_DATA_KEY = "blending_data";
+	
+	/** entries of the chunk (or of the pre 1.18 "Level" compound) that are kept */
+	private static final Set<String> CHUNK_KEYS = new HashSet<>(Arrays.asList(
+			"DataVersion", "xPos", "zPos", "Status", "isLightOn", "Heightmaps", "blending_data",
+			// pre 1.18 biomes are stored per chunk instead of per section
+			"Biomes"));
+	/** entries of each section that are kept, the light arrays are the big ones being dropped */
+	private static final Set<String> SECTION_KEYS = new HashSet<>(Arrays.asList(
+			"Y", "block_states", "biomes",
+			// pre 1.18
+			"Palette", "BlockStates"));
+	
+	private static final ThreadLocal<byte[]> SKIP_BUFFER = ThreadLocal.withInitial(() -> new byte[SKIP_BUFFER_SIZE]);
+	
+	/** null if the JVM can't measure per thread allocations */
+	private final com.sun.management.ThreadMXBean allocationBean;
+	
+	private final AtomicLong readCount = new AtomicLong(0);
+	
+	private final LatencyHistogram projectedReadTimes = new LatencyHistogram();
+	private final AtomicLong projectedAllocatedBytes = new AtomicLong(0);
+	private final LatencyHistogram fullReadTimes = new LatencyHistogram();
+	private final AtomicLong fullAllocatedBytes = new AtomicLong(0);
+	private final LatencyHistogram peekTimes = new LatencyHistogram();
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	private ProjectedChunkNbtReader()
+	{
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean instanceof com.sun.management.ThreadMXBean
+			&& ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()
+			&& ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemoryEnabled())
+		{
+			this.allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		}
+		else
+		{
+			this.allocationBean = null;
+		}
+	}
+	
+	
+	
+	//=========//
+	// reading //
+	//=========//
+	
+	/** Reads a chunk, either projected or in full depending on the config. */
+	public CompoundTag read(DataInput input) throws IOException
+	{
+		boolean projected = BatchGenerationSettings.ProjectedNbt.enabled && !(BatchGenerationSettings.ProjectedNbt.compareModes && this.readCount.incrementAndGet() % 2 == 0);
+		
+		long startAllocatedBytes = this.getAllocatedBytes();
+		long startTime = System.nanoTime();
+		
+		CompoundTag chunkData = projected ? this.readProjected(input) : NbtIo.read(input);
+		
+		long duration = System.nanoTime() - startTime;
+		long allocatedBytes = this.getAllocatedBytes() - startAllocatedBytes;
+		if (projected)
+		{
+			this.projectedReadTimes.record(duration);
+			this.projectedAllocatedBytes.addAndGet(allocatedBytes);
+		}
+		else
+		{
+			this.fullReadTimes.record(duration);
+			this.fullAllocatedBytes.addAndGet(allocatedBytes);
+		}
+		
+		return chunkData;
+	}
+	
+	/** Reads only the entries {@link ChunkLoader} needs. */
+	public CompoundTag readProjected(DataInput input) throws IOException
+	{
+		byte rootType = input.readByte();
+		if (rootType != TAG_COMPOUND)
+		{
+			throw new IOException("Root tag must be a named compound tag, got type [" + rootType + "]");
+		}
+		skipString(input);
+		
+		return this.readChunkCompound(input, 1);
+	}
+	
+	/**
+	 * Reads just enough of a chunk to know what it is,
+	 * stopping as soon as the {@link #STATUS_KEY status}, {@link #IS_LIGHT_ON_KEY light flag}
+	 * and (for chunks that aren't full) blending data have been found. <br>
+	 * Nothing else is decoded, so this is much cheaper than {@link #read(DataInput)}
+	 * for deciding whether a chunk needs to be generated.
+	 */
+	public StoredChunkSummary peek(DataInput input) throws IOException
+	{
+		long startTime = System.nanoTime();
+		
+		byte rootType = input.readByte();
+		if (rootType != TAG_COMPOUND)
+		{
+			throw new IOException("Root tag must be a named compound tag, got type [" + rootType + "]");
+		}
+		skipString(input);
+		
+		StoredChunkSummary summary = this.peekChunkCompound(input, new PeekState(), 1).toSummary();
+		this.peekTimes.record(System.nanoTime() - startTime);
+		return summary;
+	}
+	
+	/** Same as {@link #peek(DataInput)}, but for a chunk that has already been read. */
+	public static StoredChunkSummary summarize(CompoundTag chunkData)
+	{
+		// pre 1.18 chunks keep everything inside the "Level" compound
+		CompoundTag chunkCompound = chunkData.contains(LEVEL_KEY, TAG_COMPOUND) ? chunkData.getCompound(LEVEL_KEY) : chunkData;
+		return new StoredChunkSummary(
+				chunkCompound.contains(STATUS_KEY, TAG_STRING) ? chunkCompound.getString(STATUS_KEY) : null,
+				chunkCompound.getBoolean(IS_LIGHT_ON_KEY),
+				chunkCompound.contains(BLENDING_DATA_KEY));
+	}
+	
+	/** @return the given state, after it is complete or the compound ended */
+	private PeekState peekChunkCompound(DataInput input, PeekState state, int depth) throws IOException
+	{
+		checkDepth(depth);
+		
+		byte type;
+		while (!state.isComplete() && (type = input.readByte()) != TAG_END)
+		{
+			String key = input.readUTF();
+			if (type == TAG_COMPOUND && key.equals(LEVEL_KEY))
+			{
+				this.peekChunkCompound(input, state, depth + 1);
+			}
+			else if (type == TAG_STRING && key.equals(STATUS_KEY))
+			{
+				state.status = input.readUTF();
+			}
+			else if (type == TAG_BYTE && key.equals(IS_LIGHT_ON_KEY))
+			{
+				state.isLightOn = input.readByte() != 0;
+				state.foundLightOn = true;
+			}
+			else
+			{
+				if (key.equals(BLENDING_DATA_KEY))
+				{
+					state.hasBlendingData = true;
+				}
+				skipPayload(input, type, depth + 1);
+			}
+		}
+		return state;
+	}
+	
+	private CompoundTag readChunkCompound(DataInput input, int depth) throws IOException
+	{
+		checkDepth(depth);
+		
+		CompoundTag compound = new CompoundTag();
+		byte type;
+		while ((type = input.readByte()) != TAG_END)
+		{
+			String key = input.readUTF();
+			if (type == TAG_COMPOUND && key.equals(LEVEL_KEY))
+			{
+				compound.put(key, this.readChunkCompound(input, depth + 1));
+			}
+			else if (type == TAG_LIST && (key.equals(SECTIONS_KEY) || key.equals(SECTIONS_KEY_PRE18)))
+			{
+				compound.put(key, this.readSectionList(input, depth + 1));
+			}
+			else if (CHUNK_KEYS.contains(key))
+			{
+				compound.put(key, readPayload(input, type, depth + 1));
+			}
+			else
+			{
+				skipPayload(input, type, depth + 1);
+			}
+		}
+		return compound;
+	}
+	
+	private ListTag readSectionList(DataInput input, int depth) throws IOException
+	{
+		checkDepth(depth);
+		
+		byte elementType = input.readByte();
+		int length = readLength(input);
+		if (elementType != TAG_COMPOUND)
+		{
+			// not a list of sections, keep it as is
+			return readListElements(input, elementType, length, depth);
+		}
+		
+		ListTag sections = new ListTag();
+		for (int i = 0; i < length; i++)
+		{
+			CompoundTag section = new CompoundTag();
+			byte type;
+			while ((type = input.readByte()) != TAG_END)
+			{
+				String key = input.readUTF();
+				if (SECTION_KEYS.contains(key))
+				{
+					section.put(key, readPayload(input, type, depth + 2));
+				}
+				else
+				{
+					skipPayload(input, type, depth + 2);
+				}
+			}
+			sections.add(section);
+		}
+		return sections;
+	}
+	
+	
+	
+	//==============//
+	// tag decoding //
+	//==============//
+	
+	private static Tag readPayload(DataInput input, byte type, int depth) throws IOException
+	{
+		switch (type)
+		{
+			case TAG_BYTE:
+				return ByteTag.valueOf(input.readByte());
+			case TAG_SHORT:
+				return ShortTag.valueOf(input.readShort());
+			case TAG_INT:
+				return IntTag.valueOf(input.readInt());
+			case TAG_LONG:
+				return LongTag.valueOf(input.readLong());
+			case TAG_FLOAT:
+				return FloatTag.valueOf(input.readFloat());
+			case TAG_DOUBLE:
+				return DoubleTag.valueOf(input.readDouble());
+			case TAG_BYTE_ARRAY:
+			{
+				byte[] array = new byte[readLength(input)];
+				input.readFully(array);
+				return new ByteArrayTag(array);
+			}
+			case TAG_STRING:
+				return StringTag.valueOf(input.readUTF());
+			case TAG_LIST:
+			{
+				checkDepth(depth);
+				byte elementType = input.readByte();
+				int length = readLength(input);
+				return readListElements(input, elementType, length, depth);
+			}
+			case TAG_COMPOUND:
+			{
+				checkDepth(depth);
+				CompoundTag compound = new CompoundTag();
+				byte entryType;
+				while ((entryType = input.readByte()) != TAG_END)
+				{
+					String key = input.readUTF();
+					compound.put(key, readPayload(input, entryType, depth + 1));
+				}
+				return compound;
+			}
+			case TAG_INT_ARRAY:
+			{
+				int[] array = new int[readLength(input)];
+				for (int i = 0; i < array.length; i++)
+				{
+					array[i] = input.readInt();
+				}
+				return new IntArrayTag(array);
+			}
+			case TAG_LONG_ARRAY:
+			{
+				long[] array = new long[readLength(input)];
+				for (int i = 0; i < array.length; i++)
+				{
+					array[i] = input.readLong();
+				}
+				return new LongArrayTag(array);
+			}
+			default:
+				throw new IOException("Unknown NBT tag type [" + type + "]");
+		}
+	}
+	
+	private static ListTag readListElements(DataInput input, byte elementType, int length, int depth) throws IOException
+	{
+		ListTag list = new ListTag();
+		if (elementType == TAG_END)
+		{
+			return list;
+		}
+		
+		for (int i = 0; i < length; i++)
+		{
+			list.add(readPayload(input, elementType, depth + 1));
+		}
+		return list;
+	}
+	
+	
+	
+	/** what {@link #peek(DataInput)} has found so far */
+	private static class PeekState
+	{
+		String status = null;
+		boolean isLightOn = false;
+		boolean foundLightOn = false;
+		boolean hasBlendingData = false;
+		
+		/** full chunks never need their blending data, so they can stop early */
+		boolean isComplete() { return this.status != null && this.foundLightOn && (this.hasBlendingData || StoredChunkSummary.isFullStatus(this.status)); }
+		
+		StoredChunkSummary toSummary() { return new StoredChunkSummary(this.status, this.isLightOn, this.hasBlendingData); }
+	}
+	
+	
+	
+	//==========//
+	// skipping //
+	//==========//
+	
+	private static void skipPayload(DataInput input, byte type, int depth) throws IOException
+	{
+		switch (type)
+		{
+			case TAG_BYTE:
+				skipBytes(input, 1);
+				break;
+			case TAG_SHORT:
+				skipBytes(input, 2);
+				break;
+			case TAG_INT:
+			case TAG_FLOAT:
+				skipBytes(input, 4);
+				break;
+			case TAG_LONG:
+			case TAG_DOUBLE:
+				skipBytes(input, 8);
+				break;
+			case TAG_BYTE_ARRAY:
+				skipBytes(input, readLength(input));
+				break;
+			case TAG_STRING:
+				skipString(input);
+				break;
+			case TAG_LIST:
+			{
+				checkDepth(depth);
+				byte elementType = input.readByte();
+				int length = readLength(input);
+				int elementSize = getFixedPayloadSize(elementType);
+				if (elementSize >= 0)
+				{
+					skipBytes(input, (long) elementSize * length);
+				}
+				else
+				{
+					for (int i = 0; i < length; i++)
+					{
+						skipPayload(input, elementType, depth + 1);
+					}
+				}
+				break;
+			}
+			case TAG_COMPOUND:
+			{
+				checkDepth(depth);
+				byte entryType;
+				while ((entryType = input.readByte()) != TAG_END)
+				{
+					skipString(input);
+					skipPayload(input, entryType, depth + 1);
+				}
+				break;
+			}
+			case TAG_INT_ARRAY:
+				skipBytes(input, 4L * readLength(input));
+				break;
+			case TAG_LONG_ARRAY:
+				skipBytes(input, 8L * readLength(input));
+				break;
+			default:
+				throw new IOException("Unknown NBT tag type [" + type + "]");
+		}
+	}
+	
+	/** @return -1 if the payload's size depends on its contents */
+	private static int getFixedPayloadSize(byte type)
+	{
+		switch (type)
+		{
+			case TAG_END:
+				return 0;
+			case TAG_BYTE:
+				return 1;
+			case TAG_SHORT:
+				return 2;
+			case TAG_INT:
+			case TAG_FLOAT:
+				return 4;
+			case TAG_LONG:
+			case TAG_DOUBLE:
+				return 8;
+			default:
+				return -1;
+		}
+	}
+	
+	private static void skipString(DataInput input) throws IOException { skipBytes(input, input.readUnsignedShort()); }
+	
+	/** unlike {@link DataInput#skipBytes(int)} this always skips every byte or throws */
+	private static void skipBytes(DataInput input, long byteCount) throws IOException
+	{
+		byte[] buffer = SKIP_BUFFER.get();
+		while (byteCount > 0)
+		{
+			int count = (int) Math.min(byteCount, buffer.length);
+			input.readFully(buffer, 0, count);
+			byteCount -= count;
+		}
+	}
+	
+	private static int readLength(DataInput input) throws IOException
+	{
+		int length = input.readInt();
+		if (length < 0)
+		{
+			throw new IOException("Negative NBT length [" + length + "]");
+		}
+		return length;
+	}
+	
+	private static void checkDepth(int depth) throws IOException
+	{
+		if (depth > MAX_DEPTH)
+		{
+			throw new IOException("NBT tag is more than [" + MAX_DEPTH + "] levels deep");
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	/** @return 0 if per thread allocations can't be measured */
+	private long getAllocatedBytes() { return (this.allocationBean != null) ? this.allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0; }
+	
+	@Override
+	public String toString()
+	{
+		long projectedCount = this.projectedReadTimes.getCount();
+		long fullCount = this.fullReadTimes.getCount();
+		
+		String text = "Chunk NBT decoding: projected: [" + this.projectedReadTimes + "], full: [" + this.fullReadTimes + "], peek: [" + this.peekTimes + "]";
+		if (this.allocationBean != null)
+		{
+			text += ", KiB allocated per chunk: projected: [" + ((projectedCount != 0) ? this.projectedAllocatedBytes.get() / projectedCount / 1024 : 0) + "]"
+					+ ", full: [" + ((fullCount != 0) ? this.fullAllocatedBytes.get() / fullCount / 1024 : 0) + "]";
+		}
+		if (projectedCount != 0 && fullCount != 0)
+		{
+			text += ", time reduction: [" + String.format("%.1f", 100.0 * (1.0 - this.projectedReadTimes.getAverageNs() / this.fullReadTimes.getAverageNs())) + "%]";
+			if (this.allocationBean != null && this.fullAllocatedBytes.get() != 0)
+			{
+				double projectedBytesPerChunk = this.projectedAllocatedBytes.get() / (double) projectedCount;
+				double fullBytesPerChunk = this.fullAllocatedBytes.get() / (double) fullCount;
+				text += ", allocation reduction: [" + String.format("%.1f", 100.0 * (1.0 - projectedBytesPerChunk / fullBytesPerChunk)) + "%]";
+			}
+		}
+		return text;
+	}
+	
+}
\ No newline at end of file
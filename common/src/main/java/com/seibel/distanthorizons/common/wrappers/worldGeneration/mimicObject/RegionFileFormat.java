@@ -0,0 +1,211 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import net.minecraft.nbt.CompoundTag;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Constants and helpers for reading vanilla's region (.mca) files directly,
+ * without going through {@link net.minecraft.world.level.chunk.storage.RegionFile}. <br><br>
+ *
+ * A region file holds 32x32 chunks and is split into 4 KiB sectors. <br>
+ * The first sector is the location table: one big-endian int per chunk,
+ * the upper 3 bytes are the chunk's first sector and the lowest byte is its sector count (0 if the chunk is missing). <br>
+ * The second sector holds timestamps, which aren't needed for reading. <br>
+ * Each chunk starts with a 4 byte length (which includes the compression byte),
+ * then a compression type byte, then the compressed NBT data.
+ */
+public final class RegionFileFormat
+{
+	public static final int SECTOR_BYTES = 4096;
+	/** the location table and the timestamp table */
+	public static final int HEADER_SECTORS = 2;
+	public static final int CHUNKS_PER_REGION_SIDE = 32;
+	public static final int CHUNKS_PER_REGION = CHUNKS_PER_REGION_SIDE * CHUNKS_PER_REGION_SIDE;
+	
+	/** the length int and the compression type byte */
+	public static final int CHUNK_HEADER_BYTES = 5;
+	
+	public static final byte COMPRESSION_GZIP = 1;
+	public static final byte COMPRESSION_ZLIB = 2;
+	public static final byte COMPRESSION_NONE = 3;
+	/** set when the chunk was too big for the region file and was stored in a separate .mcc file */
+	public static final int COMPRESSION_EXTERNAL_FLAG = 128;
+	
+	
+	
+	/** Reads whatever is needed from a chunk's decompressed NBT stream. */
+	@FunctionalInterface
+	public interface IChunkStreamReader<T>
+	{
+		T read(DataInputStream stream) throws IOException;
+	}
+	
+	
+	
+	private RegionFileFormat() { }
+	
+	
+	
+	//===========//
+	// locations //
+	//===========//
+	
+	public static String getRegionFileName(int regionX, int regionZ) { return "r." + regionX + "." + regionZ + ".mca"; }
+	public static Path getRegionFilePath(Path storageFolder, int regionX, int regionZ) { return storageFolder.resolve(getRegionFileName(regionX, regionZ)); }
+	
+	/** @return the index of the given chunk in the region's location table */
+	public static int getLocationIndex(int chunkX, int chunkZ) { return (chunkX & (CHUNKS_PER_REGION_SIDE - 1)) + (chunkZ & (CHUNKS_PER_REGION_SIDE - 1)) * CHUNKS_PER_REGION_SIDE; }
+	
+	public static int getSectorOffset(int location) { return location >>> 8; }
+	public static int getSectorCount(int location) { return location & 0xFF; }
+	/** @return true if the location table entry points to chunk data */
+	public static boolean isPresent(int location) { return location != 0 && getSectorOffset(location) >= HEADER_SECTORS && getSectorCount(location) != 0; }
+	
+	/**
+	 * Reads the location table at the start of a region file.
+	 * Files too short to have a table (IE empty files) return a table with every chunk missing.
+	 */
+	public static int[] readLocationTable(FileChannel channel) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(SECTOR_BYTES);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, buffer.position()) < 0)
+			{
+				return new int[CHUNKS_PER_REGION];
+			}
+		}
+		buffer.flip();
+		return readLocationTable(buffer);
+	}
+	
+	/** @param buffer must have at least {@link RegionFileFormat#SECTOR_BYTES} bytes remaining, its position isn't changed */
+	public static int[] readLocationTable(ByteBuffer buffer)
+	{
+		int[] locations = new int[CHUNKS_PER_REGION];
+		int start = buffer.position();
+		for (int i = 0; i < CHUNKS_PER_REGION; i++)
+		{
+			locations[i] = buffer.getInt(start + i * 4);
+		}
+		return locations;
+	}
+	
+	
+	
+	//==========//
+	// decoding //
+	//==========//
+	
+	/**
+	 * Decodes a chunk from its raw bytes, starting at the chunk's length field.
+	 *
+	 * @param buffer the chunk's data, the buffer's position and limit aren't changed
+	 * @param offset where the chunk starts in the buffer
+	 * @param availableBytes how many bytes of the buffer belong to this chunk
+	 * @return null if the chunk is stored externally or uses an unknown compression type,
+	 *          in which case {@link net.minecraft.world.level.chunk.storage.RegionFile} should be used instead.
+	 * @throws IOException if the data is truncated or corrupt
+	 */
+	@Nullable
+	public static CompoundTag readChunk(ByteBuffer buffer, int offset, int availableBytes) throws IOException { return readChunk(buffer, offset, availableBytes, ProjectedChunkNbtReader.INSTANCE::read); }
+	
+	/**
+	 * Same as {@link RegionFileFormat#readChunk(ByteBuffer, int, int)}
+	 * but the decompressed stream is given to the reader instead of being read as a whole chunk.
+	 */
+	@Nullable
+	public static <T> T readChunk(ByteBuffer buffer, int offset, int availableBytes, IChunkStreamReader<T> reader) throws IOException
+	{
+		if (availableBytes < CHUNK_HEADER_BYTES)
+		{
+			throw new IOException("Chunk data too short: [" + availableBytes + "] bytes");
+		}
+		
+		int length = buffer.getInt(offset);
+		byte compressionType = buffer.get(offset + 4);
+		if (length <= 1 || length > availableBytes - 4)
+		{
+			throw new IOException("Invalid chunk length: [" + length + "], only [" + (availableBytes - 4) + "] bytes available");
+		}
+		
+		if ((compressionType & COMPRESSION_EXTERNAL_FLAG) != 0)
+		{
+			return null;
+		}
+		
+		if (buffer.hasArray())
+		{
+			return readChunk(buffer.array(), buffer.arrayOffset() + offset + CHUNK_HEADER_BYTES, length - 1, compressionType, reader);
+		}
+
+		// direct and memory mapped buffers have to be copied out first
+		byte[] data = new byte[length - 1];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + CHUNK_HEADER_BYTES);
+		view.get(data);
+		return readChunk(data, 0, data.length, compressionType, reader);
+	}
+	
+	/** @return null if the compression type is unknown */
+	@Nullable
+	public static CompoundTag readChunk(byte[] data, int offset, int length, byte compressionType) throws IOException { return readChunk(data, offset, length, compressionType, ProjectedChunkNbtReader.INSTANCE::read); }
+	
+	/** @return null if the compression type is unknown */
+	@Nullable
+	public static <T> T readChunk(byte[] data, int offset, int length, byte compressionType, IChunkStreamReader<T> reader) throws IOException
+	{
+		InputStream compressedStream = new ByteArrayInputStream(data, offset, length);
+		InputStream stream;
+		switch (compressionType)
+		{
+			case COMPRESSION_GZIP:
+				stream = new GZIPInputStream(compressedStream);
+				break;
+			case COMPRESSION_ZLIB:
+				stream = new InflaterInputStream(compressedStream);
+				break;
+			case COMPRESSION_NONE:
+				stream = compressedStream;
+				break;
+			default:
+				return null;
+		}
+		
+		try (DataInputStream dataStream = new DataInputStream(new BufferedInputStream(stream)))
+		{
+			return reader.read(dataStream);
+		}
+	}
+	
+}
\ No newline at end of file
@@ -1,8 +1,9 @@
 package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
 
+import com.seibel.distanthorizons.common.util.ConcurrentLongLruCache;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationSettings;
 import net.minecraft.nbt.CompoundTag;
-import net.minecraft.nbt.NbtIo;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.storage.RegionFile;
 import net.minecraft.world.level.chunk.storage.RegionFileStorage;
@@ -12,13 +13,12 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class RegionFileStorageExternalCache implements AutoCloseable
 {
 	public final RegionFileStorage storage;
-	public static final int MAX_CACHE_SIZE = 16;
 	
 	/**
 	 * Present to reduce the chance that we accidentally break underlying MC code that isn't thread safe, 
@@ -28,27 +28,42 @@ public class RegionFileStorageExternalCache implements AutoCloseable
 	
 	
 	
-	static class RegionFileCache
-	{
-		public final long pos;
-		public final RegionFile file;
-		
-		public RegionFileCache(long pos, RegionFile file)
-		{
-			this.pos = pos;
-			this.file = file;
-		}
-		
-	}
+	/** how many region files DH can keep open even if vanilla has the rest of {@link BatchGenerationSettings.RegionFileCache#maxOpenRegionFiles} open */
+	private static final int MIN_OPEN_REGION_FILES = 8;
 	
+	/** 
+	 * region files that vanilla doesn't have open, keyed by {@link ChunkPos#asLong(int, int)} of the region. <br>
+	 * Evicted files are only closed once every read using them has finished.
+	 */
+	public final ConcurrentLongLruCache<SharedRegionFile> regionFileCache = new ConcurrentLongLruCache<>(BatchGenerationSettings.RegionFileCache.maxCacheSize, SharedRegionFile::release);
 	
+	/** reads pre-existing chunks without touching vanilla's region file cache, null if disabled */
+	@Nullable
+	private final MappedRegionFileReader mappedReader;
+	/** answers "this chunk doesn't exist" without touching the disk, null if disabled */
+	@Nullable
+	private final RegionPresenceCache presenceCache;
 	
-	public ConcurrentLinkedQueue<RegionFileCache> regionFileCache = new ConcurrentLinkedQueue<>();
+	public RegionFileStorageExternalCache(RegionFileStorage storage)
+	{
+		this.storage = storage;
+		this.mappedReader = (BatchGenerationSettings.MappedRegionReader.enabled && MappedRegionFileReader.canBeUsed()) ? new MappedRegionFileReader(this.getStorageFolderPath()) : null;
+		this.presenceCache = BatchGenerationSettings.RegionPresence.enabled ? new RegionPresenceCache(storage, this.getStorageFolderPath()) : null;
+	}
 	
-	public RegionFileStorageExternalCache(RegionFileStorage storage) { this.storage = storage; }
+	/** @return the folder containing the region files */
+	public Path getStorageFolderPath()
+	{
+		#if MC_1_16_5 || MC_1_17_1
+		return this.storage.folder.toPath();
+		#else
+		return this.storage.folder;
+		#endif
+	}
 	
+	/** @return null if vanilla doesn't have the region file open */
 	@Nullable
-	public RegionFile getRegionFile(ChunkPos pos) throws IOException
+	private RegionFile getVanillaRegionFile(ChunkPos pos) throws IOException
 	{
 		long posLong = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
 		RegionFile rFile = null;
@@ -109,60 +124,132 @@ public class RegionFileStorageExternalCache implements AutoCloseable
 			BatchGenerationEnvironment.LOAD_LOGGER.warn("Concurrency issue detected when getting region file for chunk at " + pos + ".");
 		}
 		
-		
-		if (rFile != null)
-		{
-			return rFile;
-		}
+		return rFile;
+	}
+	
+	/**
+	 * Gets or opens DH's own handle for the region file. <br>
+	 * The returned file won't be closed until it's passed to {@link SharedRegionFile#release()},
+	 * even if it's evicted from the cache in the meantime.
+	 * 
+	 * @return null if the region file doesn't exist
+	 */
+	@Nullable
+	private SharedRegionFile acquireRegionFile(ChunkPos pos) throws IOException
+	{
+		long posLong = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
 		
 		// Then check our custom cache
-		for (RegionFileCache cache : this.regionFileCache)
+		SharedRegionFile sharedFile = this.regionFileCache.get(posLong);
+		if (sharedFile != null && sharedFile.tryAcquire())
 		{
-			if (cache.pos == posLong)
-			{
-				return cache.file;
-			}
+			return sharedFile;
 		}
 		
 		// Otherwise, check if file exist, and if so, add it to the cache
-		Path storageFolderPath;
-		#if MC_1_16_5 || MC_1_17_1
-		storageFolderPath = this.storage.folder.toPath();
-		#else
-		storageFolderPath = this.storage.folder;
-		#endif
+		Path storageFolderPath = this.getStorageFolderPath();
 		
 		if (!Files.exists(storageFolderPath))
 		{
 			return null;
 		}
 		
-		Path regionFilePath = storageFolderPath.resolve("r." + pos.getRegionX() + "." + pos.getRegionZ() + ".mca");
+		// make room for the new file if too many are already open,
+		// vanilla may have most of the budget open itself so DH always keeps a few
+		int openFileLimit = Math.max(MIN_OPEN_REGION_FILES, BatchGenerationSettings.RegionFileCache.maxOpenRegionFiles - this.storage.regionCache.size() - 1);
+		if (this.regionFileCache.size() > openFileLimit)
+		{
+			this.regionFileCache.trimToSize(openFileLimit);
+		}
+		
+		Path regionFilePath = RegionFileFormat.getRegionFilePath(storageFolderPath, pos.getRegionX(), pos.getRegionZ());
 		#if MC_1_16_5 || MC_1_17_1
-		rFile = new RegionFile(regionFilePath.toFile(), storageFolderPath.toFile(), false);
+		RegionFile rFile = new RegionFile(regionFilePath.toFile(), storageFolderPath.toFile(), false);
 		#else
-		rFile = new RegionFile(regionFilePath, storageFolderPath, false);
+		RegionFile rFile = new RegionFile(regionFilePath, storageFolderPath, false);
 		#endif
 		
-		this.regionFileCache.add(new RegionFileCache(ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ()), rFile));
-		while (this.regionFileCache.size() > MAX_CACHE_SIZE)
+		// another thread may have opened the same file at the same time, only one of them is kept
+		// the caller's reference is taken before the file is cached, since adding it may evict it right away
+		SharedRegionFile newFile = new SharedRegionFile(rFile);
+		newFile.tryAcquire();
+		
+		SharedRegionFile existingFile = this.regionFileCache.putIfAbsent(posLong, newFile);
+		if (existingFile == null)
 		{
-			this.regionFileCache.poll().file.close();
+			return newFile;
 		}
 		
-		return rFile;
+		// ours wasn't cached, so the cache's reference isn't needed
+		newFile.release();
+		if (existingFile.tryAcquire())
+		{
+			newFile.release();
+			return existingFile;
+		}
+		
+		// the cached file was evicted while we were opening ours,
+		// the caller's release will close ours
+		return newFile;
 	}
 	
+	private static void closeRegionFile(RegionFile file)
+	{
+		try
+		{
+			file.close();
+		}
+		catch (IOException e)
+		{
+			BatchGenerationEnvironment.LOAD_LOGGER.warn("Unable to close region file, error: " + e.getMessage(), e);
+		}
+	}
+	
+	
+	@Nullable
+	public CompoundTag read(ChunkPos pos) throws IOException { return this.read(pos, ProjectedChunkNbtReader.INSTANCE::read); }
+	
+	/**
+	 * Reads just enough of the chunk to know its status, without decoding the rest of it.
+	 * @return null if the chunk doesn't exist or couldn't be read
+	 */
+	@Nullable
+	public StoredChunkSummary peek(ChunkPos pos) throws IOException { return this.read(pos, ProjectedChunkNbtReader.INSTANCE::peek); }
 	
+	/** @param reader is given the chunk's decompressed NBT stream */
 	@Nullable
-	public CompoundTag read(ChunkPos pos) throws IOException
+	public <T> T read(ChunkPos pos, RegionFileFormat.IChunkStreamReader<T> reader) throws IOException
 	{
-		RegionFile file = this.getRegionFile(pos);
-		if (file == null)
+		if (this.presenceCache != null && this.presenceCache.isKnownMissing(pos))
 		{
 			return null;
 		}
 		
+		if (this.mappedReader != null)
+		{
+			try
+			{
+				return this.mappedReader.read(pos, reader);
+			}
+			catch (IOException e)
+			{
+				// the chunk is stored externally or is being written right now,
+				// vanilla's region file can handle both
+			}
+		}
+		
+		RegionFile file = this.getVanillaRegionFile(pos);
+		SharedRegionFile sharedFile = null;
+		if (file == null)
+		{
+			sharedFile = this.acquireRegionFile(pos);
+			if (sharedFile == null)
+			{
+				return null;
+			}
+			file = sharedFile.file;
+		}
+		
 		
 		try (DataInputStream stream = file.getChunkDataInputStream(pos))
 		{
@@ -171,24 +258,90 @@ public class RegionFileStorageExternalCache implements AutoCloseable
 				return null;
 			}
 			
-			return NbtIo.read(stream);
+			return reader.read(stream);
 		}
 		catch (Throwable e)
 		{
 			return null;
 		}
+		finally
+		{
+			if (sharedFile != null)
+			{
+				sharedFile.release();
+			}
+		}
+	}
+	
+	
+	/** 
+	 * A region file opened by DH. <br>
+	 * The cache holds one reference and each read holds another,
+	 * the file is closed once every reference has been released.
+	 */
+	public static class SharedRegionFile
+	{
+		public final RegionFile file;
+		/** starts at 1 for the cache's reference */
+		private final AtomicInteger refCount = new AtomicInteger(1);
+		
+		public SharedRegionFile(RegionFile file) { this.file = file; }
+		
+		/** @return false if the file has already been closed */
+		public boolean tryAcquire()
+		{
+			while (true)
+			{
+				int count = this.refCount.get();
+				if (count <= 0)
+				{
+					return false;
+				}
+				else if (this.refCount.compareAndSet(count, count + 1))
+				{
+					return true;
+				}
+			}
+		}
+		
+		public void release()
+		{
+			if (this.refCount.decrementAndGet() == 0)
+			{
+				closeRegionFile(this.file);
+			}
+		}
+		
 	}
 	
 	
 	@Override
 	public void close() throws IOException
 	{
-		RegionFileCache cache;
-		while ((cache = this.regionFileCache.poll()) != null)
+		if (this.presenceCache != null)
 		{
-			cache.file.close();
+			this.presenceCache.close();
 		}
+		
+		if (this.mappedReader != null)
+		{
+			this.mappedReader.clear();
+		}
+		
+		this.regionFileCache.clear();
 	}
 	
 	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		return "External region file cache: " + this.regionFileCache + ", vanilla region files open: [" + this.storage.regionCache.size() + "]"
+				+ ((this.presenceCache != null) ? ". " + this.presenceCache : "");
+	}
+	
 }
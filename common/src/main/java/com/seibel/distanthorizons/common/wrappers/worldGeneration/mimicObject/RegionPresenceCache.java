@@ -0,0 +1,224 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.storage.RegionFileStorage;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which chunks don't exist on disk,
+ * so asking for a chunk that hasn't been generated yet doesn't have to touch the file system. <br><br>
+ *
+ * Region files that don't exist are remembered in a set,
+ * for region files that do exist the location table is read once and stored as a 1024 bit presence bitmap. <br>
+ * Whenever vanilla writes a chunk (see MixinRegionFileStorage) the written region is forgotten,
+ * so its presence is read from disk again the next time it's needed.
+ */
+public class RegionPresenceCache
+{
+	/** every cache that's currently open, so writes can be forwarded to the cache for the written storage */
+	private static final Set<RegionPresenceCache> OPEN_CACHES = ConcurrentHashMap.newKeySet();
+	
+	private static final int LONGS_PER_BITMAP = RegionFileFormat.CHUNKS_PER_REGION / Long.SIZE;
+	
+	private final RegionFileStorage storage;
+	private final Path storageFolder;
+	
+	/** keyed by {@link ChunkPos#asLong(int, int)} of the region */
+	private final Set<Long> missingRegions = ConcurrentHashMap.newKeySet();
+	/** keyed by {@link ChunkPos#asLong(int, int)} of the region, one bit per chunk, set if the chunk exists */
+	private final ConcurrentHashMap<Long, long[]> presenceBitmaps = new ConcurrentHashMap<>();
+	/**
+	 * incremented every time a region is invalidated,
+	 * so a presence that was read from disk before the invalidation isn't stored afterward
+	 */
+	private final AtomicLong invalidationCount = new AtomicLong(0);
+	
+	private final AtomicLong knownMissingCount = new AtomicLong(0);
+	private final AtomicLong regionLoadCount = new AtomicLong(0);
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public RegionPresenceCache(RegionFileStorage storage, Path storageFolder)
+	{
+		this.storage = storage;
+		this.storageFolder = storageFolder;
+		OPEN_CACHES.add(this);
+	}
+	
+	
+	
+	//=========//
+	// lookups //
+	//=========//
+	
+	/**
+	 * @return true if the chunk definitely doesn't exist on disk,
+	 *          false if it exists or if its presence couldn't be determined
+	 */
+	public boolean isKnownMissing(ChunkPos pos)
+	{
+		long regionPos = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
+		
+		long invalidationCountBeforeLoad = this.invalidationCount.get();
+		if (this.missingRegions.contains(regionPos))
+		{
+			this.knownMissingCount.incrementAndGet();
+			return true;
+		}
+		
+		long[] bitmap = this.presenceBitmaps.get(regionPos);
+		if (bitmap == null)
+		{
+			try
+			{
+				bitmap = this.loadBitmap(pos.getRegionX(), pos.getRegionZ());
+			}
+			catch (IOException e)
+			{
+				// let the normal read path deal with the file
+				return false;
+			}
+			
+			this.regionLoadCount.incrementAndGet();
+			if (this.invalidationCount.get() == invalidationCountBeforeLoad)
+			{
+				if (bitmap == null)
+				{
+					this.missingRegions.add(regionPos);
+				}
+				else
+				{
+					this.presenceBitmaps.put(regionPos, bitmap);
+				}
+				
+				// the region may have been invalidated while it was being stored
+				if (this.invalidationCount.get() != invalidationCountBeforeLoad)
+				{
+					this.missingRegions.remove(regionPos);
+					this.presenceBitmaps.remove(regionPos);
+				}
+			}
+			
+			if (bitmap == null)
+			{
+				this.knownMissingCount.incrementAndGet();
+				return true;
+			}
+		}
+		
+		int index = RegionFileFormat.getLocationIndex(pos.x, pos.z);
+		boolean present = (bitmap[index / Long.SIZE] & (1L << (index % Long.SIZE))) != 0;
+		if (!present)
+		{
+			this.knownMissingCount.incrementAndGet();
+		}
+		return !present;
+	}
+	
+	/** @return null if the region file doesn't exist */
+	@Nullable
+	private long[] loadBitmap(int regionX, int regionZ) throws IOException
+	{
+		Path regionFilePath = RegionFileFormat.getRegionFilePath(this.storageFolder, regionX, regionZ);
+		int[] locations;
+		try (FileChannel channel = FileChannel.open(regionFilePath, StandardOpenOption.READ))
+		{
+			locations = RegionFileFormat.readLocationTable(channel);
+		}
+		catch (NoSuchFileException e)
+		{
+			return null;
+		}
+		
+		long[] bitmap = new long[LONGS_PER_BITMAP];
+		for (int i = 0; i < locations.length; i++)
+		{
+			if (RegionFileFormat.isPresent(locations[i]))
+			{
+				bitmap[i / Long.SIZE] |= 1L << (i % Long.SIZE);
+			}
+		}
+		return bitmap;
+	}
+	
+	
+	
+	//==============//
+	// invalidation //
+	//==============//
+	
+	/** Called after vanilla writes a chunk to the given storage. */
+	public static void onChunkWritten(RegionFileStorage storage, ChunkPos pos)
+	{
+		for (RegionPresenceCache cache : OPEN_CACHES)
+		{
+			if (cache.storage == storage)
+			{
+				cache.invalidate(pos);
+			}
+		}
+	}
+	
+	/** Forgets everything known about the given chunk's region. */
+	public void invalidate(ChunkPos pos)
+	{
+		long regionPos = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
+		this.invalidationCount.incrementAndGet();
+		this.missingRegions.remove(regionPos);
+		this.presenceBitmaps.remove(regionPos);
+	}
+	
+	/** Forgets every region and stops listening for writes. */
+	public void close()
+	{
+		OPEN_CACHES.remove(this);
+		this.missingRegions.clear();
+		this.presenceBitmaps.clear();
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		return "Region presence cache: [" + this.missingRegions.size() + "] missing regions, [" + this.presenceBitmaps.size() + "] region bitmaps, "
+				+ "[" + this.regionLoadCount.get() + "] regions loaded, [" + this.knownMissingCount.get() + "] missing chunks answered, [" + this.invalidationCount.get() + "] invalidations";
+	}
+	
+}
\ No newline at end of file
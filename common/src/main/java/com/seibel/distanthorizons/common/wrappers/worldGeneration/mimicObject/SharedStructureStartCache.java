@@ -0,0 +1,398 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationSettings;
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceLocation;
+#if POST_MC_1_18_2
+import net.minecraft.world.level.levelgen.structure.StructureStart;
+#endif
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Remembers whether structures can start in each chunk, shared by every world gen thread of a level. <br><br>
+ *
+ * Each thread still has its own {@link net.minecraft.world.level.levelgen.structure.StructureCheck}
+ * (vanilla's isn't thread safe), but once any thread has worked out a result, the others read it from here
+ * instead of sampling biomes or reading the chunk from disk again.
+ * Results survive {@link com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters#recreateStructureCheck()}. <br><br>
+ *
+ * Memory is bounded by storing each chunk in a fixed size, direct mapped table:
+ * a chunk that hashes to an occupied slot replaces the chunk that was there. <br>
+ * Negative results are saved to the level's data folder when the level closes,
+ * the file is ignored if the seed, generator or structure sets (IE the data packs) changed.
+ */
+public class SharedStructureStartCache
+{
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
+	public static final String FILE_NAME = "distanthorizons_structure_starts.bin";
+	private static final int FILE_MAGIC = 0x44485353; // "DHSS"
+	private static final int FILE_VERSION = 2;
+	
+	public static final byte UNKNOWN = 0;
+	public static final byte START_NOT_PRESENT = 1;
+	public static final byte START_PRESENT = 2;
+	
+	private final AtomicReferenceArray<ChunkEntry> table;
+	private final int mask;
+	
+	private final Path filePath;
+	private final long worldSeed;
+	private final String generatorName;
+	private final long structureSetHash;
+	private final Function<Object, ResourceLocation> structureNameGetter;
+	private final Function<ResourceLocation, Object> structureGetter;
+	
+	private final AtomicLong hitCount = new AtomicLong(0);
+	private final AtomicLong missCount = new AtomicLong(0);
+	private final AtomicLong replacedCount = new AtomicLong(0);
+	private int loadedResultCount = 0;
+	
+	
+	
+	private static final class ChunkEntry
+	{
+		final long chunkPos;
+		/** null until this chunk's structure starts have been generated, structure -> reference count */
+		volatile Map<Object, Integer> knownStarts = null;
+		/** structure -> result, checked without skipping known structures */
+		final ConcurrentHashMap<Object, Byte> results = new ConcurrentHashMap<>(4);
+		
+		ChunkEntry(long chunkPos) { this.chunkPos = chunkPos; }
+		
+	}
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	/**
+	 * Loads any results saved by a previous session.
+	 *
+	 * @param generatorName saved results are only used if this, the seed and the structure set hash match
+	 * @param structureSetHash changes whenever the structure sets or their placements change
+	 * @param structureRegistry used to save structures by name
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> SharedStructureStartCache(Path filePath, long worldSeed, String generatorName, long structureSetHash, Registry<T> structureRegistry)
+	{
+		int size = (BatchGenerationSettings.SharedStructureCache.maxChunkCount <= 1) ? 1 : Integer.highestOneBit(BatchGenerationSettings.SharedStructureCache.maxChunkCount - 1) << 1;
+		this.table = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+		
+		this.filePath = filePath;
+		this.worldSeed = worldSeed;
+		this.generatorName = generatorName;
+		this.structureSetHash = structureSetHash;
+		this.structureNameGetter = (structure) -> structureRegistry.getKey((T) structure);
+		this.structureGetter = structureRegistry::get;
+		
+		this.load();
+	}
+	
+	
+	
+	//=========//
+	// lookups //
+	//=========//
+	
+	/** @return {@link SharedStructureStartCache#UNKNOWN} if no thread has checked this yet */
+	public byte getResult(long chunkPos, Object structure, boolean skipKnownStructures)
+	{
+		ChunkEntry entry = this.table.get(this.getIndex(chunkPos));
+		if (entry == null || entry.chunkPos != chunkPos)
+		{
+			this.missCount.incrementAndGet();
+			return UNKNOWN;
+		}
+		
+		byte result;
+		Map<Object, Integer> knownStarts = entry.knownStarts;
+		if (knownStarts != null)
+		{
+			// same as vanilla's StructureCheck once a chunk's starts are loaded
+			Integer referenceCount = knownStarts.get(structure);
+			if (referenceCount == null)
+			{
+				result = START_NOT_PRESENT;
+			}
+			else if (!skipKnownStructures)
+			{
+				result = START_PRESENT;
+			}
+			else
+			{
+				// references can be added after the starts were stored, let the thread's StructureCheck answer
+				result = UNKNOWN;
+			}
+		}
+		else
+		{
+			Byte storedResult = entry.results.get(structure);
+			// a structure that isn't present won't be found by skipping known ones either,
+			// anything else may be a known structure, which has to be skipped
+			result = (storedResult == null || (skipKnownStructures && storedResult != START_NOT_PRESENT)) ? UNKNOWN : storedResult;
+		}
+		
+		(result == UNKNOWN ? this.missCount : this.hitCount).incrementAndGet();
+		return result;
+	}
+	
+	/** 
+	 * Only results found without skipping known structures are stored, since they don't change as references are added. <br>
+	 * Only {@link SharedStructureStartCache#START_NOT_PRESENT} and {@link SharedStructureStartCache#START_PRESENT} are stored,
+	 * anything else may change once the chunk has been generated.
+	 */
+	public void putResult(long chunkPos, Object structure, boolean skipKnownStructures, byte result)
+	{
+		if (skipKnownStructures || (result != START_NOT_PRESENT && result != START_PRESENT))
+		{
+			return;
+		}
+		
+		this.getOrCreateEntry(chunkPos).results.put(structure, result);
+	}
+	
+	#if POST_MC_1_18_2
+	/** Should be called once a chunk's structure starts have been generated, the same as vanilla's StructureCheck#onStructureLoad. */
+	public void onStructureLoad(long chunkPos, Map<?, StructureStart> chunkStarts)
+	{
+		HashMap<Object, Integer> knownStarts = new HashMap<>();
+		chunkStarts.forEach((structure, structureStart) ->
+		{
+			if (structureStart.isValid())
+			{
+				knownStarts.put(structure, structureStart.getReferences());
+			}
+		});
+		this.getOrCreateEntry(chunkPos).knownStarts = Collections.unmodifiableMap(knownStarts);
+	}
+	#endif
+	
+	private ChunkEntry getOrCreateEntry(long chunkPos)
+	{
+		int index = this.getIndex(chunkPos);
+		while (true)
+		{
+			ChunkEntry entry = this.table.get(index);
+			if (entry != null && entry.chunkPos == chunkPos)
+			{
+				return entry;
+			}
+			
+			ChunkEntry newEntry = new ChunkEntry(chunkPos);
+			if (this.table.compareAndSet(index, entry, newEntry))
+			{
+				if (entry != null)
+				{
+					this.replacedCount.incrementAndGet();
+				}
+				return newEntry;
+			}
+		}
+	}
+	
+	private int getIndex(long chunkPos)
+	{
+		// murmur3's finalizer, so neighboring chunks are spread across the table
+		chunkPos ^= chunkPos >>> 33;
+		chunkPos *= 0xff51afd7ed558ccdL;
+		chunkPos ^= chunkPos >>> 33;
+		chunkPos *= 0xc4ceb9fe1a85ec53L;
+		chunkPos ^= chunkPos >>> 33;
+		return (int) chunkPos & this.mask;
+	}
+	
+	
+	
+	//=============//
+	// persistence //
+	//=============//
+	
+	private void load()
+	{
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.filePath))))
+		{
+			if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION)
+			{
+				LOGGER.info("Ignoring structure start cache [" + this.filePath + "], it was saved in a different format.");
+				return;
+			}
+			if (input.readLong() != this.worldSeed || !input.readUTF().equals(this.generatorName))
+			{
+				LOGGER.info("Ignoring structure start cache [" + this.filePath + "], it was saved for a different seed or generator.");
+				return;
+			}
+			if (input.readLong() != this.structureSetHash)
+			{
+				LOGGER.info("Ignoring structure start cache [" + this.filePath + "], the structure sets have changed since it was saved.");
+				return;
+			}
+			
+			int structureCount = input.readInt();
+			Object[] structures = new Object[structureCount];
+			for (int i = 0; i < structureCount; i++)
+			{
+				// null if the structure no longer exists (IE a data pack was removed)
+				structures[i] = this.structureGetter.apply(new ResourceLocation(input.readUTF()));
+			}
+			
+			int resultCount = input.readInt();
+			for (int i = 0; i < resultCount; i++)
+			{
+				long chunkPos = input.readLong();
+				int structureIndex = input.readInt();
+				if (structureIndex < 0 || structureIndex >= structureCount)
+				{
+					throw new IOException("Invalid structure index [" + structureIndex + "]");
+				}
+				
+				if (structures[structureIndex] != null)
+				{
+					this.putResult(chunkPos, structures[structureIndex], false, START_NOT_PRESENT);
+					this.loadedResultCount++;
+				}
+			}
+		}
+		catch (NoSuchFileException e)
+		{
+			// nothing has been saved for this level yet
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOGGER.warn("Unable to read structure start cache [" + this.filePath + "], it will be rebuilt. Error: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Saves every remembered chunk where a structure can't start. <br>
+	 * Positive results aren't saved since they depend on chunks that may not be saved by the game.
+	 */
+	public void save()
+	{
+		HashMap<Object, Integer> structureIndexes = new HashMap<>();
+		ArrayList<String> structureNames = new ArrayList<>();
+		ArrayList<long[]> results = new ArrayList<>();
+		for (int i = 0; i < this.table.length(); i++)
+		{
+			ChunkEntry entry = this.table.get(i);
+			if (entry == null)
+			{
+				continue;
+			}
+			
+			entry.results.forEach((structure, result) ->
+			{
+				if (result != START_NOT_PRESENT)
+				{
+					return;
+				}
+				
+				Integer structureIndex = structureIndexes.get(structure);
+				if (structureIndex == null)
+				{
+					ResourceLocation name = this.structureNameGetter.apply(structure);
+					if (name == null)
+					{
+						// not a registered structure, it can't be loaded by name
+						return;
+					}
+					
+					structureIndex = structureNames.size();
+					structureNames.add(name.toString());
+					structureIndexes.put(structure, structureIndex);
+				}
+				results.add(new long[] { entry.chunkPos, structureIndex });
+			});
+		}
+		
+		Path tempPath = this.filePath.resolveSibling(FILE_NAME + ".tmp");
+		try
+		{
+			Files.createDirectories(this.filePath.getParent());
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath))))
+			{
+				output.writeInt(FILE_MAGIC);
+				output.writeInt(FILE_VERSION);
+				output.writeLong(this.worldSeed);
+				output.writeUTF(this.generatorName);
+				output.writeLong(this.structureSetHash);
+				
+				output.writeInt(structureNames.size());
+				for (String name : structureNames)
+				{
+					output.writeUTF(name);
+				}
+				
+				output.writeInt(results.size());
+				for (long[] result : results)
+				{
+					output.writeLong(result[0]);
+					output.writeInt((int) result[1]);
+				}
+			}
+			Files.move(tempPath, this.filePath, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e)
+		{
+			LOGGER.warn("Unable to save structure start cache [" + this.filePath + "]. Error: " + e.getMessage());
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString()
+	{
+		long hits = this.hitCount.get();
+		long lookups = hits + this.missCount.get();
+		return "Shared structure start cache: hit rate: [" + ((lookups != 0) ? String.format("%.1f", 100.0 * hits / lookups) : "0.0") + "%]"
+				+ ", lookups: [" + lookups + "], replaced chunks: [" + this.replacedCount.get() + "], results loaded from disk: [" + this.loadedResultCount + "]";
+	}
+	
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import net.minecraft.world.level.chunk.ChunkStatus;
+
+import javax.annotation.Nullable;
+
+/**
+ * What a chunk stored on disk is, read without decoding the rest of the chunk.
+ *
+ * @see ProjectedChunkNbtReader#peek(java.io.DataInput)
+ */
+public class StoredChunkSummary
+{
+	/** null if the chunk didn't have a status */
+	@Nullable
+	public final String status;
+	public final boolean isLightOn;
+	/** only accurate for chunks that aren't full, full chunks stop being read before their blending data is found */
+	public final boolean hasBlendingData;
+	
+	
+	
+	public StoredChunkSummary(@Nullable String status, boolean isLightOn, boolean hasBlendingData)
+	{
+		this.status = status;
+		this.isLightOn = isLightOn;
+		this.hasBlendingData = hasBlendingData;
+	}
+	
+	
+	
+	public boolean isFull() { return isFullStatus(this.status); }
+	
+	/** 
+	 * @return false if {@link ChunkLoader} would definitely return null for this chunk. <br>
+	 * Some proto chunks with blending data may still be rejected, since checking them needs the full blending data.
+	 */
+	public boolean canBeLoaded()
+	{
+		if (this.isFull())
+		{
+			return true;
+		}
+		
+		#if PRE_MC_1_18_2
+		return false;
+		#else
+		// old noise proto chunks are loaded so they can be blended with the new terrain
+		return this.hasBlendingData;
+		#endif
+	}
+	
+	public static boolean isFullStatus(@Nullable String status) { return status != null && ChunkStatus.byName(status) == ChunkStatus.FULL; }
+	
+	@Override
+	public String toString() { return "status: [" + this.status + "], light on: [" + this.isLightOn + "], blending data: [" + this.hasBlendingData + "]"; }
+	
+}
\ No newline at end of file
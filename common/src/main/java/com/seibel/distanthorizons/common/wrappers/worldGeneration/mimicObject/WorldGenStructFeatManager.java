@@ -20,12 +20,16 @@
 package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
 
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
+import javax.annotation.Nullable;
+
 import com.google.common.collect.ImmutableList;
 
 import it.unimi.dsi.fastutil.longs.LongSet;
@@ -49,6 +53,7 @@ import net.minecraft.world.level.StructureManager;
 #endif
 #if POST_MC_1_18_2
 import net.minecraft.world.level.levelgen.structure.StructureCheck;
+import net.minecraft.world.level.levelgen.structure.StructureCheckResult;
 #endif
 
 import net.minecraft.world.level.levelgen.structure.StructureStart;
@@ -71,27 +76,42 @@ public class WorldGenStructFeatManager extends #if PRE_MC_1_19_2 StructureFeatur
 	
 	#if POST_MC_1_18_2
 	StructureCheck structureCheck;
+	/** null if structure checks shouldn't be shared between threads */
+	@Nullable
+	final SharedStructureStartCache sharedStructureStartCache;
+	
+	/** 
+	 * chunk pos -> every valid structure start referenced by that chunk. <br>
+	 * Only holds chunks whose references can't change anymore, see {@link WorldGenStructFeatManager#getMemoizedStarts(ChunkAccess)}.
+	 */
+	private final ConcurrentHashMap<Long, Map<#if PRE_MC_1_19_2 ConfiguredStructureFeature<?, ?> #else Structure #endif , List<StructureStart>>> startsByChunkPos = new ConcurrentHashMap<>();
 	#endif
 	
 	#if PRE_MC_1_19_4
 	public WorldGenStructFeatManager(
 			WorldGenSettings worldGenSettings,
-			WorldGenLevel genLevel #if POST_MC_1_18_2 , StructureCheck structureCheck #endif )
+			WorldGenLevel genLevel #if POST_MC_1_18_2 , StructureCheck structureCheck, @Nullable SharedStructureStartCache sharedStructureStartCache #endif )
 	{
 		
 		super(genLevel, worldGenSettings #if POST_MC_1_18_2 , structureCheck #endif );
 		this.genLevel = genLevel;
 		this.worldGenSettings = worldGenSettings;
+		#if POST_MC_1_18_2
+		this.structureCheck = structureCheck;
+		this.sharedStructureStartCache = sharedStructureStartCache;
+		#endif
 	}
 	#else
 	public WorldGenStructFeatManager(
 			WorldOptions worldOptions,
-			WorldGenLevel genLevel, StructureCheck structureCheck)
+			WorldGenLevel genLevel, StructureCheck structureCheck, @Nullable SharedStructureStartCache sharedStructureStartCache)
 	{
 		
 		super(genLevel, worldOptions, structureCheck);
 		this.genLevel = genLevel;
 		this.worldOptions = worldOptions;
+		this.structureCheck = structureCheck;
+		this.sharedStructureStartCache = sharedStructureStartCache;
 	}
 	#endif
 	
@@ -100,13 +120,67 @@ public class WorldGenStructFeatManager extends #if PRE_MC_1_19_2 StructureFeatur
 	{
 		if (worldGenRegion == genLevel)
 			return this;
+		
+		// the generation steps ask for a manager once per chunk,
+		// DH's regions keep the first one they're given so it (and its memoized starts) can be reused
+		if (worldGenRegion instanceof DhLitWorldGenRegion)
+		{
+			Object managerKey = #if POST_MC_1_18_2 this.structureCheck; #else this.worldGenSettings; #endif
+			return ((DhLitWorldGenRegion) worldGenRegion).getOrCreateStructFeat(managerKey, () -> this.createForRegion(worldGenRegion));
+		}
+		return this.createForRegion(worldGenRegion);
+	}
+	
+	private WorldGenStructFeatManager createForRegion(WorldGenRegion worldGenRegion)
+	{
 	#if PRE_MC_1_19_4
-		return new WorldGenStructFeatManager(worldGenSettings, worldGenRegion #if POST_MC_1_18_2 , structureCheck #endif );
+		return new WorldGenStructFeatManager(worldGenSettings, worldGenRegion #if POST_MC_1_18_2 , structureCheck, sharedStructureStartCache #endif );
 	#else
-		return new WorldGenStructFeatManager(worldOptions, worldGenRegion, structureCheck);
+		return new WorldGenStructFeatManager(worldOptions, worldGenRegion, structureCheck, sharedStructureStartCache);
 	#endif
 	}
 	
+	#if POST_MC_1_18_2
+	@Override
+	public StructureCheckResult checkStructurePresence(ChunkPos chunkPos, #if PRE_MC_1_19_2 ConfiguredStructureFeature<?, ?> #else Structure #endif structure, boolean skipKnownStructures)
+	{
+		if (this.sharedStructureStartCache == null)
+		{
+			return super.checkStructurePresence(chunkPos, structure, skipKnownStructures);
+		}
+		
+		// another thread may have already checked this
+		long pos = chunkPos.toLong();
+		switch (this.sharedStructureStartCache.getResult(pos, structure, skipKnownStructures))
+		{
+			case SharedStructureStartCache.START_NOT_PRESENT:
+				return StructureCheckResult.START_NOT_PRESENT;
+			case SharedStructureStartCache.START_PRESENT:
+				return StructureCheckResult.START_PRESENT;
+			default:
+				break;
+		}
+		
+		StructureCheckResult result = super.checkStructurePresence(chunkPos, structure, skipKnownStructures);
+		byte cacheResult;
+		switch (result)
+		{
+			case START_NOT_PRESENT:
+				cacheResult = SharedStructureStartCache.START_NOT_PRESENT;
+				break;
+			case START_PRESENT:
+				cacheResult = SharedStructureStartCache.START_PRESENT;
+				break;
+			default:
+				// CHUNK_LOAD_NEEDED will change once the chunk is generated, so it can't be shared
+				cacheResult = SharedStructureStartCache.UNKNOWN;
+				break;
+		}
+		this.sharedStructureStartCache.putResult(pos, structure, skipKnownStructures, cacheResult);
+		return result;
+	}
+	#endif
+	
 	private ChunkAccess _getChunk(int x, int z, ChunkStatus status)
 	{
 		if (genLevel == null) return null;
@@ -145,10 +219,10 @@ public class WorldGenStructFeatManager extends #if PRE_MC_1_19_2 StructureFeatur
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	public List<? extends StructureStart<?>> startsForFeature(SectionPos sectionPos,
 															  StructureFeature<?> structureFeature) {
-
+		
 		ChunkAccess chunk = _getChunk(sectionPos.x(), sectionPos.z(), ChunkStatus.STRUCTURE_REFERENCES);
 		if (chunk == null) return List.of();
-
+		
 		// Copied from StructureFeatureManager::startsForFeature(...) with slight tweaks
 		LongSet longSet = chunk.getReferencesForFeature(structureFeature);
 		ImmutableList.Builder builder = ImmutableList.builder();
@@ -166,12 +240,57 @@ public class WorldGenStructFeatManager extends #if PRE_MC_1_19_2 StructureFeatur
 	}
 	#else
 	#if PRE_MC_1_19_2
+	/**
+	 * Structure references are added while the chunk is at {@link ChunkStatus#STRUCTURE_REFERENCES},
+	 * once it's past that they're final and the starts they point to can be looked up just once.
+	 * 
+	 * @return null if the chunk's references may still change
+	 */
+	@Nullable
+	private Map<ConfiguredStructureFeature<?, ?>, List<StructureStart>> getMemoizedStarts(ChunkAccess chunk)
+	{
+		if (!chunk.getStatus().isOrAfter(ChunkStatus.BIOMES))
+		{
+			return null;
+		}
+		
+		return this.startsByChunkPos.computeIfAbsent(chunk.getPos().toLong(), (pos) ->
+		{
+			Map<ConfiguredStructureFeature<?, ?>, List<StructureStart>> startsByFeature = new LinkedHashMap<>();
+			for (Map.Entry<ConfiguredStructureFeature<?, ?>, LongSet> entry : chunk.getAllReferences().entrySet())
+			{
+				ImmutableList.Builder<StructureStart> builder = ImmutableList.builder();
+				this.fillStartsForFeature(entry.getKey(), entry.getValue(), builder::add);
+				List<StructureStart> starts = builder.build();
+				if (!starts.isEmpty())
+				{
+					startsByFeature.put(entry.getKey(), starts);
+				}
+			}
+			return startsByFeature;
+		});
+	}
+	
 	@Override
 	public List<StructureStart> startsForFeature(SectionPos sectionPos, Predicate<ConfiguredStructureFeature<?, ?>> predicate)
 	{
 		ChunkAccess chunk = _getChunk(sectionPos.x(), sectionPos.z(), ChunkStatus.STRUCTURE_REFERENCES);
 		if (chunk == null) return List.of();
 		
+		Map<ConfiguredStructureFeature<?, ?>, List<StructureStart>> memoizedStarts = this.getMemoizedStarts(chunk);
+		if (memoizedStarts != null)
+		{
+			ImmutableList.Builder<StructureStart> builder = ImmutableList.builder();
+			memoizedStarts.forEach((feature, starts) ->
+			{
+				if (predicate.test(feature))
+				{
+					builder.addAll(starts);
+				}
+			});
+			return builder.build();
+		}
+		
 		// Copied from StructureFeatureManager::startsForFeature(...)
 		Map<ConfiguredStructureFeature<?, ?>, LongSet> map = chunk.getAllReferences();
 		
@@ -199,6 +318,12 @@ public class WorldGenStructFeatManager extends #if PRE_MC_1_19_2 StructureFeatur
 		ChunkAccess chunk = _getChunk(sectionPos.x(), sectionPos.z(), ChunkStatus.STRUCTURE_REFERENCES);
 		if (chunk == null) return (List<StructureStart>) Stream.empty();
 		
+		Map<ConfiguredStructureFeature<?, ?>, List<StructureStart>> memoizedStarts = this.getMemoizedStarts(chunk);
+		if (memoizedStarts != null)
+		{
+			return memoizedStarts.getOrDefault(configuredStructureFeature, ImmutableList.of());
+		}
+		
 		// Copied from StructureFeatureManager::startsForFeature(...)
 		LongSet longSet = chunk.getReferencesForFeature(configuredStructureFeature);
 		ImmutableList.Builder<StructureStart> builder = ImmutableList.builder();
@@ -216,12 +341,57 @@ public class WorldGenStructFeatManager extends #if PRE_MC_1_19_2 StructureFeatur
 		return chunk.getAllReferences();
 	}
 	#else
+	/**
+	 * Structure references are added while the chunk is at {@link ChunkStatus#STRUCTURE_REFERENCES},
+	 * once it's past that they're final and the starts they point to can be looked up just once.
+	 * 
+	 * @return null if the chunk's references may still change
+	 */
+	@Nullable
+	private Map<Structure, List<StructureStart>> getMemoizedStarts(ChunkAccess chunk)
+	{
+		if (!chunk.getStatus().isOrAfter(ChunkStatus.BIOMES))
+		{
+			return null;
+		}
+		
+		return this.startsByChunkPos.computeIfAbsent(chunk.getPos().toLong(), (pos) ->
+		{
+			Map<Structure, List<StructureStart>> startsByStructure = new LinkedHashMap<>();
+			for (Map.Entry<Structure, LongSet> entry : chunk.getAllReferences().entrySet())
+			{
+				ImmutableList.Builder<StructureStart> builder = ImmutableList.builder();
+				this.fillStartsForStructure(entry.getKey(), entry.getValue(), builder::add);
+				List<StructureStart> starts = builder.build();
+				if (!starts.isEmpty())
+				{
+					startsByStructure.put(entry.getKey(), starts);
+				}
+			}
+			return startsByStructure;
+		});
+	}
+	
 	@Override
 	public List<StructureStart> startsForStructure(ChunkPos sectionPos, Predicate<Structure> predicate)
 	{
 		ChunkAccess chunk = _getChunk(sectionPos.x, sectionPos.z, ChunkStatus.STRUCTURE_REFERENCES);
 		if (chunk == null) return List.of();
 		
+		Map<Structure, List<StructureStart>> memoizedStarts = this.getMemoizedStarts(chunk);
+		if (memoizedStarts != null)
+		{
+			ImmutableList.Builder<StructureStart> builder = ImmutableList.builder();
+			memoizedStarts.forEach((structure, starts) ->
+			{
+				if (predicate.test(structure))
+				{
+					builder.addAll(starts);
+				}
+			});
+			return builder.build();
+		}
+		
 		// Copied from StructureFeatureManager::startsForFeature(...)
 		Map<Structure, LongSet> map = chunk.getAllReferences();
 		
@@ -249,6 +419,12 @@ public class WorldGenStructFeatManager extends #if PRE_MC_1_19_2 StructureFeatur
 		ChunkAccess chunk = _getChunk(sectionPos.x(), sectionPos.z(), ChunkStatus.STRUCTURE_REFERENCES);
 		if (chunk == null) return (List<StructureStart>) Stream.empty();
 		
+		Map<Structure, List<StructureStart>> memoizedStarts = this.getMemoizedStarts(chunk);
+		if (memoizedStarts != null)
+		{
+			return memoizedStarts.getOrDefault(structure, ImmutableList.of());
+		}
+		
 		// Copied from StructureFeatureManager::startsForFeature(...)
 		LongSet longSet = chunk.getReferencesForStructure(structure);
 		ImmutableList.Builder<StructureStart> builder = ImmutableList.builder();
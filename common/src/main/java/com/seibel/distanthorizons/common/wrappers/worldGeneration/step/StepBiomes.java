@@ -24,6 +24,7 @@ import java.util.List;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.ParallelStepExecutor;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
 
 import net.minecraft.server.level.WorldGenRegion;
@@ -62,22 +63,22 @@ public final class StepBiomes
 			chunksToDo.add(chunk);
 		}
 		
-		for (ChunkAccess chunk : chunksToDo)
+		ParallelStepExecutor.forEachChunk(environment.params, tParams, worldGenRegion, chunksToDo, (workerParams, chunk) ->
 		{
 			// System.out.println("StepBiomes: "+chunk.getPos());
 			#if PRE_MC_1_18_2
 			environment.params.generator.createBiomes(environment.params.biomes, chunk);
 			#elif PRE_MC_1_19_2
-			chunk = environment.joinSync(environment.params.generator.createBiomes(environment.params.biomes, Runnable::run, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+			environment.joinSync(environment.params.generator.createBiomes(environment.params.biomes, Runnable::run, Blender.of(worldGenRegion),
+					workerParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#elif PRE_MC_1_19_4
-			chunk = environment.joinSync(environment.params.generator.createBiomes(environment.params.biomes, Runnable::run, environment.params.randomState, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+			environment.joinSync(environment.params.generator.createBiomes(environment.params.biomes, Runnable::run, environment.params.randomState, Blender.of(worldGenRegion),
+					workerParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#else
-			chunk = environment.joinSync(environment.params.generator.createBiomes(Runnable::run, environment.params.randomState, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+			environment.joinSync(environment.params.generator.createBiomes(Runnable::run, environment.params.randomState, Blender.of(worldGenRegion),
+					workerParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#endif
-		}
+		});
 	}
 	
 }
\ No newline at end of file
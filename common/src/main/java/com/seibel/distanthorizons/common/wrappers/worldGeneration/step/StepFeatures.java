@@ -31,7 +31,6 @@ import net.minecraft.ReportedException;
 import net.minecraft.world.level.chunk.ChunkAccess;
 import net.minecraft.world.level.chunk.ChunkStatus;
 import net.minecraft.world.level.chunk.ProtoChunk;
-import net.minecraft.world.level.levelgen.Heightmap;
 #if POST_MC_1_18_2
 #endif
 
@@ -58,6 +57,8 @@ public final class StepFeatures
 			ChunkAccess chunk = chunkWrapper.getChunk();
 			if (chunk.getStatus().isOrAfter(STATUS)) continue;
 			((ProtoChunk) chunk).setStatus(STATUS);
+			// the heightmaps will be kept up to date as features are placed
+			worldGenRegion.primeFeatureHeightmaps(chunk);
 			chunksToDo.add(chunk);
 		}
 		
@@ -73,7 +74,6 @@ public final class StepFeatures
 						tParams.structFeat.forWorldGenRegion(worldGenRegion));
 				#endif
 				
-				Heightmap.primeHeightmaps(chunk, STATUS.heightmapsAfter());
 				BatchGenerationEnvironment.clearDistantGenerationMixinData();
 			}
 			catch (ReportedException e)
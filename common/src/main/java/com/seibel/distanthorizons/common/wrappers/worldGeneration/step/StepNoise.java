@@ -24,6 +24,7 @@ import java.util.List;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.ParallelStepExecutor;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
 
 import com.seibel.distanthorizons.core.util.objects.UncheckedInterruptedException;
@@ -66,23 +67,23 @@ public final class StepNoise
 			chunksToDo.add(chunk);
 		}
 		
-		for (ChunkAccess chunk : chunksToDo)
+		ParallelStepExecutor.forEachChunk(environment.params, tParams, worldGenRegion, chunksToDo, (workerParams, chunk) ->
 		{
 			// System.out.println("StepNoise: "+chunk.getPos());
 			#if PRE_MC_1_17_1
-			environment.params.generator.fillFromNoise(worldGenRegion, tParams.structFeat, chunk);
+			environment.params.generator.fillFromNoise(worldGenRegion, workerParams.structFeat, chunk);
 			#elif PRE_MC_1_18_2
-			chunk = environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run,
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+			environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run,
+					workerParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#elif PRE_MC_1_19_2
-			chunk = environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+			environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run, Blender.of(worldGenRegion),
+					workerParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#else
-			chunk = environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run, Blender.of(worldGenRegion), environment.params.randomState,
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+			environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run, Blender.of(worldGenRegion), environment.params.randomState,
+					workerParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#endif
 			UncheckedInterruptedException.throwIfInterrupted();
-		}
+		});
 	}
 	
 }
\ No newline at end of file
@@ -21,14 +21,17 @@ package com.seibel.distanthorizons.common.wrappers.worldGeneration.step;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantLock;
 
+import com.seibel.distanthorizons.common.util.StripedLocks;
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationSettings;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
 
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+import com.seibel.distanthorizons.core.util.objects.EventTimer;
 import net.minecraft.server.level.WorldGenRegion;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.ChunkAccess;
 import net.minecraft.world.level.chunk.ChunkStatus;
 import net.minecraft.world.level.chunk.ProtoChunk;
@@ -38,7 +41,12 @@ public final class StepStructureStart
 {
 	private static final Logger LOGGER = DhLoggerBuilder.getLogger();
 	private static final ChunkStatus STATUS = ChunkStatus.STRUCTURE_STARTS;
-	private static final ReentrantLock STRUCTURE_PLACEMENT_LOCK = new ReentrantLock();
+	
+	/** 
+	 * Structures are placed under the lock of each dimension + placement region they touch,
+	 * so events in different areas (or dimensions) don't wait on each other.
+	 */
+	public static final StripedLocks STRUCTURE_PLACEMENT_LOCKS = new StripedLocks(BatchGenerationSettings.StructureLocks.lockStripeCount);
 	
 	private final BatchGenerationEnvironment environment;
 	
@@ -61,9 +69,13 @@ public final class StepStructureStart
 		
 	}
 	
+	/** 
+	 * @param timer the time spent waiting for {@link StepStructureStart#STRUCTURE_PLACEMENT_LOCKS}
+	 *              is recorded as "structLock", the rest as "structStart"
+	 */
 	public void generateGroup(
 			ThreadedParameters tParams, WorldGenRegion worldGenRegion,
-			List<ChunkWrapper> chunkWrappers) throws InterruptedException
+			List<ChunkWrapper> chunkWrappers, EventTimer timer) throws InterruptedException
 	{
 		ArrayList<ChunkAccess> chunksToDo = new ArrayList<>();
 		
@@ -78,14 +90,24 @@ public final class StepStructureStart
 		}
 		
 		#if PRE_MC_1_19_2
-		if (environment.params.worldGenSettings.generateFeatures())
-		{
+		boolean generateStructures = environment.params.worldGenSettings.generateFeatures();
 		#elif PRE_MC_1_19_4
-		if (environment.params.worldGenSettings.generateStructures()) {
+		boolean generateStructures = environment.params.worldGenSettings.generateStructures();
 		#else
-		if (environment.params.worldOptions.generateStructures())
-		{
+		boolean generateStructures = environment.params.worldOptions.generateStructures();
 		#endif
+		if (!generateStructures || chunksToDo.isEmpty())
+		{
+			timer.nextEvent("structStart");
+			return;
+		}
+		
+		// every lock is taken once for the whole group, so the timer only needs one lock step
+		timer.nextEvent("structLock");
+		int[] lockedStripes = STRUCTURE_PLACEMENT_LOCKS.lockAll(this.getPlacementLockKeys(chunksToDo));
+		timer.nextEvent("structStart");
+		try
+		{
 			for (ChunkAccess chunk : chunksToDo)
 			{
 				// System.out.println("StepStructureStart: "+chunk.getPos());
@@ -94,10 +116,6 @@ public final class StepStructureStart
 				// hopefully allowing interrupts here will prevent that from happening.
 				BatchGenerationEnvironment.throwIfThreadInterrupted();
 				
-				// hopefully this shouldn't cause any performance issues (this step is generally quite quick so hopefully it should be fine)
-				// and should prevent some concurrency issues
-				STRUCTURE_PLACEMENT_LOCK.lock();
-				
 				#if PRE_MC_1_19_2
 				environment.params.generator.createStructures(environment.params.registry, tParams.structFeat, chunk, environment.params.structures,
 						environment.params.worldSeed);
@@ -138,11 +156,36 @@ public final class StepStructureStart
 					}
 				}
 				
+				// the other threads' structure checks can use these starts too
+				if (environment.params.structureStartCache != null)
+				{
+					environment.params.structureStartCache.onStructureLoad(chunk.getPos().toLong(), chunk.getAllStarts());
+				}
 				#endif
-				
-				STRUCTURE_PLACEMENT_LOCK.unlock();
 			}
 		}
+		finally
+		{
+			STRUCTURE_PLACEMENT_LOCKS.unlockAll(lockedStripes);
+		}
+	}
+	
+	/** @return the dimension + placement region of each chunk, duplicates are fine */
+	private long[] getPlacementLockKeys(List<ChunkAccess> chunks)
+	{
+		long dimensionKey = System.identityHashCode(this.environment.params.level);
+		if (BatchGenerationSettings.StructureLocks.lockPerDimension)
+		{
+			return new long[] { dimensionKey };
+		}
+		
+		long[] keys = new long[chunks.size()];
+		for (int i = 0; i < keys.length; i++)
+		{
+			ChunkPos pos = chunks.get(i).getPos();
+			keys[i] = ChunkPos.asLong(pos.x >> BatchGenerationSettings.StructureLocks.placementRegionShift, pos.z >> BatchGenerationSettings.StructureLocks.placementRegionShift) * 31 + dimensionKey;
+		}
+		return keys;
 	}
 	
 }
\ No newline at end of file
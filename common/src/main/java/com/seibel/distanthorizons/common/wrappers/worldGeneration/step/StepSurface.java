@@ -24,6 +24,7 @@ import java.util.List;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.ParallelStepExecutor;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
 
 import net.minecraft.server.level.WorldGenRegion;
@@ -58,17 +59,17 @@ public final class StepSurface
 			chunksToDo.add(chunk);
 		}
 		
-		for (ChunkAccess chunk : chunksToDo)
+		ParallelStepExecutor.forEachChunk(environment.params, tParams, worldGenRegion, chunksToDo, (workerParams, chunk) ->
 		{
 			// System.out.println("StepSurface: "+chunk.getPos());
 			#if PRE_MC_1_18_2
 			environment.params.generator.buildSurfaceAndBedrock(worldGenRegion, chunk);
 			#elif PRE_MC_1_19_2
-			environment.params.generator.buildSurface(worldGenRegion, tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk);
+			environment.params.generator.buildSurface(worldGenRegion, workerParams.structFeat.forWorldGenRegion(worldGenRegion), chunk);
 			#else
-			environment.params.generator.buildSurface(worldGenRegion, tParams.structFeat.forWorldGenRegion(worldGenRegion), environment.params.randomState, chunk);
+			environment.params.generator.buildSurface(worldGenRegion, workerParams.structFeat.forWorldGenRegion(worldGenRegion), environment.params.randomState, chunk);
 			#endif
-		}
+		});
 	}
 	
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.step;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationSettings;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.GenerationEvent;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
+
+import com.seibel.distanthorizons.core.util.objects.UncheckedInterruptedException;
+import net.minecraft.core.BlockPos;
+import net.minecraft.server.level.WorldGenRegion;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkGenerator;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.ProtoChunk;
+import net.minecraft.world.level.levelgen.Heightmap;
+
+/**
+ * A much cheaper replacement for the noise, surface, and feature steps,
+ * meant for LODs that are so far away only the top of each column matters. <br><br>
+ *
+ * The generator's height is sampled once per {@link BatchGenerationSettings.SurfaceSketch#columnStride} x {@link BatchGenerationSettings.SurfaceSketch#columnStride}
+ * group of columns, then each column is filled with a few blocks chosen from the biome
+ * (grass, sand, snow, or sand/gravel under water). <br>
+ * Caves, structures, and features are skipped entirely.
+ */
+public final class StepSurfaceSketch
+{
+	/** sketched chunks are marked as done so no other step will touch them */
+	private static final ChunkStatus STATUS = ChunkStatus.FEATURES;
+	
+	private static final float SNOW_MAX_TEMPERATURE = 0.15f;
+	private static final float SAND_MIN_TEMPERATURE = 1.5f;
+	/** water deeper than this will have gravel instead of sand on the bottom */
+	private static final int SHALLOW_WATER_DEPTH = 6;
+	
+	private final BatchGenerationEnvironment environment;
+	
+	private final AtomicLong sketchedChunkCount = new AtomicLong(0);
+	
+	
+	
+	public StepSurfaceSketch(BatchGenerationEnvironment batchGenerationEnvironment) { this.environment = batchGenerationEnvironment; }
+	
+	
+	
+	/** 
+	 * Only relevant for events whose target step is after {@link EDhApiWorldGenerationStep#BIOMES}.
+	 * Events without a known player distance are always fully generated.
+	 * @return true if the given event should be sketched instead of running the noise step and beyond
+	 */
+	public static boolean shouldSketch(GenerationEvent genEvent)
+	{
+		int distance = genEvent.nearestPlayerDistanceInChunks;
+		return BatchGenerationSettings.SurfaceSketch.enabled && distance != -1 && distance >= BatchGenerationSettings.SurfaceSketch.minPlayerDistanceInChunks;
+	}
+	
+	/** Biomes must already be generated for the given chunks. */
+	public void generateGroup(
+			ThreadedParameters tParams, WorldGenRegion worldGenRegion,
+			List<ChunkWrapper> chunkWrappers)
+	{
+		
+		ArrayList<ChunkAccess> chunksToDo = new ArrayList<ChunkAccess>();
+		
+		for (ChunkWrapper chunkWrapper : chunkWrappers)
+		{
+			ChunkAccess chunk = chunkWrapper.getChunk();
+			// chunks past the biome step were loaded from the world and already have real terrain
+			if (chunk.getStatus().isOrAfter(ChunkStatus.NOISE)) continue;
+			((ProtoChunk) chunk).setStatus(STATUS);
+			chunksToDo.add(chunk);
+		}
+		
+		for (ChunkAccess chunk : chunksToDo)
+		{
+			this.sketchChunk(chunk);
+			UncheckedInterruptedException.throwIfInterrupted();
+		}
+		this.sketchedChunkCount.addAndGet(chunksToDo.size());
+	}
+	
+	private void sketchChunk(ChunkAccess chunk)
+	{
+		ChunkGenerator generator = this.environment.params.generator;
+		int seaLevel = generator.getSeaLevel();
+		#if PRE_MC_1_17_1
+		int minBuildHeight = 0;
+		#else
+		int minBuildHeight = chunk.getMinBuildHeight();
+		#endif
+		
+		int stride = Math.max(1, Math.min(16, BatchGenerationSettings.SurfaceSketch.columnStride));
+		int minBlockX = chunk.getPos().getMinBlockX();
+		int minBlockZ = chunk.getPos().getMinBlockZ();
+		BlockPos.MutableBlockPos blockPos = new BlockPos.MutableBlockPos();
+		
+		for (int sampleX = 0; sampleX < 16; sampleX += stride)
+		{
+			for (int sampleZ = 0; sampleZ < 16; sampleZ += stride)
+			{
+				// sample the center of each group of columns
+				int blockX = minBlockX + sampleX + (stride / 2);
+				int blockZ = minBlockZ + sampleZ + (stride / 2);
+				
+				#if PRE_MC_1_17_1
+				int surfaceHeight = generator.getBaseHeight(blockX, blockZ, Heightmap.Types.OCEAN_FLOOR_WG);
+				#elif PRE_MC_1_19_2
+				int surfaceHeight = generator.getBaseHeight(blockX, blockZ, Heightmap.Types.OCEAN_FLOOR_WG, chunk);
+				#else
+				int surfaceHeight = generator.getBaseHeight(blockX, blockZ, Heightmap.Types.OCEAN_FLOOR_WG, chunk, this.environment.params.randomState);
+				#endif
+				
+				// the base height is the first empty block
+				int topY = surfaceHeight - 1;
+				if (topY < minBuildHeight)
+				{
+					continue;
+				}
+				
+				Biome biome = getBiome(chunk, blockX, topY, blockZ);
+				BlockState topBlock = getTopBlock(biome, topY, seaLevel);
+				BlockState fillerBlock = (topBlock == Blocks.SAND.defaultBlockState()) ? Blocks.SANDSTONE.defaultBlockState() : Blocks.DIRT.defaultBlockState();
+				
+				for (int x = sampleX; x < sampleX + stride; x++)
+				{
+					for (int z = sampleZ; z < sampleZ + stride; z++)
+					{
+						for (int y = topY + 1; y < seaLevel; y++)
+						{
+							chunk.setBlockState(blockPos.set(minBlockX + x, y, minBlockZ + z), Blocks.WATER.defaultBlockState(), false);
+						}
+						
+						chunk.setBlockState(blockPos.set(minBlockX + x, topY, minBlockZ + z), topBlock, false);
+						
+						int bottomY = Math.max(minBuildHeight, topY - BatchGenerationSettings.SurfaceSketch.fillDepth);
+						for (int y = topY - 1; y >= bottomY; y--)
+						{
+							// a thin layer of filler blocks, then stone
+							BlockState block = (y >= topY - 3) ? fillerBlock : Blocks.STONE.defaultBlockState();
+							chunk.setBlockState(blockPos.set(minBlockX + x, y, minBlockZ + z), block, false);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private static Biome getBiome(ChunkAccess chunk, int blockX, int blockY, int blockZ)
+	{
+		#if PRE_MC_1_18_2
+		return chunk.getBiomes().getNoiseBiome(blockX >> 2, blockY >> 2, blockZ >> 2);
+		#else
+		return chunk.getNoiseBiome(blockX >> 2, blockY >> 2, blockZ >> 2).value();
+		#endif
+	}
+	
+	/** a rough guess at the biome's surface block, good enough to get the right color from far away */
+	private static BlockState getTopBlock(Biome biome, int topY, int seaLevel)
+	{
+		if (topY < seaLevel - 1)
+		{
+			return (seaLevel - topY > SHALLOW_WATER_DEPTH) ? Blocks.GRAVEL.defaultBlockState() : Blocks.SAND.defaultBlockState();
+		}
+		
+		float temperature = biome.getBaseTemperature();
+		if (temperature < SNOW_MAX_TEMPERATURE)
+		{
+			return Blocks.SNOW_BLOCK.defaultBlockState();
+		}
+		else if (temperature > SAND_MIN_TEMPERATURE)
+		{
+			return Blocks.SAND.defaultBlockState();
+		}
+		else
+		{
+			return Blocks.GRASS_BLOCK.defaultBlockState();
+		}
+	}
+	
+	
+	
+	//===========//
+	// reporting //
+	//===========//
+	
+	@Override
+	public String toString() { return "Surface sketch: [" + this.sketchedChunkCount.get() + "] chunks sketched"; }
+	
+}
\ No newline at end of file
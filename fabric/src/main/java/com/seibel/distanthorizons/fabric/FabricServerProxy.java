@@ -5,6 +5,8 @@ import com.seibel.distanthorizons.common.wrappers.misc.ServerPlayerWrapper;
 import com.seibel.distanthorizons.common.wrappers.world.ClientLevelWrapper;
 import com.seibel.distanthorizons.common.wrappers.world.ServerLevelWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BulkLodImporter;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.GenerationScheduler;
 import com.seibel.distanthorizons.core.api.internal.ClientApi;
 import com.seibel.distanthorizons.core.api.internal.ServerApi;
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
@@ -73,7 +75,11 @@ public class FabricServerProxy
 		/* Register the mod needed event callbacks */
 		
 		// ServerTickEvent
-		ServerTickEvents.END_SERVER_TICK.register((server) -> SERVER_API.serverTickEvent());
+		ServerTickEvents.END_SERVER_TICK.register((server) ->
+		{
+			SERVER_API.serverTickEvent();
+			GenerationScheduler.onServerTick();
+		});
 		
 		// ServerWorldLoadEvent
 		//TODO: Check if both of these use the correct timed events. (i.e. is it 'ed' or 'ing' one?)
@@ -99,6 +105,7 @@ public class FabricServerProxy
 			if (isValidTime())
 			{
 				ServerApi.INSTANCE.serverLevelLoadEvent(getServerLevelWrapper(level));
+				BulkLodImporter.onLevelLoad(getServerLevelWrapper(level));
 			}
 		});
 		// ServerLevelUnloadEvent
@@ -106,7 +113,9 @@ public class FabricServerProxy
 		{
 			if (isValidTime())
 			{
+				BulkLodImporter.onLevelUnload(getServerLevelWrapper(level));
 				ServerApi.INSTANCE.serverLevelUnloadEvent(getServerLevelWrapper(level));
+				BulkLodImporter.onLevelSaved(getServerLevelWrapper(level));
 			}
 		});
 		
@@ -5,6 +5,8 @@ import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.world.ClientLevelWrapper;
 import com.seibel.distanthorizons.common.wrappers.world.ServerLevelWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BulkLodImporter;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.GenerationScheduler;
 import com.seibel.distanthorizons.core.api.internal.ServerApi;
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
 import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
@@ -76,6 +78,7 @@ public class ForgeServerProxy
 		if (event.phase == TickEvent.Phase.END)
 		{
 			this.serverApi.serverTickEvent();
+			GenerationScheduler.onServerTick();
 		}
 	}
 	
@@ -104,6 +107,7 @@ public class ForgeServerProxy
 		if (GetEventLevel(event) instanceof ServerLevel)
 		{
 			this.serverApi.serverLevelLoadEvent(this.getServerLevelWrapper((ServerLevel) GetEventLevel(event)));
+			BulkLodImporter.onLevelLoad(this.getServerLevelWrapper((ServerLevel) GetEventLevel(event)));
 		}
 	}
 	
@@ -117,7 +121,9 @@ public class ForgeServerProxy
 	{
 		if (GetEventLevel(event) instanceof ServerLevel)
 		{
+			BulkLodImporter.onLevelUnload(this.getServerLevelWrapper((ServerLevel) GetEventLevel(event)));
 			this.serverApi.serverLevelUnloadEvent(this.getServerLevelWrapper((ServerLevel) GetEventLevel(event)));
+			BulkLodImporter.onLevelSaved(this.getServerLevelWrapper((ServerLevel) GetEventLevel(event)));
 		}
 	}
 	
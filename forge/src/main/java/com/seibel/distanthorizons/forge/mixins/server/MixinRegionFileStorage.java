@@ -0,0 +1,41 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.forge.mixins.server;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionPresenceCache;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.storage.RegionFileStorage;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/** Lets DH's world generator know when a region file changed, so it doesn't keep treating new chunks as missing. */
+@Mixin(RegionFileStorage.class)
+public class MixinRegionFileStorage
+{
+	@Inject(method = "write", at = @At("RETURN"))
+	private void onChunkWritten(ChunkPos pos, CompoundTag chunkData, CallbackInfo ci)
+	{
+		RegionPresenceCache.onChunkWritten((RegionFileStorage) (Object) this, pos);
+	}
+	
+}
\ No newline at end of file